@@ -0,0 +1,27 @@
+/**
+ * The strategies available to build a quadtree from an image
+ * 
+ */
+public enum BuildMode {
+
+    /**
+     * Recurse down to the 2x2 blocks and collapse uniform regions on the way
+     * back up
+     * 
+     */
+    RECURSIVE,
+
+    /**
+     * Compute a min/max pyramid first and emit a leaf at the highest level
+     * where a block is uniform, without creating its subtree
+     * 
+     */
+    PYRAMID,
+
+    /**
+     * Detect the uniform 2x2, 4x4 and 8x8 blocks with a packed bitmap scan and
+     * recurse above them like the recursive build
+     * 
+     */
+    BITMAP
+}
@@ -0,0 +1,74 @@
+public class ColorMenu {
+
+    // ρ factor for RHO compression
+    private int rho;
+
+    // Path of the PPM image
+    private String image;
+
+    // true for a single tree of packed colors, false for one tree per channel
+    private boolean packed;
+
+    /**
+     * Constructor to initialize ColorMenu with a color image file, ρ factor
+     * and compression strategy.
+     *
+     * @param image  The path to the PPM image file.
+     * @param rho    The ρ factor for RHO compression.
+     * @param packed true for a single tree of packed colors, false for one
+     *               tree per channel.
+     */
+    public ColorMenu(String image, int rho, boolean packed) {
+        this.rho = rho;
+        this.image = image;
+        this.packed = packed;
+    }
+
+    /**
+     * Method to start the color compression process.
+     * Applies Lambda compression, then RHO compression, with the chosen
+     * strategy, saving the image after each one.
+     */
+    public void start() {
+        try {
+            compress();
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs both compressions.
+     *
+     * @throws IllegalArgumentException If the image cannot be loaded.
+     */
+    private void compress() {
+        System.out.println("PROCESSING LAMBDA COMPRESSION: ");
+        long startTime = System.currentTimeMillis();
+        ColorQuadTree newImageLambda = new ColorQuadTree(this.image, this.packed);
+        int initialNodesLow = newImageLambda.getNbNodes();
+        newImageLambda.lambdaCompressTree();
+        long endTime = System.currentTimeMillis();
+        double elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
+        newImageLambda.toPpm("Lambda" + newImageLambda.getImageName());
+        System.out.println("LAMBDA COMPRESSION COMPLETED!");
+        System.out.println("Le programme a mis " + elapsedTimeInSeconds + " secondes à s'exécuter.");
+        System.out.println("Custom Compression Result:");
+        System.out.println("Initial Nodes: " + initialNodesLow);
+        System.out.println("Final Nodes: " + newImageLambda.getNbNodes());
+
+        System.out.println("PROCESSING RHO COMPRESSION: ");
+        startTime = System.currentTimeMillis();
+        ColorQuadTree newImageRho = new ColorQuadTree(this.image, this.packed);
+        initialNodesLow = newImageRho.getNbNodes();
+        newImageRho.rhoCompressTree(this.rho);
+        endTime = System.currentTimeMillis();
+        elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
+        newImageRho.toPpm("RHO" + newImageRho.getImageName());
+        System.out.println("RHO COMPRESSION COMPLETED!");
+        System.out.println("Le programme a mis " + elapsedTimeInSeconds + " secondes à s'exécuter.");
+        System.out.println("Custom Compression Result:");
+        System.out.println("Initial Nodes: " + initialNodesLow);
+        System.out.println("Final Nodes: " + newImageRho.getNbNodes());
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.stream.IntStream;
+
+/**
+ * Class that compresses a color image with quadtrees, either with one tree
+ * per channel built and compressed in parallel, or with a single tree whose
+ * leaves hold packed colors. The image stays stored as bytes in its PPM: a
+ * channel is only expanded to the int lines of a PMG while its tree is
+ * built, and the trees do not keep it as their source.
+ *
+ */
+public class ColorQuadTree {
+
+    /**
+     * The red, green and blue trees, null if the colors are packed
+     *
+     */
+    private QuadTree[] channels;
+
+    /**
+     * The tree of packed colors, null if the channels are separate
+     *
+     */
+    private QuadTree packed;
+
+    /**
+     * The length of the image
+     *
+     */
+    private int length;
+
+    /**
+     * The name of the image
+     *
+     */
+    private String imageName;
+
+    /**
+     * Construct the quadtrees of a color image
+     *
+     * @param path   The local path of the PPM image
+     * @param packed true for a single tree of packed colors, false for one
+     *               tree per channel
+     * @throws IllegalArgumentException If the image cannot be loaded
+     *
+     */
+    public ColorQuadTree(String path, boolean packed) {
+        PPM image = FileManager.loadColorImage(path);
+        if (image == null) {
+            throw new IllegalArgumentException("invalid image " + path);
+        }
+        this.length = image.getLength();
+        this.imageName = "compressed-" + path;
+
+        if (packed) {
+            this.packed = new QuadTree(image.getPacked(), path, BuildMode.PYRAMID, true);
+            this.packed.releaseSource();
+        } else {
+            this.channels = new QuadTree[3];
+            IntStream.range(0, 3).parallel().forEach(c -> {
+                this.channels[c] = new QuadTree(image.getChannel(c), path, BuildMode.PYRAMID);
+                this.channels[c].releaseSource();
+            });
+        }
+    }
+
+    /**
+     * Compress the trees with lambda method, the channels in parallel
+     *
+     */
+    public void lambdaCompressTree() {
+        if (this.packed != null) {
+            this.packed.lambdaCompressTree();
+        } else {
+            IntStream.range(0, 3).parallel().forEach(c -> this.channels[c].lambdaCompressTree());
+        }
+    }
+
+    /**
+     * Compress the trees with the Rho method, the channels in parallel. With
+     * packed colors a twig is ranked by the largest epsilon of its channels.
+     *
+     * @param rho The value of ρ for the Rho compression
+     *
+     */
+    public void rhoCompressTree(int rho) {
+        if (this.packed != null) {
+            this.packed.rhoCompressTree(rho);
+        } else {
+            IntStream.range(0, 3).parallel().forEach(c -> this.channels[c].rhoCompressTree(rho));
+        }
+    }
+
+    /**
+     * Gets the color of a pixel
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The color packed as 0xRRGGBB
+     *
+     */
+    public int getColorAt(int line, int col) {
+        if (this.packed != null) {
+            return this.packed.getValueAt(line, col);
+        }
+        return this.channels[0].getValueAt(line, col) << 16
+                | this.channels[1].getValueAt(line, col) << 8
+                | this.channels[2].getValueAt(line, col);
+    }
+
+    /**
+     * Gets the number of nodes of all the trees
+     *
+     * @return The number of nodes
+     *
+     */
+    public int getNbNodes() {
+        if (this.packed != null) {
+            return this.packed.getNbNodes();
+        }
+        return this.channels[0].getNbNodes() + this.channels[1].getNbNodes() + this.channels[2].getNbNodes();
+    }
+
+    /**
+     * Get the length of the original image
+     *
+     * @return the length of the original image
+     *
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Gets the name of the image
+     *
+     * @return The name of the image
+     *
+     */
+    public String getImageName() {
+        return this.imageName;
+    }
+
+    /**
+     * Gets the trees of the image
+     *
+     * @return The red, green and blue trees, or the single packed tree
+     *
+     */
+    public QuadTree[] getTrees() {
+        return this.packed != null ? new QuadTree[] { this.packed } : this.channels;
+    }
+
+    /**
+     * Save the compressed image in a binary PPM file
+     *
+     * @param path Where to save the image
+     *
+     */
+    public void toPpm(String path) {
+        FileManager.saveColorImage(this, path);
+    }
+}
@@ -1,3 +1,5 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class Compression {
@@ -6,12 +8,83 @@ public class Compression {
         DefaultMenu DM;
         ArrayList <String> images = new ArrayList<>();
 
-        if(args.length > 0){
+        if(args.length > 0 && args[0].equals("--server")){
+            int port = args.length > 1 ? Integer.valueOf(args[1]) : CompressionServer.DEFAULT_PORT;
+            int workers = args.length > 2 ? Integer.valueOf(args[2]) : Runtime.getRuntime().availableProcessors();
+            int queue = args.length > 3 ? Integer.valueOf(args[3]) : 4 * workers;
+            File cacheDirectory = args.length > 4 ? new File(args[4]) : null;
+            CompressionCache cache = new CompressionCache(CompressionCache.DEFAULT_CAPACITY, cacheDirectory);
+            try {
+                new CompressionServer(port, workers, queue, cache).start();
+            } catch (IOException e) {
+                System.err.println("Error starting the server: " + e.getMessage());
+            }
+        }else if(args.length > 6 && args[0].equals("--batch")){
+            // --batch <LAMBDA|RHO> <rho> <readers> <compressors> <writers> [--report|--report-ssim <file>]
+            //         [--measure-retained] <images...>
+            boolean lambda = args[1].equalsIgnoreCase("LAMBDA");
+            int rho = Integer.valueOf(args[2]);
+            CompressionPipeline pipeline = new CompressionPipeline(Integer.valueOf(args[3]),
+                    Integer.valueOf(args[4]), Integer.valueOf(args[5]), 2 * Integer.valueOf(args[4]));
+            int first = 6;
+            if (args.length > 8 && (args[6].equals("--report") || args[6].equals("--report-ssim"))) {
+                pipeline.enableReport(args[7], args[6].equals("--report-ssim"));
+                first = 8;
+            }
+            if (args.length > first + 1 && args[first].equals("--measure-retained")) {
+                pipeline.enableRetainedMeasure();
+                first++;
+            }
+            for (int i = first; i < args.length; i++) {
+                images.add(args[i]);
+            }
+            if(!lambda && (rho < 1 || rho > 100)){
+                System.out.println("ERROR: INVALID RHO VALUE!");
+            }else{
+                try {
+                    pipeline.run(images, lambda, rho);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    System.err.println("Error writing the report: " + e.getMessage());
+                }
+            }
+        }else if(args.length > 1 && args[0].equals("--sequence")){
+            // --sequence <frames...>, the first frame is saved whole, the next ones as deltas
+            FrameSequence sequence = new FrameSequence();
+            QuadTree previous = null;
+            for (int i = 1; i < args.length; i++) {
+                PMG frame = FileManager.loadImage(args[i]);
+                if (frame == null || frame.getLuminosities() == null) {
+                    continue;
+                }
+                QuadTree tree = sequence.next(frame, args[i]);
+                String name = args[i].substring(0, args[i].length() - 3) + "txt";
+                try {
+                    if (previous == null || previous.getLength() != tree.getLength()) {
+                        FileManager.saveQuatree("Frame" + name, tree.toString());
+                    } else {
+                        FileManager.saveQuatree("Delta" + name, FrameSequence.toDelta(tree, previous));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing the frame " + args[i] + ": " + e.getMessage());
+                }
+                System.out.println(args[i] + ": " + tree.getNbNodes() + " nodes, " + sequence.getBuiltNodes() + " built");
+                previous = tree;
+            }
+        }else if(args.length > 0 && !args[0].equals("--report")){
+            // <image> <rho> [--report <file>]
             int rho = Integer.valueOf(args[1]);
             if(rho < 1 || rho > 100){
                 System.out.println("ERROR: INVALID RHO VALUE!");
+            }else if(args[0].endsWith(".ppm")){
+                // <image.ppm> <rho> [--packed], one tree per channel by default
+                new ColorMenu(args[0],rho,args.length > 2 && args[2].equals("--packed")).start();
             }else{
                 DM = new DefaultMenu(args[0],rho);
+                if (args.length > 3 && args[2].equals("--report")) {
+                    DM.enableReport(args[3]);
+                }
                 DM.start();
             }
            
@@ -25,6 +98,10 @@ public class Compression {
             images.add("tree.pgm");
             images.add("test.pgm");
             MM =new MainMenu(images);
+            if (args.length > 1) {
+                // --report <file>
+                MM.enableReport(args[1]);
+            }
             MM.start();
         }
     }
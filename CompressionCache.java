@@ -0,0 +1,396 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Content-addressed cache of compression results. Entries are keyed by the
+ * SHA-256 digest of the pixels of the source image and the compression
+ * parameters, so the same image compressed the same way is only built once
+ * whatever its file name.
+ *
+ * Results are kept in an in-memory LRU tier bounded in bytes and, if a
+ * directory is given, in an on-disk LRU tier bounded in bytes that survives
+ * restarts. Concurrent misses on the same key compute the result once.
+ *
+ */
+public class CompressionCache {
+
+    /**
+     * The default size in bytes of the in-memory tier
+     *
+     */
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * The default size in bytes of the on-disk tier
+     *
+     */
+    public static final long DEFAULT_DISK_CAPACITY = 1024L * 1024 * 1024;
+
+    /**
+     * A computation of a result that may fail with an I/O error
+     *
+     */
+    public interface Computation {
+        byte[] compute() throws IOException;
+    }
+
+    /**
+     * The in-memory entries, in access order
+     *
+     */
+    private LinkedHashMap<String, byte[]> entries;
+
+    /**
+     * The total size in bytes of the in-memory entries
+     *
+     */
+    private long size;
+
+    /**
+     * The maximum total size in bytes of the in-memory entries
+     *
+     */
+    private long capacity;
+
+    /**
+     * The directory of the on-disk tier, or null if there is none
+     *
+     */
+    private File directory;
+
+    /**
+     * The sizes of the on-disk entries in access order, their total size and
+     * its maximum
+     *
+     */
+    private LinkedHashMap<String, Long> files;
+    private long diskSize;
+    private long diskCapacity;
+
+    /**
+     * The results being computed, so that a concurrent miss on the same key
+     * waits for them instead of computing them again
+     *
+     */
+    private ConcurrentHashMap<String, CompletableFuture<byte[]>> pending;
+
+    /**
+     * The number of lookups answered and missed
+     *
+     */
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor of the cache with the default size of the on-disk tier
+     *
+     * @param capacity  The maximum size in bytes of the in-memory tier
+     * @param directory The directory of the on-disk tier, or null for none
+     *
+     */
+    public CompressionCache(long capacity, File directory) {
+        this(capacity, directory, DEFAULT_DISK_CAPACITY);
+    }
+
+    /**
+     * Constructor of the cache. The entries already in the directory are
+     * taken back, the least recently modified first in line for eviction.
+     *
+     * @param capacity     The maximum size in bytes of the in-memory tier
+     * @param directory    The directory of the on-disk tier, or null for none
+     * @param diskCapacity The maximum size in bytes of the on-disk tier
+     *
+     */
+    public CompressionCache(long capacity, File directory, long diskCapacity) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.size = 0;
+        this.capacity = capacity;
+        this.directory = directory;
+        this.files = new LinkedHashMap<>(16, 0.75f, true);
+        this.diskSize = 0;
+        this.diskCapacity = diskCapacity;
+        this.pending = new ConcurrentHashMap<>();
+
+        if (directory != null) {
+            directory.mkdirs();
+            File[] existing = directory.listFiles(File::isFile);
+            if (existing != null) {
+                Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+                for (File file : existing) {
+                    if (file.getName().endsWith(".tmp")) {
+                        // Left by a write that did not finish
+                        file.delete();
+                    } else {
+                        this.files.put(file.getName(), file.length());
+                        this.diskSize += file.length();
+                    }
+                }
+                evictFromDisk();
+            }
+        }
+    }
+
+    /**
+     * Computes the SHA-256 digest of an image
+     *
+     * @param image The image to digest
+     * @return The hexadecimal digest of its size, maximum luminosity and
+     *         pixels
+     *
+     */
+    public static String digest(PMG image) {
+        int[][] arr = image.getLuminosities();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(arr.length).putInt(arr.length == 0 ? 0 : arr[0].length).putInt(image.getMaxLuminosity());
+        digest.update(header.array());
+        ByteBuffer line = ByteBuffer.allocate(4 * (arr.length == 0 ? 0 : arr[0].length));
+        for (int[] row : arr) {
+            line.clear();
+            line.asIntBuffer().put(row);
+            digest.update(line.array(), 0, 4 * row.length);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Builds the key of a compression result
+     *
+     * @param image     The source image
+     * @param mode      The compression mode
+     * @param parameter The parameter of the compression, rho or epsilon
+     * @param format    The output format
+     * @return The key of the result
+     *
+     */
+    public static String key(PMG image, String mode, double parameter, String format) {
+        return digest(image) + "-" + mode + "-" + parameter + "-" + format;
+    }
+
+    /**
+     * Looks up a result and computes it on a miss. A concurrent miss on the
+     * same key waits for the result being computed instead of computing it
+     * again.
+     *
+     * @param key         The key of the result
+     * @param computation The computation of the result
+     * @return The cached or computed bytes
+     * @throws IOException If the computation fails
+     *
+     */
+    public byte[] get(String key, Computation computation) throws IOException {
+        byte[] value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = this.pending.putIfAbsent(key, future);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            // The result may have been stored between the lookup and the
+            // registration of the computation
+            value = lookup(key);
+            if (value == null) {
+                value = computation.compute();
+                put(key, value);
+            }
+            future.complete(value);
+            return value;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.pending.remove(key, future);
+        }
+    }
+
+    /**
+     * Waits for a result computed by another thread
+     *
+     * @param running The computation of the result
+     * @return The computed bytes
+     * @throws IOException If the computation failed or the wait was
+     *                     interrupted
+     *
+     */
+    private static byte[] await(CompletableFuture<byte[]> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the result");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Looks up a result, first in memory then on disk
+     *
+     * @param key The key of the result
+     * @return The cached bytes, or null on a miss
+     *
+     */
+    public byte[] get(String key) {
+        byte[] value = lookup(key);
+        synchronized (this) {
+            if (value == null) {
+                this.misses++;
+            } else {
+                this.hits++;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Looks up a result, first in memory then on disk, without counting the
+     * lookup
+     *
+     * @param key The key of the result
+     * @return The cached bytes, or null if there are none
+     *
+     */
+    private byte[] lookup(String key) {
+        synchronized (this) {
+            byte[] value = this.entries.get(key);
+            if (value != null) {
+                return value;
+            }
+            if (this.directory == null || this.files.get(key) == null) {
+                return null;
+            }
+        }
+
+        byte[] value = null;
+        File file = new File(this.directory, key);
+        try {
+            value = file.exists() ? Files.readAllBytes(file.toPath()) : null;
+        } catch (IOException e) {
+            System.err.println("Error reading the cache: " + e.getMessage());
+        }
+
+        if (value != null) {
+            synchronized (this) {
+                putInMemory(key, value);
+            }
+            // Keeps the access order for the eviction after a restart
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return value;
+    }
+
+    /**
+     * Stores a result in both tiers
+     *
+     * @param key   The key of the result
+     * @param value The bytes of the result
+     *
+     */
+    public void put(String key, byte[] value) {
+        synchronized (this) {
+            putInMemory(key, value);
+        }
+
+        if (this.directory != null && value.length <= this.diskCapacity) {
+            try {
+                File temp = File.createTempFile("cache-", ".tmp", this.directory);
+                Files.write(temp.toPath(), value);
+                Files.move(temp.toPath(), new File(this.directory, key).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error writing the cache: " + e.getMessage());
+                return;
+            }
+
+            synchronized (this) {
+                Long previous = this.files.put(key, (long) value.length);
+                this.diskSize += value.length - (previous == null ? 0 : previous);
+                evictFromDisk();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used files beyond the capacity of the
+     * on-disk tier
+     *
+     */
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = this.files.entrySet().iterator();
+        while (this.diskSize > this.diskCapacity && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            this.diskSize -= entry.getValue();
+            eldest.remove();
+            new File(this.directory, entry.getKey()).delete();
+        }
+    }
+
+    /**
+     * Stores a result in memory and evicts the least recently used entries
+     * beyond the capacity. Results larger than the capacity are not kept.
+     *
+     * @param key   The key of the result
+     * @param value The bytes of the result
+     *
+     */
+    private void putInMemory(String key, byte[] value) {
+        if (value.length > this.capacity) {
+            return;
+        }
+
+        byte[] previous = this.entries.put(key, value);
+        this.size += value.length - (previous == null ? 0 : previous.length);
+
+        Iterator<Map.Entry<String, byte[]>> eldest = this.entries.entrySet().iterator();
+        while (this.size > this.capacity && eldest.hasNext()) {
+            this.size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Describes the use of the cache
+     *
+     * @return The hit and miss counts and the in-memory and on-disk sizes
+     *
+     */
+    public synchronized String getStats() {
+        return "cacheHits=" + this.hits + " cacheMisses=" + this.misses + " cacheBytes=" + this.size
+                + (this.directory == null ? "" : " cacheDiskBytes=" + this.diskSize);
+    }
+}
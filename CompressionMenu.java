@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.util.Scanner;
 
@@ -6,6 +7,10 @@ public class CompressionMenu {
     // QuadTree instance to hold the image
     private QuadTree newImage;
 
+    // The file the reports are appended to, or null, and the path of the image
+    private String reportFile;
+    private String image;
+
     /**
      * Constructor to initialize the CompressionMenu with a QuadTree.
      *
@@ -15,6 +20,18 @@ public class CompressionMenu {
         this.newImage = Q;
     }
 
+    /**
+     * Enables the report of each compression, appended as a JSON line to a
+     * file like the ones of the batch pipeline.
+     *
+     * @param file  The file the reports are appended to.
+     * @param image The path of the image the tree was built from.
+     */
+    public void enableReport(String file, String image) {
+        this.reportFile = file;
+        this.image = image;
+    }
+
     /**
      * Method to start the compression menu.
      */
@@ -46,14 +63,21 @@ public class CompressionMenu {
         long startTime ;
         long endTime ;
         double elapsedTimeInSeconds;
+        CompressionReport report;
+        long begin;
+        long allocated;
         if (chooseCompression()) {
             System.out.println("PROCESSING LAMBDA COMPRESSION: ");
+            report = new CompressionReport(image == null ? newImage.getImageName() : image, "LAMBDA", 0);
             startTime = System.currentTimeMillis();
+            begin = System.nanoTime();
+            allocated = CompressionReport.getAllocatedBytes();
             newImage.lambdaCompressTree();
+            report.addPhase(CompressionReport.COMPRESS, begin, allocated);
             endTime = System.currentTimeMillis();
             elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
             try {
-                FileManager.saveQuatree(( newImage.getImageName().substring(0,newImage.getImageName().length()- 3)) + "txt", newImage.toString());
+                report.saveTree(newImage, ( newImage.getImageName().substring(0,newImage.getImageName().length()- 3)) + "txt");
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -61,13 +85,18 @@ public class CompressionMenu {
             newImage.toPgm("Lambda"+newImage.getImageName());
         } else {
             System.out.println("PROCESSING RHO COMPRESSION: ");
+            int rho = readRho();
+            report = new CompressionReport(image == null ? newImage.getImageName() : image, "RHO", rho);
             startTime = System.currentTimeMillis();
-            newImage.rhoCompressTree(readRho());
+            begin = System.nanoTime();
+            allocated = CompressionReport.getAllocatedBytes();
+            newImage.rhoCompressTree(rho);
+            report.addPhase(CompressionReport.COMPRESS, begin, allocated);
             endTime = System.currentTimeMillis();
             elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
             
              try {
-                FileManager.saveQuatree(( newImage.getImageName().substring(0,newImage.getImageName().length()- 3)) + "txt", newImage.toString());
+                report.saveTree(newImage, ( newImage.getImageName().substring(0,newImage.getImageName().length()- 3)) + "txt");
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -79,6 +108,17 @@ public class CompressionMenu {
         System.out.println("Custom Compression Result:");
         System.out.println("Initial Nodes: " + initialNodesLow);
         System.out.println("Final Nodes: " + newImage.getNbNodes());  
+        report.measureQuality(newImage).print();
+
+        if (reportFile != null) {
+            report.setInputBytes(new File(image).length());
+            report.setNodes(initialNodesLow, newImage.getNbNodes());
+            try {
+                report.append(reportFile);
+            } catch (IOException e) {
+                System.err.println("Error writing the report: " + e.getMessage());
+            }
+        }
         
     }
 
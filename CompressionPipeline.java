@@ -0,0 +1,550 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Batch compression pipeline with three stages linked by bounded queues: a
+ * reader stage loading the images, a stage building, compressing and
+ * serializing the trees, and a writer stage saving the results. Each stage
+ * has its own number of threads, so disk and CPU work overlap.
+ *
+ * Before building a tree, the compression stage estimates its memory and
+ * admits it against a heap budget shared by the images in flight: an image
+ * is built as a QuadTree if it fits, as a LinearQuadTree if only that fits,
+ * and otherwise waits for the images in flight to be saved. The loaded
+ * images count in the budget from their loading, as the trees keep them as
+ * their source until saved, and the readers wait while it is exceeded.
+ * On demand and with a single compression thread, the memory the built
+ * tree retains is measured and printed next to its estimate; it takes two
+ * full garbage collections per image, so it is off by default.
+ *
+ * A CompressionReport can be appended to a file for each image, as one JSON
+ * line.
+ *
+ */
+public class CompressionPipeline {
+
+    /**
+     * An image going through the pipeline
+     *
+     */
+    private static class Item {
+
+        private String path;
+        private PMG image;
+        private QuadTree tree;
+        private String serialized;
+        private long imageBytes;
+        private long reservedBytes;
+        private boolean admitted;
+        private CompressionReport report;
+
+        private Item(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * A stage of the pipeline and what it measured
+     *
+     */
+    private static class Stage {
+
+        private String name;
+        private int threads;
+        private AtomicLong busyNanos = new AtomicLong();
+        private AtomicLong processed = new AtomicLong();
+        private AtomicInteger running;
+
+        private Stage(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+            this.running = new AtomicInteger(threads);
+        }
+    }
+
+    /**
+     * The marker telling a stage thread that its input is over
+     *
+     */
+    private static final Item END = new Item(null);
+
+    /**
+     * The share of the maximum heap the trees in flight may take
+     *
+     */
+    private static final double HEAP_BUDGET_RATIO = 0.6;
+
+    /**
+     * The number of threads of each stage
+     *
+     */
+    private int readers;
+    private int compressors;
+    private int writers;
+
+    /**
+     * The capacity of the queues between the stages
+     *
+     */
+    private int queueCapacity;
+
+    /**
+     * The heap budget of the images in flight, the bytes reserved by them,
+     * the bytes of the loaded images waiting for their admission and the
+     * number of admitted images
+     *
+     */
+    private long heapBudget;
+    private long reservedBytes;
+    private long queuedBytes;
+    private int admitted;
+
+    /**
+     * The number of images routed to the linear representation and the
+     * number of times an image had to wait for memory
+     *
+     */
+    private int routedLinear;
+    private int deferred;
+
+    /**
+     * The file the reports are appended to, or null, and whether they include
+     * the SSIM
+     *
+     */
+    private String reportFile;
+    private boolean reportSsim;
+
+    /**
+     * Whether the heap retained by each built tree is measured
+     *
+     */
+    private boolean measureRetained;
+
+    /**
+     * Constructor of the pipeline
+     *
+     * @param readers       The number of threads loading images
+     * @param compressors   The number of threads building and compressing trees
+     * @param writers       The number of threads saving results
+     * @param queueCapacity The capacity of the queues between the stages
+     *
+     */
+    public CompressionPipeline(int readers, int compressors, int writers, int queueCapacity) {
+        this.readers = Math.max(readers, 1);
+        this.compressors = Math.max(compressors, 1);
+        this.writers = Math.max(writers, 1);
+        this.queueCapacity = Math.max(queueCapacity, 1);
+        this.heapBudget = (long) (Runtime.getRuntime().maxMemory() * HEAP_BUDGET_RATIO);
+    }
+
+    /**
+     * Enables the report of each image, appended as one JSON line to a file
+     *
+     * @param file The file the reports are appended to
+     * @param ssim true to measure the SSIM too, which costs several times the
+     *             other quality metrics
+     *
+     */
+    public void enableReport(String file, boolean ssim) {
+        this.reportFile = file;
+        this.reportSsim = ssim;
+    }
+
+    /**
+     * Enables the measure of the heap retained by each built tree, which
+     * forces a garbage collection before and after each build. It is only
+     * taken with a single compression thread, as other compressions would
+     * change the heap meanwhile.
+     *
+     */
+    public void enableRetainedMeasure() {
+        this.measureRetained = true;
+    }
+
+    /**
+     * Compresses a batch of images and prints the utilization of each stage
+     *
+     * @param images The paths of the images
+     * @param lambda true for the Lambda compression, false for the Rho one
+     * @param rho    The factor of the Rho compression
+     * @throws InterruptedException If the batch is interrupted
+     * @throws IOException          If the report file cannot be opened
+     *
+     */
+    public void run(List<String> images, boolean lambda, int rho) throws InterruptedException, IOException {
+        BlockingQueue<Item> paths = new ArrayBlockingQueue<>(images.size() + this.readers);
+        BlockingQueue<Item> loaded = new ArrayBlockingQueue<>(this.queueCapacity);
+        BlockingQueue<Item> compressed = new ArrayBlockingQueue<>(this.queueCapacity);
+        for (String path : images) {
+            paths.add(new Item(path));
+        }
+        for (int i = 0; i < this.readers; i++) {
+            paths.add(END);
+        }
+
+        String prefix = lambda ? "Lambda" : "RHO";
+        Stage read = new Stage("READ", this.readers);
+        Stage compress = new Stage("COMPRESS", this.compressors);
+        Stage write = new Stage("WRITE", this.writers);
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+
+        String mode = lambda ? "LAMBDA" : "RHO";
+        Writer report = this.reportFile == null ? null : new BufferedWriter(new FileWriter(this.reportFile, true));
+        CompressionReport.resetPeakHeap();
+        startStage(read, paths, loaded, this.compressors, threads, item -> {
+            item.report = new CompressionReport(item.path, mode, rho);
+            awaitRoom();
+            long begin = System.nanoTime();
+            long allocated = CompressionReport.getAllocatedBytes();
+            item.image = FileManager.loadImageParallel(item.path);
+            if (item.image == null || item.image.getLuminosities() == null) {
+                throw new IllegalArgumentException("invalid image " + item.path);
+            }
+            item.report.addPhase(CompressionReport.LOAD, begin, allocated);
+            try {
+                item.report.setInputBytes(Files.size(Paths.get(item.path)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            reserveImage(item, MemoryEstimate.getImageBytes(item.image.getLuminosities().length));
+        });
+        ConcurrentLinkedQueue<String> memoryReport = new ConcurrentLinkedQueue<>();
+        startStage(compress, loaded, compressed, this.writers, threads, item -> {
+            CompressionReport itemReport = item.report;
+            MemoryEstimate estimate;
+            boolean linear;
+            long reserved;
+            long retained = -1;
+            long nbNodes;
+            try {
+                estimate = new MemoryEstimate(item.image);
+                linear = admit(item, estimate, lambda, rho);
+                reserved = item.reservedBytes;
+                // The heap only changes because of this image if no other
+                // compression runs at the same time
+                boolean measure = this.measureRetained && this.compressors == 1;
+                long live = measure ? CompressionReport.getLiveHeapBytes() : 0;
+                long begin = System.nanoTime();
+                long phaseAllocated = CompressionReport.getAllocatedBytes();
+                if (linear) {
+                    LinearQuadTree tree = new LinearQuadTree(item.image);
+                    nbNodes = tree.getNbNodes();
+                    itemReport.addPhase(CompressionReport.BUILD, begin, phaseAllocated);
+                    retained = measure ? CompressionReport.getLiveHeapBytes() - live : -1;
+                    begin = System.nanoTime();
+                    phaseAllocated = CompressionReport.getAllocatedBytes();
+                    if (lambda) {
+                        tree.lambdaCompressTree();
+                    } else {
+                        tree.rhoCompressTree(rho);
+                    }
+                    item.tree = tree.toQuadTree(item.path);
+                } else {
+                    item.tree = new QuadTree(item.image, item.path, BuildMode.PYRAMID);
+                    nbNodes = item.tree.getNbNodes();
+                    itemReport.addPhase(CompressionReport.BUILD, begin, phaseAllocated);
+                    retained = measure ? CompressionReport.getLiveHeapBytes() - live : -1;
+                    begin = System.nanoTime();
+                    phaseAllocated = CompressionReport.getAllocatedBytes();
+                    if (lambda) {
+                        item.tree.lambdaCompressTree();
+                    } else {
+                        item.tree.rhoCompressTree(rho);
+                    }
+                }
+                itemReport.addPhase(CompressionReport.COMPRESS, begin, phaseAllocated);
+                itemReport.setRepresentation(linear ? "LINEAR" : "TREE");
+                itemReport.setNodes(nbNodes, item.tree.getNbNodes());
+
+                begin = System.nanoTime();
+                phaseAllocated = CompressionReport.getAllocatedBytes();
+                item.serialized = item.tree.toString();
+                itemReport.addPhase(CompressionReport.SERIALIZE, begin, phaseAllocated);
+
+                if (report != null) {
+                    begin = System.nanoTime();
+                    phaseAllocated = CompressionReport.getAllocatedBytes();
+                    itemReport.setQuality(new QualityMetrics(item.tree, item.image, this.reportSsim));
+                    itemReport.addPhase(CompressionReport.QUALITY, begin, phaseAllocated);
+                }
+                item.image = null;
+            } catch (RuntimeException | OutOfMemoryError e) {
+                release(item);
+                throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+            }
+            memoryReport.add(item.path + ": " + (linear ? "LINEAR" : "TREE") + ", " + toMegabytes(reserved)
+                    + " reserved, built " + nbNodes + " nodes for " + estimate.getNbNodes() + " estimated, "
+                    + (retained < 0 ? "?" : toMegabytes(retained)) + " retained after the build for "
+                    + toMegabytes(estimate.getBuiltBytes(linear)) + " estimated");
+        });
+        startStage(write, compressed, null, 0, threads, item -> {
+            String name = item.tree.getImageName();
+            String file = prefix + replaceExtension(name, "txt");
+            try {
+                long begin = System.nanoTime();
+                long allocated = CompressionReport.getAllocatedBytes();
+                FileManager.saveQuatree(file, item.serialized);
+                item.tree.toPgm(prefix + name);
+                item.report.addPhase(CompressionReport.SAVE, begin, allocated);
+                if (report != null) {
+                    item.report.setOutputBytes(Files.size(Paths.get(file)));
+                    String line = item.report.toJson();
+                    synchronized (report) {
+                        report.write(line);
+                        report.write(System.lineSeparator());
+                        report.flush();
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } finally {
+                release(item);
+            }
+        });
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (report != null) {
+                report.write(CompressionReport.toBatchJson(write.processed.get(), System.nanoTime() - start,
+                        CompressionReport.getPeakHeapBytes()));
+                report.write(System.lineSeparator());
+            }
+        } finally {
+            if (report != null) {
+                report.close();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        System.out.println("BATCH COMPLETED IN " + elapsed / 1000000000.0 + " SECONDS");
+        for (Stage stage : new Stage[] { read, compress, write }) {
+            System.out.println(stage.name + ": " + stage.threads + " thread(s), " + stage.processed.get()
+                    + " image(s), utilization " + String.format("%.1f", getUtilization(stage, elapsed)) + "%");
+        }
+        System.out.println("MEMORY: budget " + toMegabytes(this.heapBudget) + ", " + this.routedLinear
+                + " image(s) routed to the linear tree, " + this.deferred + " wait(s) for memory");
+        for (String line : memoryReport) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Waits, before loading an image, while the images in flight exceed the
+     * heap budget and some of them will release their memory
+     *
+     */
+    private synchronized void awaitRoom() {
+        while (this.reservedBytes >= this.heapBudget && this.admitted > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for memory", e);
+            }
+        }
+    }
+
+    /**
+     * Reserves the memory of a loaded image until it is saved
+     *
+     * @param item       The image
+     * @param imageBytes The heap bytes of its luminosities
+     *
+     */
+    private synchronized void reserveImage(Item item, long imageBytes) {
+        item.imageBytes = imageBytes;
+        this.reservedBytes += imageBytes;
+        this.queuedBytes += imageBytes;
+    }
+
+    /**
+     * Waits until the tree of an image and its serialized form fit in the
+     * heap budget next to the loaded images, and reserves their memory. The
+     * QuadTree is preferred, the LinearQuadTree is used if only it fits. If
+     * no admitted image will free memory, the loaded images waiting behind
+     * this one cannot either, so the image is admitted if it fits on its own
+     * and rejected otherwise.
+     *
+     * @param item     The image
+     * @param estimate The memory estimate of its tree
+     * @param lambda   true for the Lambda compression, false for the Rho one
+     * @param rho      The factor of the Rho compression
+     * @return true to build the LinearQuadTree, false for the QuadTree
+     *
+     */
+    private synchronized boolean admit(Item item, MemoryEstimate estimate, boolean lambda, int rho) {
+        long treeBytes = estimate.getTreeBytes() + estimate.getSerializedBytes();
+        long linearBytes = estimate.getLinearBytes(lambda, rho);
+        boolean waited = false;
+        while (true) {
+            long used = this.reservedBytes;
+            if (this.admitted == 0) {
+                used -= this.queuedBytes - item.imageBytes;
+            }
+
+            boolean linear;
+            if (used + treeBytes <= this.heapBudget) {
+                linear = false;
+            } else if (used + linearBytes <= this.heapBudget) {
+                linear = true;
+                this.routedLinear++;
+            } else if (this.admitted == 0) {
+                throw new IllegalStateException("image too large for the heap budget: " + item.path);
+            } else {
+                if (!waited) {
+                    this.deferred++;
+                    waited = true;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting for memory", e);
+                }
+                continue;
+            }
+
+            item.reservedBytes = linear ? linearBytes : treeBytes;
+            item.admitted = true;
+            this.reservedBytes += item.reservedBytes;
+            this.queuedBytes -= item.imageBytes;
+            this.admitted++;
+            return linear;
+        }
+    }
+
+    /**
+     * Releases the memory reserved for an image and wakes the images waiting
+     * for it
+     *
+     * @param item The image
+     *
+     */
+    private synchronized void release(Item item) {
+        if (item.admitted) {
+            this.admitted--;
+            item.admitted = false;
+        } else {
+            this.queuedBytes -= item.imageBytes;
+        }
+        this.reservedBytes -= item.reservedBytes + item.imageBytes;
+        item.reservedBytes = 0;
+        item.imageBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Replaces the extension of a file name, or appends one if it has none
+     *
+     * @param name      The file name
+     * @param extension The new extension, without the dot
+     * @return The file name with the new extension
+     *
+     */
+    private static String replaceExtension(String name, String extension) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'))) {
+            dot = name.length();
+        }
+        return name.substring(0, dot) + "." + extension;
+    }
+
+    /**
+     * Formats a number of bytes in megabytes
+     *
+     * @param bytes The number of bytes
+     * @return The formatted size
+     *
+     */
+    private static String toMegabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Starts the threads of a stage. Each one takes items from its input
+     * until the end marker, and the last one to stop sends one end marker per
+     * thread of the next stage, even if the thread ends on an error. An item
+     * that fails, including by running out of memory or stack, is reported
+     * and dropped.
+     *
+     * @param stage       The stage to start
+     * @param in          The input queue of the stage
+     * @param out         The output queue, or null for the last stage
+     * @param nextThreads The number of threads of the next stage
+     * @param threads     The list receiving the started threads
+     * @param work        The work done on each item
+     *
+     */
+    private static void startStage(Stage stage, BlockingQueue<Item> in, BlockingQueue<Item> out, int nextThreads,
+            List<Thread> threads, Consumer<Item> work) {
+        for (int t = 0; t < stage.threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    Item item = in.take();
+                    while (item != END) {
+                        long begin = System.nanoTime();
+                        boolean done = false;
+                        try {
+                            work.accept(item);
+                            done = true;
+                        } catch (RuntimeException | OutOfMemoryError | StackOverflowError e) {
+                            System.err.println("Error in stage " + stage.name + ": " + e.getMessage());
+                        }
+                        stage.busyNanos.addAndGet(System.nanoTime() - begin);
+                        if (done) {
+                            stage.processed.incrementAndGet();
+                            if (out != null) {
+                                out.put(item);
+                            }
+                        }
+                        item = in.take();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // Even if an error ends the thread, the next stage must
+                    // get its end markers or the batch would never finish
+                    if (stage.running.decrementAndGet() == 0 && out != null) {
+                        try {
+                            for (int i = 0; i < nextThreads; i++) {
+                                out.put(END);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, "pipeline-" + stage.name.toLowerCase() + "-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Computes the share of the time the threads of a stage spent working
+     *
+     * @param stage   The stage
+     * @param elapsed The duration of the batch in nanoseconds
+     * @return The utilization in percent
+     *
+     */
+    private static double getUtilization(Stage stage, long elapsed) {
+        return 100.0 * stage.busyNanos.get() / ((double) elapsed * stage.threads);
+    }
+}
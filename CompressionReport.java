@@ -0,0 +1,384 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Report of the compression of one image, written as one JSON line so that
+ * the runs of a batch or of the menus can be consumed by other tools. It
+ * holds the sizes, the node counts, the time of each phase, the bytes
+ * allocated by the threads that worked on the image and the quality
+ * metrics. The peak heap is a property of the whole process, not of an
+ * image, so it is written once per batch in a summary line.
+ *
+ * Everything but the quality is read from counters the JVM already keeps.
+ * The MSE, PSNR and maximum error take two passes over the leaves, and the
+ * SSIM, which costs several times more, is only measured on demand.
+ *
+ */
+public class CompressionReport {
+
+    /**
+     * The phases of a compression, in the order they run
+     *
+     */
+    public static final int LOAD = 0;
+    public static final int BUILD = 1;
+    public static final int COMPRESS = 2;
+    public static final int SERIALIZE = 3;
+    public static final int QUALITY = 4;
+    public static final int SAVE = 5;
+
+    /**
+     * The names of the phases in the report
+     *
+     */
+    private static final String[] PHASE_NAMES = { "load", "build", "compress", "serialize", "quality", "save" };
+
+    /**
+     * The path of the image, the compression mode and its factor, and the
+     * representation the tree was built with
+     *
+     */
+    private String image;
+    private String mode;
+    private int rho;
+    private String representation;
+
+    /**
+     * The sizes of the image file and of the saved tree
+     *
+     */
+    private long inputBytes;
+    private long outputBytes;
+
+    /**
+     * The number of nodes before and after the compression
+     *
+     */
+    private long initialNodes;
+    private long finalNodes;
+
+    /**
+     * The time of each phase in nanoseconds
+     *
+     */
+    private long[] phaseNanos = new long[PHASE_NAMES.length];
+
+    /**
+     * The bytes allocated by the threads working on the image, or -1 if the
+     * JVM does not measure them
+     *
+     */
+    private long allocatedBytes;
+
+    /**
+     * The quality metrics, null until measured
+     *
+     */
+    private QualityMetrics quality;
+
+    /**
+     * Constructor of the report
+     *
+     * @param image The path of the image
+     * @param mode  The compression mode, LAMBDA or RHO
+     * @param rho   The factor of the Rho compression
+     *
+     */
+    public CompressionReport(String image, String mode, int rho) {
+        this.image = image;
+        this.mode = mode;
+        this.rho = rho;
+        this.representation = "TREE";
+        this.allocatedBytes = getAllocatedBytes() < 0 ? -1 : 0;
+    }
+
+    /**
+     * Adds the time and the allocated bytes of a phase, measured from the
+     * values read when it began
+     *
+     * @param phase     The phase
+     * @param begin     The value of System.nanoTime() when the phase began
+     * @param allocated The value of getAllocatedBytes() when the phase began
+     *
+     */
+    public void addPhase(int phase, long begin, long allocated) {
+        this.phaseNanos[phase] += System.nanoTime() - begin;
+        if (this.allocatedBytes >= 0 && allocated >= 0) {
+            this.allocatedBytes += getAllocatedBytes() - allocated;
+        }
+    }
+
+    /**
+     * Sets the representation the tree was built with
+     *
+     * @param representation TREE or LINEAR
+     *
+     */
+    public void setRepresentation(String representation) {
+        this.representation = representation;
+    }
+
+    /**
+     * Sets the size of the image file
+     *
+     * @param inputBytes The size in bytes
+     *
+     */
+    public void setInputBytes(long inputBytes) {
+        this.inputBytes = inputBytes;
+    }
+
+    /**
+     * Sets the size of the saved tree
+     *
+     * @param outputBytes The size in bytes
+     *
+     */
+    public void setOutputBytes(long outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    /**
+     * Sets the number of nodes before and after the compression
+     *
+     * @param initialNodes The number of nodes of the built tree
+     * @param finalNodes   The number of nodes of the compressed tree
+     *
+     */
+    public void setNodes(long initialNodes, long finalNodes) {
+        this.initialNodes = initialNodes;
+        this.finalNodes = finalNodes;
+    }
+
+    /**
+     * Sets the quality metrics of the compressed tree
+     *
+     * @param quality The metrics
+     *
+     */
+    public void setQuality(QualityMetrics quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * Gets the compression ratio, the size of the image file over the size of
+     * the saved tree
+     *
+     * @return The ratio, or 0 if nothing was saved
+     *
+     */
+    public double getRatio() {
+        return this.outputBytes == 0 ? 0 : (double) this.inputBytes / this.outputBytes;
+    }
+
+    /**
+     * Writes the report as one JSON object
+     *
+     * @return The JSON line, without line separator
+     *
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"image\":");
+        appendString(json, this.image);
+        json.append(",\"mode\":");
+        appendString(json, this.mode);
+        json.append(",\"rho\":").append(this.rho);
+        json.append(",\"representation\":");
+        appendString(json, this.representation);
+        json.append(",\"inputBytes\":").append(this.inputBytes);
+        json.append(",\"outputBytes\":").append(this.outputBytes);
+        json.append(",\"initialNodes\":").append(this.initialNodes);
+        json.append(",\"finalNodes\":").append(this.finalNodes);
+        json.append(",\"ratio\":");
+        appendNumber(json, getRatio());
+        json.append(",\"phaseMillis\":{");
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            json.append(i == 0 ? "\"" : ",\"").append(PHASE_NAMES[i]).append("\":");
+            appendNumber(json, this.phaseNanos[i] / 1000000.0);
+        }
+        json.append("},\"allocatedBytes\":").append(this.allocatedBytes);
+        json.append(",\"mse\":");
+        appendNumber(json, this.quality == null ? Double.NaN : this.quality.getMse());
+        json.append(",\"psnr\":");
+        appendNumber(json, this.quality == null ? Double.NaN : this.quality.getPsnr());
+        json.append(",\"maxError\":").append(this.quality == null ? "null" : this.quality.getMaxError());
+        json.append(",\"ssim\":");
+        appendNumber(json, this.quality == null ? Double.NaN : this.quality.getSsim());
+        return json.append('}').toString();
+    }
+
+    /**
+     * Serializes a compressed tree and saves it, timing both phases and
+     * recording the size of the saved tree
+     *
+     * @param tree The compressed tree
+     * @param file The file the tree is saved to
+     * @throws IOException If the file cannot be written
+     *
+     */
+    public void saveTree(QuadTree tree, String file) throws IOException {
+        long begin = System.nanoTime();
+        long allocated = getAllocatedBytes();
+        String serialized = tree.toString();
+        addPhase(SERIALIZE, begin, allocated);
+        begin = System.nanoTime();
+        allocated = getAllocatedBytes();
+        FileManager.saveQuatree(file, serialized);
+        addPhase(SAVE, begin, allocated);
+        this.outputBytes = new File(file).length();
+    }
+
+    /**
+     * Measures every quality metric of a compressed tree against its source
+     * image, timing it
+     *
+     * @param tree The compressed tree
+     * @return The quality metrics, also kept in the report
+     *
+     */
+    public QualityMetrics measureQuality(QuadTree tree) {
+        long begin = System.nanoTime();
+        long allocated = getAllocatedBytes();
+        this.quality = new QualityMetrics(tree, tree.getSource());
+        addPhase(QUALITY, begin, allocated);
+        return this.quality;
+    }
+
+    /**
+     * Appends the report as one JSON line to a file, for the runs that write
+     * a single report at a time
+     *
+     * @param file The file the report is appended to
+     * @throws IOException If the file cannot be written
+     *
+     */
+    public void append(String file) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(file, true))) {
+            writer.write(toJson());
+            writer.write(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Appends a number, null for NaN and infinities which JSON cannot hold
+     *
+     * @param json  The JSON being written
+     * @param value The number
+     *
+     */
+    private static void appendNumber(StringBuilder json, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            json.append("null");
+        } else {
+            json.append(value);
+        }
+    }
+
+    /**
+     * Appends a quoted string, escaping quotes, backslashes and control
+     * characters
+     *
+     * @param json  The JSON being written
+     * @param value The string
+     *
+     */
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Gets the bytes allocated so far by the current thread
+     *
+     * @return The allocated bytes, or -1 if the JVM does not measure them
+     *
+     */
+    public static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the summary of a batch as one JSON object
+     *
+     * @param images        The number of images compressed
+     * @param elapsedNanos  The duration of the batch in nanoseconds
+     * @param peakHeapBytes The process-wide peak heap during the batch
+     * @return The JSON line, without line separator
+     *
+     */
+    public static String toBatchJson(long images, long elapsedNanos, long peakHeapBytes) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"batch\":true,\"images\":").append(images);
+        json.append(",\"elapsedMillis\":");
+        appendNumber(json, elapsedNanos / 1000000.0);
+        json.append(",\"peakHeapBytes\":").append(peakHeapBytes);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Gets the heap in use after a garbage collection, to measure the
+     * memory retained by what is still referenced. The measure is only
+     * meaningful if the JVM honors System.gc() and no other thread changes
+     * the heap meanwhile.
+     *
+     * @return The live heap in bytes
+     *
+     */
+    public static long getLiveHeapBytes() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Resets the peak usage of the heap memory pools, so the next reading of
+     * the peak heap covers only what runs from now on
+     *
+     */
+    public static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Gets the process-wide peak heap usage since the JVM started or the last
+     * reset, the sum of the peaks of the heap memory pools. The pools may
+     * reach their peaks at different times, so it is an upper bound of the
+     * actual peak.
+     *
+     * @return The peak heap in bytes
+     *
+     */
+    public static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
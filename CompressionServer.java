@@ -0,0 +1,476 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running compression server listening on the loopback interface, so
+ * that a single warmed-up JVM serves every image.
+ *
+ * Each connection sends one request line and receives one response:
+ * <pre>
+ * COMPRESS &lt;LAMBDA|RHO&gt; &lt;rho&gt; &lt;PGM|TREE&gt; FILE &lt;path&gt;
+ * COMPRESS &lt;LAMBDA|RHO&gt; &lt;rho&gt; &lt;PGM|TREE&gt; INLINE &lt;nbytes&gt;   followed by the PGM bytes
+ * STATS
+ * SHUTDOWN
+ * </pre>
+ * A compression is answered by "OK &lt;nbytes&gt;" and the output bytes, a
+ * full queue by "BUSY &lt;queue depth&gt;" and a failure by "ERROR &lt;message&gt;".
+ * Connections are handed to a small pool of readers as soon as they are
+ * accepted, so a slow client never holds up the accepting thread. The
+ * readers answer STATS and SHUTDOWN themselves and only hand the
+ * compressions to the bounded pool of workers, so the server can still be
+ * observed and stopped while the workers are saturated, and an idle client
+ * never holds a worker.
+ *
+ */
+public class CompressionServer {
+
+    /**
+     * The default port of the server
+     *
+     */
+    public static final int DEFAULT_PORT = 7878;
+
+    /**
+     * The number of latencies kept to compute the percentiles
+     *
+     */
+    private static final int LATENCY_WINDOW = 1024;
+
+    /**
+     * The time a client has to send its request line, in milliseconds
+     *
+     */
+    private static final int READ_TIMEOUT = 5000;
+
+    /**
+     * The number of readers, and the number of accepted connections that
+     * can wait for one
+     *
+     */
+    private static final int NB_READERS = 4;
+    private static final int READER_QUEUE_CAPACITY = 64;
+
+    /**
+     * The largest image body an INLINE request may send, in bytes
+     *
+     */
+    public static final int MAX_INLINE_BYTES = 64 << 20;
+
+    /**
+     * The longest request line a client may send, in bytes
+     *
+     */
+    public static final int MAX_REQUEST_LINE_BYTES = 4096;
+
+    /**
+     * The port the server listens on
+     *
+     */
+    private int port;
+
+    /**
+     * The readers of the request lines, fed by a bounded queue
+     *
+     */
+    private ThreadPoolExecutor readers;
+
+    /**
+     * The workers running the compressions, fed by a bounded queue
+     *
+     */
+    private ThreadPoolExecutor workers;
+
+    /**
+     * The number of compressions currently running
+     *
+     */
+    private AtomicInteger inFlight;
+
+    /**
+     * The number of compressions completed, failed and rejected since the
+     * start
+     *
+     */
+    private AtomicLong completed;
+    private AtomicLong failed;
+    private AtomicLong rejected;
+
+    /**
+     * The latest latencies in milliseconds, from enqueue to response, as a
+     * ring buffer
+     *
+     */
+    private long[] latencies;
+    private long nbLatencies;
+
+    /**
+     * The cache of the results already computed, or null if there is none
+     *
+     */
+    private CompressionCache cache;
+
+    /**
+     * Whether the server keeps accepting connections
+     *
+     */
+    private volatile boolean running;
+
+    /**
+     * The listening socket, closed by a SHUTDOWN request to stop accepting
+     *
+     */
+    private volatile ServerSocket server;
+
+    /**
+     * Constructor of the server
+     *
+     * @param port          The port to listen on
+     * @param nbWorkers     The number of compressions running at the same time
+     * @param queueCapacity The number of compressions that can wait for a worker
+     * @param cache         The cache of the results, or null for none
+     *
+     */
+    public CompressionServer(int port, int nbWorkers, int queueCapacity, CompressionCache cache) {
+        this.port = port;
+        this.cache = cache;
+        this.readers = new ThreadPoolExecutor(NB_READERS, NB_READERS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(READER_QUEUE_CAPACITY));
+        this.workers = new ThreadPoolExecutor(nbWorkers, nbWorkers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity));
+        this.inFlight = new AtomicInteger();
+        this.completed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.latencies = new long[LATENCY_WINDOW];
+        this.nbLatencies = 0;
+    }
+
+    /**
+     * Accepts connections until a SHUTDOWN request is received
+     *
+     * @throws IOException If the server socket cannot be opened
+     *
+     */
+    public void start() throws IOException {
+        this.running = true;
+
+        try (ServerSocket server = new ServerSocket(this.port, 50, InetAddress.getLoopbackAddress())) {
+            this.server = server;
+            System.out.println("COMPRESSION SERVER LISTENING ON PORT " + this.port);
+            while (this.running) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (!this.running) {
+                        break;
+                    }
+                    throw e;
+                }
+
+                try {
+                    this.readers.execute(() -> dispatch(socket));
+                } catch (RejectedExecutionException e) {
+                    busy(socket);
+                }
+            }
+        } finally {
+            this.readers.shutdown();
+            this.workers.shutdown();
+        }
+    }
+
+    /**
+     * Reads the request of a connection on a reader, answers the STATS and
+     * SHUTDOWN requests and hands the compressions to the workers
+     *
+     * @param socket The connection of the client
+     *
+     */
+    private void dispatch(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String[] request = readLine(in).trim().split("\\s+");
+
+            if (request[0].equals("STATS")) {
+                reply(socket, getStats());
+            } else if (request[0].equals("SHUTDOWN")) {
+                this.running = false;
+                reply(socket, "OK");
+                this.server.close();
+            } else if (request[0].equals("COMPRESS") && request.length == 6) {
+                if (!request[1].equals("LAMBDA") && !request[1].equals("RHO")) {
+                    reply(socket, "ERROR INVALID MODE");
+                    return;
+                }
+                if (!request[3].equals("PGM") && !request[3].equals("TREE")) {
+                    reply(socket, "ERROR INVALID FORMAT");
+                    return;
+                }
+                if (!request[4].equals("FILE") && !request[4].equals("INLINE")) {
+                    reply(socket, "ERROR INVALID SOURCE");
+                    return;
+                }
+                byte[] body = null;
+                if (request[4].equals("INLINE")) {
+                    int size = Integer.parseInt(request[5]);
+                    if (size < 0 || size > MAX_INLINE_BYTES) {
+                        reply(socket, "ERROR INLINE SIZE MUST BE BETWEEN 0 AND " + MAX_INLINE_BYTES);
+                        return;
+                    }
+                    body = in.readNBytes(size);
+                    if (body.length < size) {
+                        reply(socket, "ERROR TRUNCATED IMAGE");
+                        return;
+                    }
+                }
+
+                byte[] inline = body;
+                long enqueued = System.nanoTime();
+                try {
+                    this.workers.execute(() -> handle(socket, request, inline, enqueued));
+                } catch (RejectedExecutionException e) {
+                    busy(socket);
+                }
+            } else {
+                reply(socket, "ERROR INVALID REQUEST");
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                reply(socket, "ERROR " + e.getMessage());
+            } catch (IOException ignored) {
+                // The client is gone, nothing left to answer
+            }
+        }
+    }
+
+    /**
+     * Rejects a connection because the server is saturated
+     *
+     * @param socket The connection of the client
+     *
+     */
+    private void busy(Socket socket) {
+        this.rejected.incrementAndGet();
+        try {
+            reply(socket, "BUSY " + this.workers.getQueue().size());
+        } catch (IOException ignored) {
+            // The client is gone, nothing left to answer
+        }
+    }
+
+    /**
+     * Runs a compression request on a worker and streams back its output
+     *
+     * @param socket   The connection of the client
+     * @param request  The words of the request line
+     * @param body     The PGM bytes of an INLINE request, null otherwise
+     * @param enqueued The time the request was queued, in nanoseconds
+     *
+     */
+    private void handle(Socket socket, String[] request, byte[] body, long enqueued) {
+        this.inFlight.incrementAndGet();
+        boolean succeeded = false;
+        try {
+            boolean lambda = request[1].equals("LAMBDA");
+            int rho = Integer.parseInt(request[2]);
+            boolean tree = request[3].equals("TREE");
+            PMG image;
+            String name;
+
+            if (body != null) {
+                image = FileManager.loadImage(new ByteArrayInputStream(body));
+                name = "inline.pgm";
+            } else {
+                image = FileManager.loadImage(request[5]);
+                name = request[5];
+            }
+
+            if (image == null || image.getLuminosities() == null) {
+                reply(socket, "ERROR INVALID IMAGE");
+            } else if (!lambda && (rho < 1 || rho > 100)) {
+                reply(socket, "ERROR INVALID RHO VALUE");
+            } else {
+                byte[] output = compressCached(image, name, lambda, rho, tree);
+                OutputStream out = socket.getOutputStream();
+                out.write(("OK " + output.length + "\n").getBytes(StandardCharsets.UTF_8));
+                out.write(output);
+                out.flush();
+                socket.close();
+                succeeded = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                reply(socket, "ERROR " + e.getMessage());
+            } catch (IOException ignored) {
+                // The client is gone, nothing left to answer
+            }
+        } finally {
+            this.inFlight.decrementAndGet();
+            (succeeded ? this.completed : this.failed).incrementAndGet();
+            recordLatency((System.nanoTime() - enqueued) / 1000000);
+        }
+    }
+
+    /**
+     * Answers a compression from the cache, computing and storing it on a
+     * miss, once for concurrent requests of the same result
+     *
+     * @param image  The image to compress
+     * @param name   The name of the image
+     * @param lambda true for the Lambda compression, false for the Rho one
+     * @param rho    The factor of the Rho compression
+     * @param tree   true to return the parenthesized tree, false for a PGM image
+     * @return The serialized result
+     * @throws IOException If the serialization fails
+     *
+     */
+    private byte[] compressCached(PMG image, String name, boolean lambda, int rho, boolean tree) throws IOException {
+        if (this.cache == null) {
+            return compress(image, name, lambda, rho, tree);
+        }
+
+        String key = CompressionCache.key(image, lambda ? "LAMBDA" : "RHO", lambda ? 0 : rho, tree ? "TREE" : "PGM");
+        return this.cache.get(key, () -> compress(image, name, lambda, rho, tree));
+    }
+
+    /**
+     * Compresses an image and serializes the result
+     *
+     * @param image  The image to compress
+     * @param name   The name of the image
+     * @param lambda true for the Lambda compression, false for the Rho one
+     * @param rho    The factor of the Rho compression
+     * @param tree   true to return the parenthesized tree, false for a PGM image
+     * @return The serialized result
+     * @throws IOException If the serialization fails
+     *
+     */
+    public static byte[] compress(PMG image, String name, boolean lambda, int rho, boolean tree) throws IOException {
+        QuadTree quadTree = new QuadTree(image, name, BuildMode.PYRAMID);
+
+        if (lambda) {
+            quadTree.lambdaCompressTree();
+        } else {
+            quadTree.rhoCompressTree(rho);
+        }
+
+        if (tree) {
+            return quadTree.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            FileManager.writeImage(quadTree, writer);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Records the latency of a request in the ring buffer
+     *
+     * @param millis The latency in milliseconds
+     *
+     */
+    private synchronized void recordLatency(long millis) {
+        this.latencies[(int) (this.nbLatencies % LATENCY_WINDOW)] = millis;
+        this.nbLatencies++;
+    }
+
+    /**
+     * Describes the load of the server
+     *
+     * @return The queue depth, the in-flight, completed and failed counts and the
+     *         latency percentiles of the latest requests
+     *
+     */
+    public synchronized String getStats() {
+        long[] sorted = Arrays.copyOf(this.latencies, (int) Math.min(this.nbLatencies, LATENCY_WINDOW));
+        Arrays.sort(sorted);
+
+        return "OK queue=" + this.workers.getQueue().size()
+                + " inflight=" + this.inFlight.get()
+                + " completed=" + this.completed.get()
+                + " failed=" + this.failed.get()
+                + " rejected=" + this.rejected.get()
+                + " p50=" + percentile(sorted, 50)
+                + "ms p90=" + percentile(sorted, 90)
+                + "ms p99=" + percentile(sorted, 99) + "ms"
+                + (this.cache == null ? "" : " " + this.cache.getStats());
+    }
+
+    /**
+     * Gets a percentile of sorted values with the nearest-rank method
+     *
+     * @param sorted The sorted values
+     * @param p      The percentile, between 1 and 100
+     * @return The percentile, or 0 if there is no value
+     *
+     */
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Reads a line terminated by a newline without buffering past it. The
+     * read timeout only bounds each read, so the length is capped too.
+     *
+     * @param in The input of the connection
+     * @return The line without its terminator
+     * @throws IOException If the connection fails or the line is longer than
+     *                     MAX_REQUEST_LINE_BYTES
+     *
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = in.read();
+
+        while (b != -1 && b != '\n') {
+            if (line.size() == MAX_REQUEST_LINE_BYTES) {
+                throw new IOException("REQUEST LINE LONGER THAN " + MAX_REQUEST_LINE_BYTES + " BYTES");
+            }
+            line.write(b);
+            b = in.read();
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends a one-line answer and closes the connection
+     *
+     * @param socket The connection of the client
+     * @param answer The answer
+     * @throws IOException If the connection fails
+     *
+     */
+    private static void reply(Socket socket, String answer) throws IOException {
+        try (Socket s = socket) {
+            OutputStream out = s.getOutputStream();
+            out.write((answer + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+}
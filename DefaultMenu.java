@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 
 public class DefaultMenu {
@@ -9,6 +10,11 @@ public class DefaultMenu {
     private QuadTree newImageLambda;
     private QuadTree newImageRho;
 
+    // Reports of both compressions, and the file they are appended to, or null
+    private CompressionReport lambdaReport;
+    private CompressionReport rhoReport;
+    private String reportFile;
+
     /**
      * Constructor to initialize DefaultMenu with an image file and ρ factor.
      *
@@ -17,8 +23,29 @@ public class DefaultMenu {
      */
     public DefaultMenu(String image, int rho) {
         this.rho = rho;
+        this.lambdaReport = new CompressionReport(image, "LAMBDA", 0);
+        this.rhoReport = new CompressionReport(image, "RHO", rho);
+        this.lambdaReport.setInputBytes(new File(image).length());
+        this.rhoReport.setInputBytes(new File(image).length());
+
+        long begin = System.nanoTime();
+        long allocated = CompressionReport.getAllocatedBytes();
         this.newImageLambda = new QuadTree(image);
+        this.lambdaReport.addPhase(CompressionReport.BUILD, begin, allocated);
+        begin = System.nanoTime();
+        allocated = CompressionReport.getAllocatedBytes();
         this.newImageRho = new QuadTree(image);
+        this.rhoReport.addPhase(CompressionReport.BUILD, begin, allocated);
+    }
+
+    /**
+     * Enables the report of both compressions, appended as JSON lines to a
+     * file like the ones of the batch pipeline.
+     *
+     * @param file The file the reports are appended to.
+     */
+    public void enableReport(String file) {
+        this.reportFile = file;
     }
 
     /**
@@ -30,11 +57,14 @@ public class DefaultMenu {
         System.out.println("PROCESSING LAMBDA COMPRESSION: ");
         int initialNodesLow = newImageLambda.getNbNodes();
         long startTime = System.currentTimeMillis();
+        long begin = System.nanoTime();
+        long allocated = CompressionReport.getAllocatedBytes();
         newImageLambda.lambdaCompressTree();
+        lambdaReport.addPhase(CompressionReport.COMPRESS, begin, allocated);
         long endTime = System.currentTimeMillis();
         double elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
          try {
-               FileManager.saveQuatree((("Lambda"+ newImageLambda.getImageName().substring(0,newImageLambda.getImageName().length()- 3))) + "txt", newImageLambda.toString());
+               lambdaReport.saveTree(newImageLambda, (("Lambda"+ newImageLambda.getImageName().substring(0,newImageLambda.getImageName().length()- 3))) + "txt");
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -45,18 +75,23 @@ public class DefaultMenu {
         System.out.println("Custom Compression Result:");
         System.out.println("Initial Nodes: " + initialNodesLow);
         System.out.println("Final Nodes: " + newImageLambda.getNbNodes());
-    
-        
+        lambdaReport.measureQuality(newImageLambda).print();
+        writeReport(lambdaReport, initialNodesLow, newImageLambda.getNbNodes());
+
+
 
         // RHO compression
         System.out.println("PROCESSING RHO COMPRESSION: ");
         initialNodesLow = newImageRho.getNbNodes();
         startTime = System.currentTimeMillis();
+        begin = System.nanoTime();
+        allocated = CompressionReport.getAllocatedBytes();
         newImageRho.rhoCompressTree(this.rho);
+        rhoReport.addPhase(CompressionReport.COMPRESS, begin, allocated);
         endTime = System.currentTimeMillis();
         elapsedTimeInSeconds = (endTime - startTime) / 1000.0;
         try {
-            FileManager.saveQuatree(( ("RHO"+newImageRho.getImageName().substring(0,newImageRho.getImageName().length()- 3))) + "txt", newImageRho.toString());
+            rhoReport.saveTree(newImageRho, ( ("RHO"+newImageRho.getImageName().substring(0,newImageRho.getImageName().length()- 3))) + "txt");
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -67,5 +102,26 @@ public class DefaultMenu {
         System.out.println("Custom Compression Result:");
         System.out.println("Initial Nodes: " + initialNodesLow);
         System.out.println("Final Nodes: " + newImageRho.getNbNodes());        
+        rhoReport.measureQuality(newImageRho).print();
+        writeReport(rhoReport, initialNodesLow, newImageRho.getNbNodes());
+    }
+
+    /**
+     * Appends the report of a compression to the report file, if enabled.
+     *
+     * @param report       The report of the compression.
+     * @param initialNodes The number of nodes before the compression.
+     * @param finalNodes   The number of nodes after the compression.
+     */
+    private void writeReport(CompressionReport report, int initialNodes, int finalNodes) {
+        if (this.reportFile == null) {
+            return;
+        }
+        report.setNodes(initialNodes, finalNodes);
+        try {
+            report.append(this.reportFile);
+        } catch (IOException e) {
+            System.err.println("Error writing the report: " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
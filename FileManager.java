@@ -1,8 +1,21 @@
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.stream.IntStream;
 
 /**
  * Utility class for reading and writing images in PGM (Portable Gray Map) format.
@@ -10,6 +23,13 @@ import java.util.Scanner;
  */
 public class FileManager{
 
+    /**
+     * The number of chunks of the body per available processor, for the
+     * parallel loader
+     *
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
     /**
      * Checks if the image format is correct.
      *
@@ -60,62 +80,500 @@ public class FileManager{
      */
     public static PMG loadImage(String path) {
         try (Scanner scanner = new Scanner(new File(path))) {
-            int width;
-            int height;
-            int maxLuminosity = -1 ;
-            PMG newImage;
-            int[][] tQuadtree = null;
-            String magicNumber = scanner.nextLine();
-            String comment = scanner.nextLine(); // Reading the comment
-
-            // Check if the file starts with the correct magic number
-            if (scanner.hasNextInt()) {
-                width = scanner.nextInt();
-                height = scanner.nextInt();
-                maxLuminosity = scanner.nextInt();
-
-                // Check if the file format is correct
-                if (isGoodFormat(magicNumber, width, height)) {
-
-                    // Initialize the 2D array based on the size read from the file
-                    tQuadtree = new int[width][height];
-                    boolean isGoodValue = true;
-                    int i = 0;
-                    int j = 0;
-                    int nbElements = 0;
-                    int value;
-
-                    // Read values from the file and populate the 2D array
-                    while (scanner.hasNextInt() && isGoodValue && i < width && (nbElements < (width * height))) {
-                        while (j < height && isGoodValue) {
-                            value = scanner.nextInt();
-                            isGoodValue = (value >= 0) && (value <= maxLuminosity);
-                            if (isGoodValue) {
-                                tQuadtree[i][j] = value;
-                                j++;
-                                nbElements++;
-                            } else {
-                                System.out.println("A value in the file exceeds the maximum luminosity.");
-                            }
-                        }
+            return loadImage(scanner);
+        } catch (FileNotFoundException e) {
+            System.err.println("Error reading the file: " + e.getMessage());
+            return null;
+        }
+    }
 
-                        j = 0;
-                        i++;
-                    }
+    /**
+     * Reads an image in PGM format from a stream, which is closed afterwards.
+     *
+     * @param in The stream holding the image.
+     * @return The image read from the stream.
+     */
+    public static PMG loadImage(InputStream in) {
+        try (Scanner scanner = new Scanner(in)) {
+            return loadImage(scanner);
+        }
+    }
+
+    /**
+     * Reads an image in PGM format from a scanner.
+     *
+     * @param scanner The scanner positioned at the start of the image.
+     * @return The image read, whose luminosities are null if the format is incorrect.
+     */
+    private static PMG loadImage(Scanner scanner) {
+        int width;
+        int height;
+        int maxLuminosity = -1 ;
+        PMG newImage;
+        int[][] tQuadtree = null;
+        String magicNumber = scanner.nextLine();
+        String comment = scanner.nextLine(); // Reading the comment
 
-                    // Check if the number of elements matches the expected size
-                    if (nbElements < (width * height)) {
-                        System.out.println("Value missing in your file!");
+        // Check if the file starts with the correct magic number
+        if (scanner.hasNextInt()) {
+            width = scanner.nextInt();
+            height = scanner.nextInt();
+            maxLuminosity = scanner.nextInt();
+
+            // Check if the file format is correct
+            if (isGoodFormat(magicNumber, width, height)) {
+
+                // Initialize the 2D array based on the size read from the file
+                tQuadtree = new int[width][height];
+                boolean isGoodValue = true;
+                int i = 0;
+                int j = 0;
+                int nbElements = 0;
+                int value;
+
+                // Read values from the file and populate the 2D array
+                while (scanner.hasNextInt() && isGoodValue && i < width && (nbElements < (width * height))) {
+                    while (j < height && isGoodValue) {
+                        value = scanner.nextInt();
+                        isGoodValue = (value >= 0) && (value <= maxLuminosity);
+                        if (isGoodValue) {
+                            tQuadtree[i][j] = value;
+                            j++;
+                            nbElements++;
+                        } else {
+                            System.out.println("A value in the file exceeds the maximum luminosity.");
+                        }
                     }
-                } 
+
+                    j = 0;
+                    i++;
+                }
+
+                // Check if the number of elements matches the expected size
+                if (nbElements < (width * height)) {
+                    System.out.println("Value missing in your file!");
+                }
+            } 
+        }
+        // Create a QuadtreePrefab object with the loaded data and return it
+        newImage = new PMG(tQuadtree,maxLuminosity);
+        return newImage;
+    }
+
+    /**
+     * Reads an image in PGM format like loadImage, parsing its body on
+     * several threads. The file is mapped in memory and the body is cut into
+     * chunks at whitespace. A first parallel pass counts the tokens of each
+     * chunk, which gives the index of the first pixel of every chunk, and a
+     * second one parses the chunks straight into the pixels. The validation
+     * matches loadImage: the same messages, and the same exceptions where its
+     * Scanner throws, for a bad height or maximum luminosity, a token that is
+     * not an integer inside a line, or a file ending inside a line.
+     *
+     * @param path The path of the file to read.
+     * @return The image read, or null in case of a file reading error.
+     */
+    public static PMG loadImageParallel(String path) {
+        ByteBuffer data;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            System.err.println("Error reading the file: " + e.getMessage());
+            return null;
+        }
+
+        // The magic number and the comment are the first two lines
+        int[] position = { 0 };
+        String magicNumber = nextLine(data, position);
+        nextLine(data, position);
+
+        // Like loadImage, only a bad width gives an empty image, a bad
+        // height or maximum luminosity fails as Scanner.nextInt does
+        Integer width = nextInt(data, position, false);
+        if (width == null) {
+            return new PMG(null, -1);
+        }
+        int height = nextInt(data, position, true);
+        int maxLuminosity = nextInt(data, position, true);
+        if (!isGoodFormat(magicNumber, width, height)) {
+            return new PMG(null, maxLuminosity);
+        }
+
+        int nbPixels = width * height;
+        int[][] pixels = new int[width][height];
+        int[] bounds = chunkBounds(data, position[0], CHUNKS_PER_THREAD * Runtime.getRuntime().availableProcessors());
+        int nbChunks = bounds.length - 1;
+
+        int[] firstPixels = new int[nbChunks + 1];
+        IntStream.range(0, nbChunks).parallel()
+                .forEach(c -> firstPixels[c + 1] = countTokens(data, bounds[c], bounds[c + 1]));
+        for (int c = 0; c < nbChunks; c++) {
+            firstPixels[c + 1] += firstPixels[c];
+        }
+
+        // Each chunk reports its first bad value: out of range, or not a number
+        long[] firstErrors = new long[nbChunks];
+        int max = maxLuminosity;
+        IntStream.range(0, nbChunks).parallel().forEach(c -> firstErrors[c] = parseChunk(data, bounds[c],
+                bounds[c + 1], firstPixels[c], pixels, height, nbPixels, max));
+
+        // Like loadImage, reading stops at the first bad value
+        long firstError = Long.MAX_VALUE;
+        for (long error : firstErrors) {
+            firstError = Math.min(firstError, error);
+        }
+        int nbElements = Math.min(firstPixels[nbChunks], nbPixels);
+        if (firstError != Long.MAX_VALUE) {
+            int index = (int) (firstError >> 1);
+            if ((firstError & 1) == 1) {
+                System.out.println("A value in the file exceeds the maximum luminosity.");
+            } else if (index % height != 0) {
+                // loadImage only checks for a number at the start of a line
+                throw new InputMismatchException("not an integer: pixel " + index);
             }
-            // Create a QuadtreePrefab object with the loaded data and return it
-            newImage = new PMG(tQuadtree,maxLuminosity);
-            return newImage;
-        } catch (FileNotFoundException e) {
+            for (int k = index; k < nbElements; k++) {
+                pixels[k / height][k % height] = 0;
+            }
+            nbElements = index;
+        }
+        if (firstError == Long.MAX_VALUE && nbElements < nbPixels && nbElements % height != 0) {
+            throw new NoSuchElementException("file ends inside a line");
+        }
+        if (nbElements < nbPixels) {
+            System.out.println("Value missing in your file!");
+        }
+
+        return new PMG(pixels, maxLuminosity);
+    }
+
+    /**
+     * Cuts a range of the file into chunks that all end at a whitespace
+     *
+     * @param data     The content of the file.
+     * @param start    The first byte of the range.
+     * @param nbChunks The number of chunks wanted.
+     * @return The bounds of the chunks, from start to the end of the data.
+     */
+    private static int[] chunkBounds(ByteBuffer data, int start, int nbChunks) {
+        int end = data.limit();
+        int[] bounds = new int[nbChunks + 1];
+        bounds[0] = start;
+        for (int c = 1; c < nbChunks; c++) {
+            int bound = Math.max(bounds[c - 1], start + (int) ((long) (end - start) * c / nbChunks));
+            while (bound < end && !isWhitespace(data.get(bound))) {
+                bound++;
+            }
+            bounds[c] = bound;
+        }
+        bounds[nbChunks] = end;
+        return bounds;
+    }
+
+    /**
+     * Counts the tokens of a chunk
+     *
+     * @param data  The content of the file.
+     * @param start The first byte of the chunk.
+     * @param end   The byte after the chunk.
+     * @return The number of tokens.
+     */
+    private static int countTokens(ByteBuffer data, int start, int end) {
+        int count = 0;
+        boolean inToken = false;
+        for (int i = start; i < end; i++) {
+            boolean whitespace = isWhitespace(data.get(i));
+            if (!whitespace && !inToken) {
+                count++;
+            }
+            inToken = !whitespace;
+        }
+        return count;
+    }
+
+    /**
+     * Parses the tokens of a chunk into the pixels
+     *
+     * @param data       The content of the file.
+     * @param start      The first byte of the chunk.
+     * @param end        The byte after the chunk.
+     * @param index      The index of the pixel of the first token.
+     * @param pixels     The pixels to fill.
+     * @param height     The number of columns of the image.
+     * @param nbPixels   The number of pixels of the image.
+     * @param maxLuminosity The maximum luminosity.
+     * @return The index of the first bad value times two, plus one if it is
+     *         out of range rather than not a number, or Long.MAX_VALUE.
+     */
+    private static long parseChunk(ByteBuffer data, int start, int end, int index, int[][] pixels, int height,
+            int nbPixels, int maxLuminosity) {
+        int i = start;
+        while (index < nbPixels) {
+            while (i < end && isWhitespace(data.get(i))) {
+                i++;
+            }
+            if (i >= end) {
+                break;
+            }
+
+            boolean negative = data.get(i) == '-';
+            if (negative || data.get(i) == '+') {
+                i++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (i < end && !isWhitespace(data.get(i))) {
+                byte b = data.get(i++);
+                if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                    return 2L * index;
+                }
+                value = 10 * value + (b - '0');
+                digits++;
+            }
+            if (digits == 0 || value > Integer.MAX_VALUE) {
+                return 2L * index;
+            }
+            if (negative) {
+                value = -value;
+            }
+            if (value < 0 || value > maxLuminosity) {
+                return 2L * index + 1;
+            }
+
+            pixels[index / height][index % height] = (int) value;
+            index++;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Reads a line of a mapped file
+     *
+     * @param data     The content of the file.
+     * @param position The current position, updated past the line.
+     * @return The line without its terminator.
+     */
+    private static String nextLine(ByteBuffer data, int[] position) {
+        int start = position[0];
+        int i = start;
+        while (i < data.limit() && data.get(i) != '\n' && data.get(i) != '\r') {
+            i++;
+        }
+        byte[] line = new byte[i - start];
+        data.get(start, line);
+        if (i < data.limit() && data.get(i) == '\r') {
+            i++;
+        }
+        if (i < data.limit() && data.get(i) == '\n') {
+            i++;
+        }
+        position[0] = i;
+        return new String(line, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads an integer token of a mapped file
+     *
+     * @param data     The content of the file.
+     * @param position The current position, updated past the token.
+     * @param required true to fail as Scanner.nextInt does rather than return
+     *                 null.
+     * @return The integer, or null if the next token is not one.
+     * @throws InputMismatchException If a required token is not an integer.
+     * @throws NoSuchElementException If a required token is missing.
+     */
+    private static Integer nextInt(ByteBuffer data, int[] position, boolean required) {
+        int i = position[0];
+        while (i < data.limit() && isWhitespace(data.get(i))) {
+            i++;
+        }
+        int start = i;
+        while (i < data.limit() && !isWhitespace(data.get(i))) {
+            i++;
+        }
+        byte[] token = new byte[i - start];
+        data.get(start, token);
+        position[0] = i;
+        if (token.length == 0 && required) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return Integer.valueOf(new String(token, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            if (required) {
+                throw new InputMismatchException(new String(token, StandardCharsets.US_ASCII));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a byte is an ASCII whitespace
+     *
+     * @param b The byte.
+     * @return true for a space, a tab, a line feed, a carriage return, a
+     *         vertical tab or a form feed.
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0x0B || b == '\f';
+    }
+
+    /**
+     * Reads a color image in PPM format, ASCII (P3) or binary (P6).
+     *
+     * @param path The path of the file to read.
+     * @return The image, or null if the file cannot be read or is incorrect.
+     */
+    public static PPM loadColorImage(String path) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(new File(path).toPath());
+        } catch (IOException e) {
             System.err.println("Error reading the file: " + e.getMessage());
             return null;
         }
+
+        int[] position = { 0 };
+        String magicNumber = nextToken(data, position);
+        boolean binary = magicNumber.equals("P6");
+        if (!binary && !magicNumber.equals("P3")) {
+            System.out.println("Incorrect file format!");
+            return null;
+        }
+
+        int width;
+        int height;
+        int maxValue;
+        try {
+            width = Integer.parseInt(nextToken(data, position));
+            height = Integer.parseInt(nextToken(data, position));
+            maxValue = Integer.parseInt(nextToken(data, position));
+        } catch (NumberFormatException e) {
+            System.out.println("Incorrect file format!");
+            return null;
+        }
+        if (width != height || !Util.isPowerOfTwo(width)) {
+            System.out.println("Incorrect image size!");
+            return null;
+        }
+        if (maxValue > 255) {
+            System.out.println("Only 8-bit channels are supported!");
+            return null;
+        }
+
+        int nbPixels = width * height;
+        byte[][] channels = new byte[3][nbPixels];
+        // A single whitespace separates the header from a binary body
+        position[0]++;
+
+        for (int k = 0; k < 3 * nbPixels; k++) {
+            int value;
+            if (binary) {
+                if (position[0] >= data.length) {
+                    System.out.println("Value missing in your file!");
+                    return null;
+                }
+                value = data[position[0]++] & 0xFF;
+            } else {
+                String token = nextToken(data, position);
+                if (token.isEmpty()) {
+                    System.out.println("Value missing in your file!");
+                    return null;
+                }
+                try {
+                    value = Integer.parseInt(token);
+                } catch (NumberFormatException e) {
+                    System.out.println("Incorrect file format!");
+                    return null;
+                }
+            }
+
+            if (value < 0 || value > maxValue) {
+                System.out.println("A value in the file exceeds the maximum luminosity.");
+                return null;
+            }
+            channels[k % 3][k / 3] = (byte) value;
+        }
+
+        return new PPM(channels, width, maxValue);
+    }
+
+    /**
+     * Reads the next whitespace-separated token of a PNM header or ASCII
+     * body, skipping comments.
+     *
+     * @param data     The content of the file.
+     * @param position The current position, updated past the token.
+     * @return The token, empty at the end of the data.
+     */
+    private static String nextToken(byte[] data, int[] position) {
+        int i = position[0];
+
+        while (i < data.length && (Character.isWhitespace(data[i]) || data[i] == '#')) {
+            if (data[i] == '#') {
+                while (i < data.length && data[i] != '\n') {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+        }
+
+        int start = i;
+        while (i < data.length && !Character.isWhitespace(data[i])) {
+            i++;
+        }
+        position[0] = i;
+        return new String(data, start, i - start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Saves a color image represented by quadtrees to a binary PPM file.
+     *
+     * @param image The quadtrees representing the image.
+     * @param file  The path to the file where the image will be saved.
+     */
+    public static void saveColorImage(ColorQuadTree image, String file) {
+        int length = image.getLength();
+        QuadTree[] trees = image.getTrees();
+        int[][][] grids = new int[trees.length][][];
+
+        for (int t = 0; t < trees.length; t++) {
+            grids[t] = rasterize(trees[t]);
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            out.write(("P6\n" + length + " " + length + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < length; i++) {
+                for (int j = 0; j < length; j++) {
+                    if (grids.length == 1) {
+                        int color = grids[0][i][j];
+                        out.write(color >> 16);
+                        out.write(color >> 8);
+                        out.write(color);
+                    } else {
+                        out.write(grids[0][i][j]);
+                        out.write(grids[1][i][j]);
+                        out.write(grids[2][i][j]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to the file: : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fills a 2D array with the values of a QuadTree.
+     *
+     * @param image The QuadTree representing the image.
+     * @return The values of the pixels.
+     */
+    public static int[][] rasterize(QuadTree image) {
+        int length = image.getLength();
+        int[][] grid = new int[length][length];
+
+        createGrilleTemp(image.getRoot(), grid, 0, 0, length - 1, length - 1);
+        return grid;
     }
 
     /**
@@ -125,43 +583,79 @@ public class FileManager{
      * @param file  The path to the file where the image will be saved.
      */
     public static void SaveImage(QuadTree image ,String file ){
+        try ( FileWriter writer = new FileWriter(new File(file))){
+            writeImage(image, writer);
+        }catch (IOException e) {
+            // Handling error in case of file writing failure
+            System.err.println("Error writing to the file: : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes an image represented by a QuadTree in PGM format.
+     *
+     * @param image  The QuadTree representing the image.
+     * @param writer The writer receiving the image.
+     * @throws IOException If the writer fails.
+     */
+    public static void writeImage(QuadTree image, Writer writer) throws IOException {
         String mot;
 
         int length = image.getLength();
 
         
-        int[][] grilleTemp = new int[length][length];
+        int[][] grilleTemp = rasterize(image);
 
-        createGrilleTemp(image.getRoot(),grilleTemp, 0, 0, length - 1, length - 1);
+        // PGM file header
+        writer.write("P2");
+        writer.write(System.lineSeparator()); 
+        writer.write("# version comprésser!");
+        writer.write(System.lineSeparator()); 
+        mot = String.valueOf(length);
+        writer.write(mot + " "+ mot);
+        writer.write(System.lineSeparator()); 
+        mot = String.valueOf(255);
+        writer.write(mot);
+        writer.write(System.lineSeparator()); 
+        for (int i = 0; i < grilleTemp.length; i++) {
+            for (int j = 0; j < grilleTemp[i].length; j++) {
+                mot = String.valueOf(grilleTemp[i][j]); 
+                writer.write(mot+ " ");
+            }
 
-        try ( FileWriter writer = new FileWriter(new File(file))){
-            // PGM file header
-            writer.write("P2");
-            writer.write(System.lineSeparator()); 
-            writer.write("# version comprésser!");
-            writer.write(System.lineSeparator()); 
-            mot = String.valueOf(length);
-            writer.write(mot + " "+ mot);
             writer.write(System.lineSeparator()); 
-            mot = String.valueOf(255);
-            writer.write(mot);
-            writer.write(System.lineSeparator()); 
-            for (int i = 0; i < grilleTemp.length; i++) {
-                for (int j = 0; j < grilleTemp[i].length; j++) {
-                    mot = String.valueOf(grilleTemp[i][j]); 
-                    writer.write(mot+ " ");
-                }
+           
+        }
+    }
+
 
-                writer.write(System.lineSeparator()); 
-               
+    /**
+     * Saves an image as a binary PGM (P5) file with one byte per pixel, the
+     * format a LazyQuadTree maps.
+     *
+     * @param image The image to save, of a maximum luminosity up to 255.
+     * @param file  The path to the file where the image will be saved.
+     * @throws IOException If the file cannot be written or the image does not
+     *                     fit in one byte per pixel.
+     */
+    public static void saveRawImage(PMG image, String file) throws IOException {
+        if (image.getMaxLuminosity() > 255) {
+            throw new IOException("Luminosity too large for a binary PGM");
+        }
+        int[][] arr = image.getLuminosities();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            out.write(("P5\n" + arr.length + " " + arr.length + "\n" + image.getMaxLuminosity() + "\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            byte[] row = new byte[arr.length];
+            for (int[] line : arr) {
+                for (int j = 0; j < line.length; j++) {
+                    row[j] = (byte) line[j];
+                }
+                out.write(row);
             }
-        }catch (IOException e) {
-            // Handling error in case of file writing failure
-            System.err.println("Error writing to the file: : " + e.getMessage());
         }
     }
 
-
     /**
      * Recursively fills a 2D array with values from a QuadTree starting from a specified root node.
      *
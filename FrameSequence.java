@@ -0,0 +1,340 @@
+import java.util.ArrayList;
+
+/**
+ * Builds the quadtrees of a sequence of frames, each frame against the
+ * previous one. The regions whose pixels did not change reuse the subtree of
+ * the previous frame by reference, so only the changed regions are built, and
+ * a frame can be saved as a delta holding only its changed subtrees.
+ *
+ * The trees of a sequence share nodes, so they are marked shared: they can
+ * be saved, queried and serialized, and the changes in place reject them,
+ * copy() giving a tree of its own to compress.
+ *
+ */
+public class FrameSequence {
+
+    /**
+     * The token of an unchanged subtree in a delta
+     *
+     */
+    public static final String UNCHANGED = "=";
+
+    /**
+     * The previous frame and its tree, null before the first frame
+     *
+     */
+    private PMG previousFrame;
+    private QuadTree previousTree;
+
+    /**
+     * The number of nodes of the last frame minus the ones of the previous
+     * frame, accumulated while building
+     *
+     */
+    private int delta;
+
+    /**
+     * The number of nodes built for the last frame
+     *
+     */
+    private int builtNodes;
+
+    /**
+     * Builds the tree of the next frame of the sequence
+     *
+     * @param frame The next frame
+     * @param name  The name of the frame, used to name the compressed files
+     * @return The read-only tree of the frame
+     *
+     */
+    public QuadTree next(PMG frame, String name) {
+        int length = frame.getLuminosities().length;
+        QuadTree tree;
+
+        if (this.previousTree == null || this.previousTree.getLength() != length) {
+            tree = new QuadTree(frame, name, BuildMode.PYRAMID);
+            this.builtNodes = tree.getNbNodes();
+        } else {
+            ArrayList<boolean[][]> changed = buildChangePyramid(this.previousFrame.getLuminosities(),
+                    frame.getLuminosities());
+            this.delta = 0;
+            this.builtNodes = 0;
+            QuadTreeNode root = build(this.previousTree.getRoot(), false, frame.getLuminosities(), changed,
+                    changed.size() - 1, 0, 0);
+            tree = new QuadTree(root, length, this.previousTree.getNbNodes() + this.delta,
+                    "compressed-" + name, frame);
+        }
+        // The next frame will share the nodes of this one
+        tree.markShared();
+
+        this.previousFrame = frame;
+        this.previousTree = tree;
+        return tree;
+    }
+
+    /**
+     * Gets the number of nodes created for the last frame, the other ones
+     * being shared with the previous frame
+     *
+     * @return The number of nodes built
+     *
+     */
+    public int getBuiltNodes() {
+        return this.builtNodes;
+    }
+
+    /**
+     * Builds the pyramid telling for every block whether one of its pixels
+     * changed between two frames
+     *
+     * @param before The pixels of the previous frame
+     * @param after  The pixels of the next frame
+     * @return The levels of the pyramid, level k having blocks of side 2^k
+     *
+     */
+    private static ArrayList<boolean[][]> buildChangePyramid(int[][] before, int[][] after) {
+        ArrayList<boolean[][]> levels = new ArrayList<>();
+        int n = after.length;
+        boolean[][] level = new boolean[n][n];
+
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                level[i][j] = before[i][j] != after[i][j];
+            }
+        }
+        levels.add(level);
+
+        while (n > 1) {
+            n /= 2;
+            boolean[][] below = level;
+            level = new boolean[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    level[i][j] = below[2 * i][2 * j] || below[2 * i][2 * j + 1]
+                            || below[2 * i + 1][2 * j] || below[2 * i + 1][2 * j + 1];
+                }
+            }
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    /**
+     * Builds the node of a block of the next frame from the matching node of
+     * the previous frame, sharing it if the block did not change
+     *
+     * @param previous  The node of the previous frame covering the block
+     * @param inherited true if previous is a leaf covering a larger block
+     * @param arr       The pixels of the next frame
+     * @param changed   The change pyramid
+     * @param k         The level of the block, its side being 2^k
+     * @param r         The line of the block in its level
+     * @param c         The column of the block in its level
+     * @return The node of the next frame
+     *
+     */
+    private QuadTreeNode build(QuadTreeNode previous, boolean inherited, int[][] arr,
+            ArrayList<boolean[][]> changed, int k, int r, int c) {
+        if (!changed.get(k)[r][c]) {
+            if (!inherited) {
+                return previous;
+            }
+            this.builtNodes++;
+            return new QuadTreeNode(previous.getValue());
+        }
+        if (k == 0) {
+            this.builtNodes++;
+            return new QuadTreeNode(arr[r][c]);
+        }
+
+        boolean leaf = previous.isLeaf();
+        QuadTreeNode[] children = new QuadTreeNode[4];
+        int[][] positions = { { 2 * r, 2 * c }, { 2 * r, 2 * c + 1 }, { 2 * r + 1, 2 * c + 1 }, { 2 * r + 1, 2 * c } };
+        int before = this.delta;
+        for (int i = 0; i < 4; i++) {
+            children[i] = build(leaf ? previous : previous.getChild(i), leaf, arr, changed, k - 1,
+                    positions[i][0], positions[i][1]);
+        }
+        int childrenDelta = this.delta - before;
+
+        this.builtNodes++;
+        if (children[0].isLeaf() && children[1].isLeaf() && children[2].isLeaf() && children[3].isLeaf()
+                && children[0].getValue() == children[1].getValue()
+                && children[0].getValue() == children[2].getValue()
+                && children[0].getValue() == children[3].getValue()) {
+            // A previous leaf stays a leaf, four previous leaves merge into one
+            this.delta = before + (leaf ? 0 : childrenDelta - 4);
+            return new QuadTreeNode(children[0].getValue());
+        }
+
+        // A previous leaf gains four children
+        this.delta = before + childrenDelta + (leaf ? 4 : 0);
+        return adopt(children, previous, leaf);
+    }
+
+    /**
+     * Serializes a tree as a delta against the tree of the previous frame.
+     * The grammar is the one of the parenthesized representation, with the
+     * token "=" standing for a subtree identical to the previous frame.
+     *
+     * @param tree     The tree of a frame
+     * @param previous The tree of the previous frame
+     * @return The delta
+     *
+     */
+    public static String toDelta(QuadTree tree, QuadTree previous) {
+        StringBuilder result = new StringBuilder();
+        toDelta(tree.getRoot(), previous.getRoot(), false, result);
+        return result.toString();
+    }
+
+    /**
+     * Appends the delta of a subtree
+     *
+     * @param node      The node of the frame
+     * @param previous  The node of the previous frame covering the same block
+     * @param inherited true if previous is a leaf covering a larger block
+     * @param result    The builder receiving the delta
+     *
+     */
+    private static void toDelta(QuadTreeNode node, QuadTreeNode previous, boolean inherited, StringBuilder result) {
+        if ((!inherited && node == previous)
+                || (node.isLeaf() && previous.isLeaf() && node.getValue() == previous.getValue())) {
+            result.append(UNCHANGED).append(' ');
+        } else if (node.isLeaf()) {
+            result.append(node.getValue()).append(' ');
+        } else {
+            boolean leaf = previous.isLeaf();
+            result.append('(');
+            for (int i = 0; i < 4; i++) {
+                toDelta(node.getChild(i), leaf ? previous : previous.getChild(i), leaf, result);
+                if (i < 3) {
+                    result.append(' ');
+                }
+            }
+            result.append(')');
+        }
+    }
+
+    /**
+     * Rebuilds the tree of a frame from its delta and the tree of the
+     * previous frame, sharing the unchanged subtrees
+     *
+     * @param delta    The delta of the frame
+     * @param previous The tree of the previous frame
+     * @param name     The name of the frame
+     * @return The read-only tree of the frame, or null if the delta is malformed
+     *
+     */
+    public static QuadTree fromDelta(String delta, QuadTree previous, String name) {
+        String[] tokens = delta.replace("(", " ( ").replace(")", " ) ").trim().split("\\s+");
+        int[] position = { 0 };
+        int[] nbNodes = { 0 };
+
+        try {
+            QuadTreeNode root = fromDelta(tokens, position, previous.getRoot(), false, nbNodes,
+                    Integer.numberOfTrailingZeros(previous.getLength()), previous.getMaxLuminosity());
+            if (position[0] != tokens.length) {
+                throw new IllegalArgumentException("trailing tokens");
+            }
+            QuadTree tree = new QuadTree(root, previous.getLength(), nbNodes[0], "compressed-" + name, null);
+            tree.markShared();
+            return tree;
+        } catch (RuntimeException e) {
+            System.err.println("Incorrect delta format! " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses the delta of a subtree. A new value must be a luminosity of the
+     * image, and no subtree may go below the pixels.
+     *
+     * @param tokens    The tokens of the delta
+     * @param position  The index of the next token
+     * @param previous  The node of the previous frame covering the same block
+     * @param inherited true if previous is a leaf covering a larger block
+     * @param nbNodes   The number of nodes counted so far
+     * @param levels    The number of levels left below the block
+     * @param maxValue  The maximum luminosity of the image
+     * @return The node of the frame
+     *
+     */
+    private static QuadTreeNode fromDelta(String[] tokens, int[] position, QuadTreeNode previous, boolean inherited,
+            int[] nbNodes, int levels, int maxValue) {
+        String token = tokens[position[0]++];
+
+        if (token.equals(UNCHANGED)) {
+            if (inherited) {
+                nbNodes[0]++;
+                return new QuadTreeNode(previous.getValue());
+            }
+            nbNodes[0] += countNodes(previous);
+            return previous;
+        }
+        if (!token.equals("(")) {
+            int value = Integer.parseInt(token);
+            if (value < 0 || value > maxValue) {
+                throw new IllegalArgumentException("value " + value + " is outside [0, " + maxValue + "]");
+            }
+            nbNodes[0]++;
+            return new QuadTreeNode(value);
+        }
+        if (levels == 0) {
+            throw new IllegalArgumentException("subtree below the pixels");
+        }
+
+        boolean leaf = previous.isLeaf();
+        QuadTreeNode[] children = new QuadTreeNode[4];
+        for (int i = 0; i < 4; i++) {
+            children[i] = fromDelta(tokens, position, leaf ? previous : previous.getChild(i), leaf, nbNodes,
+                    levels - 1, maxValue);
+        }
+        if (!tokens[position[0]++].equals(")")) {
+            throw new IllegalArgumentException("missing )");
+        }
+
+        nbNodes[0]++;
+        return adopt(children, previous, leaf);
+    }
+
+    /**
+     * Creates the internal node of a frame over its children. The children
+     * built for the frame get it as parent, the ones shared with the previous
+     * frame keep their parent in the frame that built them.
+     *
+     * @param children The children of the node
+     * @param previous The node of the previous frame covering the same block
+     * @param leaf     true if previous is a leaf, so no child is shared
+     * @return The node
+     *
+     */
+    private static QuadTreeNode adopt(QuadTreeNode[] children, QuadTreeNode previous, boolean leaf) {
+        QuadTreeNode node = new QuadTreeNode();
+        node.setChildren(children);
+        for (int i = 0; i < 4; i++) {
+            if (leaf || children[i] != previous.getChild(i)) {
+                children[i].setParent(node);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Counts the nodes of a subtree
+     *
+     * @param node The root of the subtree
+     * @return The number of nodes
+     *
+     */
+    private static int countNodes(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return 1;
+        }
+        int count = 1;
+        for (int i = 0; i < 4; i++) {
+            count += countNodes(node.getChild(i));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Quadtree built on demand over a binary PGM (P5) image read through memory
+ * mappings. Opening the image only reads its header: the children of a node
+ * are materialized, and their uniformity detected by scanning their pixels
+ * in the mapping, the first time a query or a render descends into it.
+ *
+ * The nodes above a cache depth are kept for good. Below it, the subtrees
+ * materialized under each block of the cache depth are entries of a cache
+ * bounded by a number of nodes: once a query leaves more nodes than the
+ * capacity, the least recently used blocks drop their children, which will
+ * be materialized again if needed. The memory thus follows the working set
+ * of the queries rather than the size of the image.
+ *
+ */
+public class LazyQuadTree {
+
+    /**
+     * The default maximum number of materialized nodes
+     *
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 22;
+
+    /**
+     * The side of the blocks whose subtrees are the entries of the cache
+     *
+     */
+    private static final int CACHE_BLOCK = 256;
+
+    /**
+     * The maximum size of a mapping, a mapped buffer being indexed by an int
+     *
+     */
+    private static final long MAX_MAPPING = 1L << 30;
+
+    /**
+     * The value of an internal node
+     *
+     */
+    private static final int INTERNAL = -1;
+
+    /**
+     * A node of the tree, a leaf with its value or an internal node whose
+     * children are null until materialized
+     *
+     */
+    private static class Node {
+
+        private int value;
+        private Node[] children;
+
+        private Node(int value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The mappings of the pixels, each one holding rowsPerMapping rows
+     *
+     */
+    private MappedByteBuffer[] mappings;
+    private int rowsPerMapping;
+
+    /**
+     * The length and the maximum luminosity of the image
+     *
+     */
+    private int length;
+    private int maxLuminosity;
+
+    /**
+     * The root, null until the first query
+     *
+     */
+    private Node root;
+
+    /**
+     * The depth of the blocks whose subtrees are cached
+     *
+     */
+    private int cacheDepth;
+
+    /**
+     * The cached blocks in access order with the number of nodes materialized
+     * under each one
+     *
+     */
+    private LinkedHashMap<Node, Integer> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The maximum number of materialized nodes, and the number of them
+     *
+     */
+    private long capacity;
+    private long nbMaterialized;
+
+    /**
+     * Opens an image with the default capacity
+     *
+     * @param path The path of the binary PGM image
+     * @throws IOException If the file cannot be mapped or is not a square
+     *                     binary PGM of a power of two length with one byte
+     *                     per pixel
+     *
+     */
+    public LazyQuadTree(String path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens an image by mapping it, without reading anything past the header
+     *
+     * @param path     The path of the binary PGM image
+     * @param capacity The maximum number of materialized nodes kept once a
+     *                 query is over
+     * @throws IOException If the file cannot be mapped or is not a square
+     *                     binary PGM of a power of two length with one byte
+     *                     per pixel
+     *
+     */
+    public LazyQuadTree(String path, long capacity) throws IOException {
+        this.capacity = capacity;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 512));
+            if (!"P5".equals(nextToken(header))) {
+                throw new IOException("Incorrect file format!");
+            }
+            int width = Integer.parseInt(nextToken(header));
+            int height = Integer.parseInt(nextToken(header));
+            this.maxLuminosity = Integer.parseInt(nextToken(header));
+            if (width != height || !Util.isPowerOfTwo(width) || this.maxLuminosity > 255) {
+                throw new IOException("Incorrect image size!");
+            }
+            this.length = width;
+
+            // A single whitespace separates the header from the pixels
+            long start = header.position() + 1L;
+            if (channel.size() < start + (long) this.length * this.length) {
+                throw new IOException("Incorrect file format!");
+            }
+            this.rowsPerMapping = (int) Math.max(1, Math.min(this.length, MAX_MAPPING / this.length));
+            this.mappings = new MappedByteBuffer[(this.length + this.rowsPerMapping - 1) / this.rowsPerMapping];
+            for (int m = 0; m < this.mappings.length; m++) {
+                int rows = Math.min(this.rowsPerMapping, this.length - m * this.rowsPerMapping);
+                this.mappings[m] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start + (long) m * this.rowsPerMapping * this.length, (long) rows * this.length);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Incorrect file format!", e);
+        }
+        this.cacheDepth = Math.max(0, Integer.numberOfTrailingZeros(this.length)
+                - Integer.numberOfTrailingZeros(CACHE_BLOCK));
+    }
+
+    /**
+     * Reads the next token of the header, skipping whitespace and comments
+     *
+     * @param header The beginning of the file, positioned after the last token
+     * @return The token, empty at the end of the buffer
+     *
+     */
+    private static String nextToken(ByteBuffer header) {
+        StringBuilder token = new StringBuilder();
+        while (header.hasRemaining()) {
+            char c = (char) header.get(header.position());
+            if (c == '#' && token.length() == 0) {
+                while (header.hasRemaining() && header.get() != '\n') {
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    break;
+                }
+                header.get();
+            } else {
+                token.append(c);
+                header.get();
+            }
+        }
+        return token.toString();
+    }
+
+    /**
+     * Gets the luminosity of a pixel straight from the mapping
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The luminosity
+     *
+     */
+    private int getPixel(int line, int col) {
+        return this.mappings[line / this.rowsPerMapping].get((line % this.rowsPerMapping) * this.length + col) & 0xFF;
+    }
+
+    /**
+     * Creates the node of a region, a leaf if all its pixels are the same.
+     * The scan stops at the first different pixel and compares eight pixels
+     * at a time on regions of at least eight columns.
+     *
+     * @param line The first line of the region
+     * @param col  The first column of the region
+     * @param size The side of the region
+     * @return The node of the region
+     *
+     */
+    private Node resolve(int line, int col, int size) {
+        int value = getPixel(line, col);
+        long pattern = (value & 0xFFL) * 0x0101010101010101L;
+
+        for (int i = line; i < line + size; i++) {
+            MappedByteBuffer mapping = this.mappings[i / this.rowsPerMapping];
+            int offset = (i % this.rowsPerMapping) * this.length + col;
+            if (size >= 8) {
+                for (int j = 0; j < size; j += 8) {
+                    if (mapping.getLong(offset + j) != pattern) {
+                        return new Node(INTERNAL);
+                    }
+                }
+            } else {
+                for (int j = 0; j < size; j++) {
+                    if ((mapping.get(offset + j) & 0xFF) != value) {
+                        return new Node(INTERNAL);
+                    }
+                }
+            }
+        }
+        return new Node(value);
+    }
+
+    /**
+     * Gets the root, resolving it on the first query
+     *
+     * @return The root
+     *
+     */
+    private Node getRoot() {
+        if (this.root == null) {
+            this.root = resolve(0, 0, this.length);
+            this.nbMaterialized = 1;
+        }
+        return this.root;
+    }
+
+    /**
+     * Gets the children of an internal node, materializing them on the first
+     * descent and counting them in the cache entry of their block
+     *
+     * @param node  The internal node
+     * @param line  The first line of the region covered by the node
+     * @param col   The first column of the region covered by the node
+     * @param size  The side of the region covered by the node
+     * @param depth The depth of the node
+     * @param block The cached block above the node, or null above the cache
+     *              depth
+     * @return The children, in the order top-left, top-right, bottom-right,
+     *         bottom-left
+     *
+     */
+    private Node[] getChildren(Node node, int line, int col, int size, int depth, Node block) {
+        if (node.children == null) {
+            int half = size / 2;
+            node.children = new Node[] { resolve(line, col, half), resolve(line, col + half, half),
+                    resolve(line + half, col + half, half), resolve(line + half, col, half) };
+            this.nbMaterialized += 4;
+            if (depth >= this.cacheDepth) {
+                this.cache.merge(block, 4, Integer::sum);
+            }
+        } else if (depth == this.cacheDepth) {
+            this.cache.get(block);
+        }
+        return node.children;
+    }
+
+    /**
+     * Evicts the least recently used blocks until the materialized nodes fit
+     * in the capacity
+     *
+     */
+    private void evict() {
+        Iterator<Map.Entry<Node, Integer>> entries = this.cache.entrySet().iterator();
+        while (this.nbMaterialized > this.capacity && entries.hasNext()) {
+            Map.Entry<Node, Integer> entry = entries.next();
+            entry.getKey().children = null;
+            this.nbMaterialized -= entry.getValue();
+            entries.remove();
+        }
+    }
+
+    /**
+     * Gets the value of a pixel, materializing the nodes on its path
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The value of the leaf covering the pixel
+     * @throws IllegalArgumentException If the pixel is outside the image
+     *
+     */
+    public synchronized int getValueAt(int line, int col) {
+        if (line < 0 || col < 0 || line >= this.length || col >= this.length) {
+            throw new IllegalArgumentException("invalid pixel " + line + "," + col);
+        }
+        Node node = getRoot();
+        Node block = null;
+        int top = 0;
+        int left = 0;
+        int size = this.length;
+        int depth = 0;
+
+        while (node.value == INTERNAL) {
+            if (depth == this.cacheDepth) {
+                block = node;
+            }
+            Node[] children = getChildren(node, top, left, size, depth, block);
+            size /= 2;
+            boolean bottom = line >= top + size;
+            boolean right = col >= left + size;
+            top += bottom ? size : 0;
+            left += right ? size : 0;
+            node = children[bottom ? (right ? 2 : 3) : (right ? 1 : 0)];
+            depth++;
+        }
+
+        int value = node.value;
+        evict();
+        return value;
+    }
+
+    /**
+     * Decodes a rectangular region, materializing only the nodes covering it
+     *
+     * @param line   The first line of the region
+     * @param col    The first column of the region
+     * @param height The number of lines of the region
+     * @param width  The number of columns of the region
+     * @return The luminosities of the region, empty if it has no line or no
+     *         column
+     * @throws IllegalArgumentException If the region is not inside the image
+     *
+     */
+    public synchronized int[][] decodeRegion(int line, int col, int height, int width) {
+        if (line < 0 || col < 0 || height < 0 || width < 0 || (long) line + height > this.length
+                || (long) col + width > this.length) {
+            throw new IllegalArgumentException("invalid region " + line + "," + col + " " + height + "x" + width);
+        }
+        int[][] region = new int[height][width];
+        if (height == 0 || width == 0) {
+            return region;
+        }
+        decodeRegion(getRoot(), null, 0, 0, this.length, 0, region, line, col);
+        evict();
+        return region;
+    }
+
+    /**
+     * Helper method filling the part of a region covered by a subtree
+     *
+     * @param node   The current node in the traversal
+     * @param block  The cached block above the node, or null above the cache
+     *               depth
+     * @param top    The first line covered by the node
+     * @param left   The first column covered by the node
+     * @param size   The side of the region covered by the node
+     * @param depth  The depth of the node
+     * @param region The region being filled
+     * @param line   The first line of the region
+     * @param col    The first column of the region
+     *
+     */
+    private void decodeRegion(Node node, Node block, int top, int left, int size, int depth, int[][] region,
+            int line, int col) {
+        int fromLine = Math.max(top, line);
+        int toLine = Math.min(top + size, line + region.length);
+        int fromCol = Math.max(left, col);
+        int toCol = Math.min(left + size, col + region[0].length);
+        if (fromLine >= toLine || fromCol >= toCol) {
+            return;
+        }
+
+        if (node.value != INTERNAL) {
+            for (int i = fromLine; i < toLine; i++) {
+                Arrays.fill(region[i - line], fromCol - col, toCol - col, node.value);
+            }
+            return;
+        }
+
+        if (depth == this.cacheDepth) {
+            block = node;
+        }
+        Node[] children = getChildren(node, top, left, size, depth, block);
+        int half = size / 2;
+        decodeRegion(children[0], block, top, left, half, depth + 1, region, line, col);
+        decodeRegion(children[1], block, top, left + half, half, depth + 1, region, line, col);
+        decodeRegion(children[2], block, top + half, left + half, half, depth + 1, region, line, col);
+        decodeRegion(children[3], block, top + half, left, half, depth + 1, region, line, col);
+    }
+
+    /**
+     * Gets the number of nodes materialized at the moment
+     *
+     * @return The number of nodes
+     *
+     */
+    public synchronized long getNbMaterializedNodes() {
+        return this.nbMaterialized;
+    }
+
+    /**
+     * Gets the length of the image
+     *
+     * @return The length
+     *
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Gets the maximum luminosity of the image
+     *
+     * @return The maximum luminosity
+     *
+     */
+    public int getMaxLuminosity() {
+        return this.maxLuminosity;
+    }
+}
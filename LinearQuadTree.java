@@ -0,0 +1,580 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Linear quadtree storing only its leaves, sorted by the Morton code of
+ * their top-left pixel, in primitive arrays. A leaf of level k covers a block
+ * of side 2^k, and the four children of a node are four consecutive leaves of
+ * the same level whose codes start on a multiple of 4^(k+1).
+ *
+ * The tree is built bottom-up one level at a time by merging such runs of
+ * four equal siblings, and the compressions merge runs of four sibling
+ * leaves in the same way, without any recursion or node object. The Morton
+ * order visits the children as top-left, top-right, bottom-left,
+ * bottom-right.
+ *
+ */
+public class LinearQuadTree {
+
+    /**
+     * The depth down to which the build is split into parallel tasks
+     *
+     */
+    private static final int PARALLEL_DEPTH = 2;
+
+    /**
+     * The Morton codes, levels and values of the leaves
+     *
+     */
+    private long[] codes;
+    private byte[] levels;
+    private int[] values;
+
+    /**
+     * The number of leaves
+     *
+     */
+    private int nbLeaves;
+
+    /**
+     * The length of the image and its number of levels
+     *
+     */
+    private int length;
+    private int depth;
+
+    /**
+     * Builds the linear quadtree of an image, the blocks below the first
+     * levels being merged in parallel
+     *
+     * @param image The image to represent
+     *
+     */
+    public LinearQuadTree(PMG image) {
+        int[][] arr = image.getLuminosities();
+        this.length = arr.length;
+        this.depth = Integer.numberOfTrailingZeros(this.length);
+        int n = this.length * this.length;
+        this.codes = new long[n];
+        this.levels = new byte[n];
+        this.values = new int[n];
+
+        int split = Math.min(PARALLEL_DEPTH, this.depth);
+        int nbBlocks = 1 << (2 * split);
+        int blockSize = n / nbBlocks;
+        int[] ends = new int[nbBlocks];
+
+        IntStream.range(0, nbBlocks).parallel().forEach(b -> {
+            int start = b * blockSize;
+            for (int i = start; i < start + blockSize; i++) {
+                this.codes[i] = i;
+                this.values[i] = arr[mortonLine(i)][mortonCol(i)];
+            }
+            ends[b] = mergeLevels(start, start + blockSize, 0, this.depth - split);
+        });
+
+        int count = ends[0];
+        for (int b = 1; b < nbBlocks; b++) {
+            int start = b * blockSize;
+            int size = ends[b] - start;
+            System.arraycopy(this.codes, start, this.codes, count, size);
+            System.arraycopy(this.levels, start, this.levels, count, size);
+            System.arraycopy(this.values, start, this.values, count, size);
+            count += size;
+        }
+        this.nbLeaves = mergeLevels(0, count, this.depth - split, this.depth);
+        trim();
+    }
+
+    /**
+     * Constructor of a tree read from a file
+     *
+     * @param length   The length of the image
+     * @param codes    The Morton codes of the leaves
+     * @param levels   The levels of the leaves
+     * @param values   The values of the leaves
+     *
+     */
+    private LinearQuadTree(int length, long[] codes, byte[] levels, int[] values) {
+        this.length = length;
+        this.depth = Integer.numberOfTrailingZeros(length);
+        this.codes = codes;
+        this.levels = levels;
+        this.values = values;
+        this.nbLeaves = codes.length;
+    }
+
+    /**
+     * Merges the runs of four equal sibling leaves of a range, level after
+     * level. The range is compacted in place.
+     *
+     * @param start     The first leaf of the range
+     * @param end       The leaf after the range
+     * @param fromLevel The first level whose leaves are merged
+     * @param toLevel   The level at which the merges stop
+     * @return The leaf after the compacted range
+     *
+     */
+    private int mergeLevels(int start, int end, int fromLevel, int toLevel) {
+        for (int level = fromLevel; level < toLevel; level++) {
+            int write = start;
+            int read = start;
+            while (read < end) {
+                if (isSiblingRun(read, end, level) && this.values[read] == this.values[read + 1]
+                        && this.values[read] == this.values[read + 2] && this.values[read] == this.values[read + 3]) {
+                    move(read, write);
+                    this.levels[write] = (byte) (level + 1);
+                    read += 4;
+                } else {
+                    move(read, write);
+                    read++;
+                }
+                write++;
+            }
+            end = write;
+        }
+        return end;
+    }
+
+    /**
+     * Checks whether four consecutive leaves are the four children of a node
+     *
+     * @param i     The first leaf
+     * @param end   The leaf after the range
+     * @param level The level of the children
+     * @return true if the leaves i to i+3 are sibling leaves of the level
+     *
+     */
+    private boolean isSiblingRun(int i, int end, int level) {
+        long unit = 1L << (2 * level);
+        return i + 3 < end && this.levels[i] == level && (this.codes[i] & (4 * unit - 1)) == 0
+                && this.levels[i + 1] == level && this.levels[i + 2] == level && this.levels[i + 3] == level
+                && this.codes[i + 3] == this.codes[i] + 3 * unit;
+    }
+
+    /**
+     * Moves a leaf to a lower index of the arrays
+     *
+     * @param from The index of the leaf
+     * @param to   The new index of the leaf
+     *
+     */
+    private void move(int from, int to) {
+        this.codes[to] = this.codes[from];
+        this.levels[to] = this.levels[from];
+        this.values[to] = this.values[from];
+    }
+
+    /**
+     * Shrinks the arrays to the number of leaves
+     *
+     */
+    private void trim() {
+        this.codes = Arrays.copyOf(this.codes, this.nbLeaves);
+        this.levels = Arrays.copyOf(this.levels, this.nbLeaves);
+        this.values = Arrays.copyOf(this.values, this.nbLeaves);
+    }
+
+    /**
+     * Compresses the tree with the Lambda method: every run of four sibling
+     * leaves is merged once into a leaf of their logarithmic average
+     *
+     */
+    public void lambdaCompressTree() {
+        int write = 0;
+        int read = 0;
+        while (read < this.nbLeaves) {
+            int level = this.levels[read];
+            if (isSiblingRun(read, this.nbLeaves, level)) {
+                int value = (int) Math.round(avgLog(read, read + 1, read + 2, read + 3));
+                move(read, write);
+                this.levels[write] = (byte) (level + 1);
+                this.values[write] = value;
+                read += 4;
+            } else {
+                move(read, write);
+                read++;
+            }
+            write++;
+        }
+        this.nbLeaves = write;
+        trim();
+    }
+
+    /**
+     * Compresses the tree by merging every run of four sibling leaves whose
+     * epsilon is at most a threshold, again and again while merges make new
+     * runs below the threshold
+     *
+     * @param maxEpsilon The largest epsilon of a merged run
+     *
+     */
+    public void epsilonCompressTree(double maxEpsilon) {
+        int before;
+        do {
+            before = this.nbLeaves;
+            int write = 0;
+            int read = 0;
+            while (read < this.nbLeaves) {
+                int level = this.levels[read];
+                if (isSiblingRun(read, this.nbLeaves, level) && epsilon(read, read + 1, read + 2, read + 3) <= maxEpsilon) {
+                    int value = (int) Math.round(avgLog(read, read + 1, read + 2, read + 3));
+                    move(read, write);
+                    this.levels[write] = (byte) (level + 1);
+                    this.values[write] = value;
+                    read += 4;
+                } else {
+                    move(read, write);
+                    read++;
+                }
+                write++;
+            }
+            this.nbLeaves = write;
+        } while (this.nbLeaves < before);
+        trim();
+    }
+
+    /**
+     * Compresses the tree with the Rho method: the run of four sibling
+     * leaves with the smallest epsilon is merged until the number of nodes
+     * falls to rho percent of the initial one. The leaves stay in place and
+     * are chained in Morton order, the merged ones being unlinked.
+     *
+     * @param rho The value of ρ for the Rho compression.
+     *
+     */
+    public void rhoCompressTree(int rho) {
+        int n = this.nbLeaves;
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        double[] epsilons = new double[n];
+        for (int i = 0; i < n; i++) {
+            next[i] = i + 1;
+            prev[i] = i - 1;
+        }
+
+        PriorityQueue<Integer> runs = new PriorityQueue<>((a, b) -> epsilons[a] != epsilons[b]
+                ? Double.compare(epsilons[a], epsilons[b]) : Long.compare(this.codes[a], this.codes[b]));
+        for (int i = 0; i + 3 < n; i++) {
+            if (isSiblingRun(i, n, this.levels[i])) {
+                epsilons[i] = epsilon(i, i + 1, i + 2, i + 3);
+                runs.add(i);
+            }
+        }
+
+        long initialNodes = getNbNodes();
+        long nbNodes = initialNodes;
+        while (!runs.isEmpty() && nbNodes * 100 > (long) rho * initialNodes) {
+            int first = runs.poll();
+            int second = next[first];
+            int third = next[second];
+            int fourth = next[third];
+            this.values[first] = (int) Math.round(avgLog(first, second, third, fourth));
+            this.levels[first]++;
+            next[first] = next[fourth];
+            if (next[fourth] < n) {
+                prev[next[fourth]] = first;
+            }
+            nbNodes -= 4;
+
+            // Cascade over the ancestors whose children became equal leaves
+            int run = findSiblingRun(first, next, prev, n);
+            while (run >= 0 && allEqual(run, next)) {
+                fourth = next[next[next[run]]];
+                this.levels[run]++;
+                next[run] = next[fourth];
+                if (next[fourth] < n) {
+                    prev[next[fourth]] = run;
+                }
+                nbNodes -= 4;
+                run = findSiblingRun(run, next, prev, n);
+            }
+
+            if (run >= 0) {
+                epsilons[run] = epsilon(run, next[run], next[next[run]], next[next[next[run]]]);
+                runs.add(run);
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < n; i = next[i]) {
+            move(i, count++);
+        }
+        this.nbLeaves = count;
+        trim();
+    }
+
+    /**
+     * Finds the run of four sibling leaves a leaf belongs to in the chained
+     * leaves
+     *
+     * @param i    The leaf
+     * @param next The next leaf of each leaf
+     * @param prev The previous leaf of each leaf
+     * @param n    The end of the chain
+     * @return The first leaf of the run, or -1 if the siblings are not all
+     *         leaves
+     *
+     */
+    private int findSiblingRun(int i, int[] next, int[] prev, int n) {
+        int level = this.levels[i];
+        if (level >= this.depth) {
+            return -1;
+        }
+        long unit = 1L << (2 * level);
+        long parent = this.codes[i] & ~(4 * unit - 1);
+
+        int first = i;
+        for (long k = (this.codes[i] - parent) / unit; k > 0; k--) {
+            first = prev[first];
+            if (first < 0) {
+                return -1;
+            }
+        }
+        int leaf = first;
+        for (int k = 0; k < 4; k++) {
+            if (leaf >= n || this.levels[leaf] != level || this.codes[leaf] != parent + k * unit) {
+                return -1;
+            }
+            leaf = next[leaf];
+        }
+        return first;
+    }
+
+    /**
+     * Checks whether a run of four chained sibling leaves have the same value
+     *
+     * @param first The first leaf of the run
+     * @param next  The next leaf of each leaf
+     * @return true if the four values are equal
+     *
+     */
+    private boolean allEqual(int first, int[] next) {
+        int second = next[first];
+        int third = next[second];
+        int fourth = next[third];
+        return this.values[first] == this.values[second] && this.values[first] == this.values[third]
+                && this.values[first] == this.values[fourth];
+    }
+
+    /**
+     * Calculates the logarithmic average of four leaves, as
+     * Util.calculateAvgLogLuminosity does for a twig
+     *
+     * @return The average log luminosity
+     *
+     */
+    private double avgLog(int a, int b, int c, int d) {
+        double res = Math.log(0.1 + this.values[a]) + Math.log(0.1 + this.values[b])
+                + Math.log(0.1 + this.values[c]) + Math.log(0.1 + this.values[d]);
+        return Math.exp(0.25 * res);
+    }
+
+    /**
+     * Calculates the epsilon of four leaves, as Util.calculateEpsilon does
+     * for a twig
+     *
+     * @return The largest difference between a leaf and the average
+     *
+     */
+    private double epsilon(int a, int b, int c, int d) {
+        double avg = avgLog(a, b, c, d);
+        double epsilon = Double.MIN_VALUE;
+        for (int i : new int[] { a, b, c, d }) {
+            epsilon = Math.max(epsilon, Math.abs(avg - this.values[i]));
+        }
+        return epsilon;
+    }
+
+    /**
+     * Gets the luminosity of a pixel by a binary search of its leaf
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The luminosity of the pixel
+     *
+     */
+    public int getValueAt(int line, int col) {
+        int i = Arrays.binarySearch(this.codes, 0, this.nbLeaves, mortonCode(line, col));
+        return this.values[i >= 0 ? i : -i - 2];
+    }
+
+    /**
+     * Converts the tree to a regular quadtree
+     *
+     * @param name The name of the image, used to name the compressed files
+     * @return The quadtree
+     *
+     */
+    public QuadTree toQuadTree(String name) {
+        QuadTreeNode root = new QuadTreeNode();
+        toQuadTree(root, this.depth, 0);
+        return new QuadTree(root, this.length, (int) getNbNodes(), "compressed-" + name, null);
+    }
+
+    /**
+     * Builds the node of a regular quadtree covering a block
+     *
+     * @param node  The node to fill
+     * @param level The level of the block
+     * @param code  The Morton code of the block
+     *
+     */
+    private void toQuadTree(QuadTreeNode node, int level, long code) {
+        int i = Arrays.binarySearch(this.codes, 0, this.nbLeaves, code);
+        if (this.levels[i] == level) {
+            node.setValue(this.values[i]);
+            return;
+        }
+
+        long unit = 1L << (2 * (level - 1));
+        node.createChildren();
+        toQuadTree(node.getChild(0), level - 1, code);
+        toQuadTree(node.getChild(1), level - 1, code + unit);
+        toQuadTree(node.getChild(2), level - 1, code + 3 * unit);
+        toQuadTree(node.getChild(3), level - 1, code + 2 * unit);
+    }
+
+    /**
+     * Saves the tree as its length, its number of leaves and its three arrays
+     *
+     * @param path The path of the file
+     * @throws IOException If the file cannot be written
+     *
+     */
+    public void save(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(this.length);
+            out.writeInt(this.nbLeaves);
+            for (int i = 0; i < this.nbLeaves; i++) {
+                out.writeLong(this.codes[i]);
+            }
+            out.write(this.levels, 0, this.nbLeaves);
+            for (int i = 0; i < this.nbLeaves; i++) {
+                out.writeInt(this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Loads a tree saved with save
+     *
+     * @param path The path of the file
+     * @return The tree
+     * @throws IOException If the file cannot be read
+     *
+     */
+    public static LinearQuadTree load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            int length = in.readInt();
+            int n = in.readInt();
+            long[] codes = new long[n];
+            byte[] levels = new byte[n];
+            int[] values = new int[n];
+            for (int i = 0; i < n; i++) {
+                codes[i] = in.readLong();
+            }
+            in.readFully(levels);
+            for (int i = 0; i < n; i++) {
+                values[i] = in.readInt();
+            }
+            return new LinearQuadTree(length, codes, levels, values);
+        }
+    }
+
+    /**
+     * Computes the Morton code of a pixel by interleaving the bits of its
+     * line and column, the column taking the even bits
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The Morton code
+     *
+     */
+    public static long mortonCode(int line, int col) {
+        return spread(col) | (spread(line) << 1);
+    }
+
+    /**
+     * Spreads the bits of a coordinate to the even bits of a long
+     *
+     */
+    private static long spread(long x) {
+        x &= 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * Gathers the even bits of a long into a coordinate
+     *
+     */
+    private static int compact(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+    /**
+     * Gets the line of a Morton code
+     *
+     */
+    private static int mortonLine(long code) {
+        return compact(code >>> 1);
+    }
+
+    /**
+     * Gets the column of a Morton code
+     *
+     */
+    private static int mortonCol(long code) {
+        return compact(code);
+    }
+
+    /**
+     * Gets the number of nodes of the equivalent regular quadtree, each
+     * internal node having four children
+     *
+     * @return The number of nodes
+     *
+     */
+    public long getNbNodes() {
+        return (4L * this.nbLeaves - 1) / 3;
+    }
+
+    /**
+     * Gets the number of leaves
+     *
+     * @return The number of leaves
+     *
+     */
+    public int getNbLeaves() {
+        return this.nbLeaves;
+    }
+
+    /**
+     * Get the length of the original image
+     *
+     * @return the length of the original image
+     *
+     */
+    public int getLength() {
+        return this.length;
+    }
+}
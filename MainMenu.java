@@ -5,6 +5,7 @@ public class MainMenu {
     private ArrayList<String> images;  // List of image file names
     private QuadTree compressedQuadtree;  // Compressed QuadTree representing the selected image
     private CompressionMenu compMenu;  // Compression menu for the QuadTree
+    private String reportFile;  // File the compression reports are appended to, or null
 
     /**
      * Constructor for the MainMenu class.
@@ -15,13 +16,26 @@ public class MainMenu {
         this.images = images;
     }
 
+    /**
+     * Enables the report of each compression, appended as a JSON line to a file.
+     *
+     * @param file The file the reports are appended to.
+     */
+    public void enableReport(String file) {
+        this.reportFile = file;
+    }
+
     /**
      * Starts the main menu for image compression.
      */
     public void start() {
         displayImages();
-        compressedQuadtree = new QuadTree(images.get(readAnswer()));  
+        String image = images.get(readAnswer());
+        compressedQuadtree = new QuadTree(image);  
         compMenu = new CompressionMenu(compressedQuadtree);
+        if (reportFile != null) {
+            compMenu.enableReport(reportFile, image);
+        }
         compMenu.start();
     }
 
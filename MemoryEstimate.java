@@ -0,0 +1,239 @@
+/**
+ * Estimate of the memory a QuadTree of an image will take, computed before
+ * building it. The number of nodes and twigs of the built tree are counted
+ * exactly with a bottom-up pass over the blocks of the image, keeping only
+ * one level of block values at a time, and the heap bytes are derived from
+ * them for each representation. The image itself, kept alive by the tree as
+ * its source, and the serialized tree are counted apart, except in the
+ * estimate of the linear route which covers its whole job.
+ *
+ */
+public class MemoryEstimate {
+
+    /**
+     * The estimated bytes of a QuadTreeNode, of the children array of an
+     * internal node and of a twig in the twigs AVL, with compressed
+     * references
+     *
+     */
+    public static final int NODE_BYTES = 32;
+    public static final int CHILDREN_BYTES = 32;
+    public static final int TWIG_BYTES = 96;
+
+    /**
+     * The bytes of a leaf of a LinearQuadTree: its code, level and value
+     *
+     */
+    public static final int LINEAR_LEAF_BYTES = 8 + 1 + 4;
+
+    /**
+     * The bytes per leaf of the Rho compression of a LinearQuadTree: its
+     * next, previous and epsilon arrays, and a boxed index in the priority
+     * queue of the runs with its slot in the queue array
+     *
+     */
+    public static final int LINEAR_RHO_ARRAYS_BYTES = 4 + 4 + 8;
+    public static final int LINEAR_RHO_QUEUE_BYTES = 36;
+
+    /**
+     * The bytes of an array header, of a pixel of the image and of a node in
+     * the serialized tree, counting the builder doubling its capacity and the
+     * final copy of a string of at most four characters per node
+     *
+     */
+    public static final int ARRAY_HEADER_BYTES = 16;
+    public static final int PIXEL_BYTES = 4;
+    public static final int SERIALIZED_NODE_BYTES = 12;
+
+    /**
+     * The number of nodes and twigs of the tree
+     *
+     */
+    private long nbNodes;
+    private long nbTwigs;
+
+    /**
+     * The length of the image
+     *
+     */
+    private int length;
+
+    /**
+     * Counts the nodes and twigs the tree of an image will have
+     *
+     * @param image The image
+     *
+     */
+    public MemoryEstimate(PMG image) {
+        int[][] arr = image.getLuminosities();
+        this.length = arr.length;
+        this.nbNodes = 1;
+
+        // Level 1: the value of each uniform 2x2 block, -1 for the other ones
+        int n = this.length / 2;
+        int[] level = new int[n * n];
+        for (int r = 0; r < n; r++) {
+            int[] top = arr[2 * r];
+            int[] bottom = arr[2 * r + 1];
+            for (int c = 0; c < n; c++) {
+                int v = top[2 * c];
+                if (v == top[2 * c + 1] && v == bottom[2 * c] && v == bottom[2 * c + 1]) {
+                    level[r * n + c] = v;
+                } else {
+                    level[r * n + c] = -1;
+                    this.nbNodes += 4;
+                    this.nbTwigs++;
+                }
+            }
+        }
+
+        // Upper levels: a block is uniform if its four quarters are the same
+        // uniform block, and a twig if they are all uniform but different
+        while (n > 1) {
+            int half = n / 2;
+            int[] upper = new int[half * half];
+            for (int r = 0; r < half; r++) {
+                for (int c = 0; c < half; c++) {
+                    int a = level[2 * r * n + 2 * c];
+                    int b = level[2 * r * n + 2 * c + 1];
+                    int d = level[(2 * r + 1) * n + 2 * c];
+                    int e = level[(2 * r + 1) * n + 2 * c + 1];
+                    if (a != -1 && a == b && a == d && a == e) {
+                        upper[r * half + c] = a;
+                    } else {
+                        upper[r * half + c] = -1;
+                        this.nbNodes += 4;
+                        if (a != -1 && b != -1 && d != -1 && e != -1) {
+                            this.nbTwigs++;
+                        }
+                    }
+                }
+            }
+            level = upper;
+            n = half;
+        }
+    }
+
+    /**
+     * Gets the number of nodes of the tree
+     *
+     * @return The number of nodes
+     *
+     */
+    public long getNbNodes() {
+        return this.nbNodes;
+    }
+
+    /**
+     * Gets the number of twigs of the tree before any compression
+     *
+     * @return The number of twigs
+     *
+     */
+    public long getNbTwigs() {
+        return this.nbTwigs;
+    }
+
+    /**
+     * Gets the estimated heap bytes of the QuadTree with its twigs AVL
+     *
+     * @return The estimated bytes
+     *
+     */
+    public long getTreeBytes() {
+        return getNodeBytes(this.nbNodes) + this.nbTwigs * TWIG_BYTES;
+    }
+
+    /**
+     * Gets the estimated heap bytes of the nodes of a QuadTree
+     *
+     * @param nbNodes The number of nodes of the tree
+     * @return The estimated bytes
+     *
+     */
+    private static long getNodeBytes(long nbNodes) {
+        long internalNodes = (nbNodes - 1) / 4;
+        return nbNodes * NODE_BYTES + internalNodes * CHILDREN_BYTES;
+    }
+
+    /**
+     * Gets the number of leaves of the tree, which are the leaves of the
+     * LinearQuadTree
+     *
+     * @return The number of leaves
+     *
+     */
+    public long getNbLeaves() {
+        return 3 * (this.nbNodes - 1) / 4 + 1;
+    }
+
+    /**
+     * Gets the estimated heap bytes of a representation right after it is
+     * built, before any compression
+     *
+     * @param linear true for the LinearQuadTree, false for the QuadTree
+     * @return The estimated bytes
+     *
+     */
+    public long getBuiltBytes(boolean linear) {
+        return linear ? getNbLeaves() * LINEAR_LEAF_BYTES : getNodeBytes(this.nbNodes);
+    }
+
+    /**
+     * Gets the heap bytes of the luminosities of an image of a given length,
+     * the rows and the array holding them
+     *
+     * @param length The length of the image
+     * @return The bytes of the image
+     *
+     */
+    public static long getImageBytes(int length) {
+        return ARRAY_HEADER_BYTES + (long) length * (4 + ARRAY_HEADER_BYTES + (long) PIXEL_BYTES * length);
+    }
+
+    /**
+     * Gets the heap bytes of the image this estimate was made for
+     *
+     * @return The bytes of the image
+     *
+     */
+    public long getImageBytes() {
+        return getImageBytes(this.length);
+    }
+
+    /**
+     * Gets an upper bound of the heap bytes taken while serializing the tree,
+     * whose compression only removes nodes
+     *
+     * @return The estimated bytes
+     *
+     */
+    public long getSerializedBytes() {
+        return this.nbNodes * SERIALIZED_NODE_BYTES;
+    }
+
+    /**
+     * Gets the estimated peak heap bytes of the linear route, the largest of
+     * its phases: the build, working on arrays sized for every pixel before
+     * trimming them to the leaves, the compression, and the conversion of
+     * the compressed tree to a QuadTree with its serialization. The
+     * compressed tree has at most rho percent of the nodes for the Rho
+     * compression, and loses four nodes per twig for the Lambda one.
+     *
+     * @param lambda true for the Lambda compression, false for the Rho one
+     * @param rho    The factor of the Rho compression
+     * @return The estimated bytes
+     *
+     */
+    public long getLinearBytes(boolean lambda, int rho) {
+        long leaves = getNbLeaves();
+        long leafBytes = leaves * LINEAR_LEAF_BYTES;
+        long build = (long) this.length * this.length * LINEAR_LEAF_BYTES + leafBytes;
+        long compress = leafBytes
+                + (lambda ? 0 : leaves * (LINEAR_RHO_ARRAYS_BYTES + LINEAR_RHO_QUEUE_BYTES));
+        long finalNodes = lambda ? this.nbNodes - 4 * this.nbTwigs
+                : Math.max((this.nbNodes * rho + 99) / 100, 1);
+        long convert = leafBytes + getNodeBytes(finalNodes) + finalNodes * SERIALIZED_NODE_BYTES;
+        return Math.max(build, Math.max(compress, convert));
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Class that holds the minimum and maximum luminosity of every quadtree block
+ * of a PMG image, level by level, so that uniform regions can be detected
+ * before any node is created
+ *
+ */
+public class MinMaxPyramid {
+
+    /**
+     * The minimum luminosities, indexed by level then by block in row-major
+     * order. Level k holds the blocks of side 2^k, level 0 is left empty since
+     * it is the image itself.
+     *
+     */
+    private int[][] mins;
+
+    /**
+     * The maximum luminosities, laid out like the minimums
+     *
+     */
+    private int[][] maxs;
+
+    /**
+     * The luminosities of the image, used as level 0
+     *
+     */
+    private int[][] luminosities;
+
+    /**
+     * The number of levels above the pixels
+     *
+     */
+    private int levels;
+
+    /**
+     * Builds the pyramid of an image in one pass per level over flat arrays
+     *
+     * @param image The image, whose side must be a power of two
+     *
+     */
+    public MinMaxPyramid(PMG image) {
+        this.luminosities = image.getLuminosities();
+        int length = this.luminosities.length;
+        this.levels = Integer.numberOfTrailingZeros(length);
+        this.mins = new int[this.levels + 1][];
+        this.maxs = new int[this.levels + 1][];
+
+        if (this.levels > 0) {
+            buildFirstLevel(length / 2);
+        }
+        for (int k = 2; k <= this.levels; k++) {
+            buildLevel(k, length >> k);
+        }
+    }
+
+    /**
+     * Builds the level of the 2x2 blocks from the pixels
+     *
+     * @param side The number of blocks on a side of the level
+     *
+     */
+    private void buildFirstLevel(int side) {
+        int[] min = new int[side * side];
+        int[] max = new int[side * side];
+
+        for (int r = 0; r < side; r++) {
+            int[] top = this.luminosities[2 * r];
+            int[] bottom = this.luminosities[2 * r + 1];
+            int base = r * side;
+            for (int c = 0; c < side; c++) {
+                int a = top[2 * c];
+                int b = top[2 * c + 1];
+                int d = bottom[2 * c];
+                int e = bottom[2 * c + 1];
+                min[base + c] = Math.min(Math.min(a, b), Math.min(d, e));
+                max[base + c] = Math.max(Math.max(a, b), Math.max(d, e));
+            }
+        }
+
+        this.mins[1] = min;
+        this.maxs[1] = max;
+    }
+
+    /**
+     * Builds a level from the level below it
+     *
+     * @param k    The level to build
+     * @param side The number of blocks on a side of the level
+     *
+     */
+    private void buildLevel(int k, int side) {
+        int[] lowerMin = this.mins[k - 1];
+        int[] lowerMax = this.maxs[k - 1];
+        int lowerSide = side * 2;
+        int[] min = new int[side * side];
+        int[] max = new int[side * side];
+
+        for (int r = 0; r < side; r++) {
+            int top = 2 * r * lowerSide;
+            int bottom = top + lowerSide;
+            int base = r * side;
+            for (int c = 0; c < side; c++) {
+                int left = 2 * c;
+                min[base + c] = Math.min(Math.min(lowerMin[top + left], lowerMin[top + left + 1]),
+                        Math.min(lowerMin[bottom + left], lowerMin[bottom + left + 1]));
+                max[base + c] = Math.max(Math.max(lowerMax[top + left], lowerMax[top + left + 1]),
+                        Math.max(lowerMax[bottom + left], lowerMax[bottom + left + 1]));
+            }
+        }
+
+        this.mins[k] = min;
+        this.maxs[k] = max;
+    }
+
+    /**
+     * Checks if a block has a single luminosity
+     *
+     * @param k The level of the block
+     * @param r The line of the block in its level
+     * @param c The column of the block in its level
+     * @return true if every pixel of the block has the same luminosity
+     *
+     */
+    public boolean isUniform(int k, int r, int c) {
+        if (k == 0) {
+            return true;
+        }
+        int index = r * (this.luminosities.length >> k) + c;
+        return this.mins[k][index] == this.maxs[k][index];
+    }
+
+    /**
+     * Gets the minimum luminosity of a block
+     *
+     * @param k The level of the block
+     * @param r The line of the block in its level
+     * @param c The column of the block in its level
+     * @return The minimum luminosity of the block
+     *
+     */
+    public int getMin(int k, int r, int c) {
+        if (k == 0) {
+            return this.luminosities[r][c];
+        }
+        return this.mins[k][r * (this.luminosities.length >> k) + c];
+    }
+
+    /**
+     * Gets the maximum luminosity of a block
+     *
+     * @param k The level of the block
+     * @param r The line of the block in its level
+     * @param c The column of the block in its level
+     * @return The maximum luminosity of the block
+     *
+     */
+    public int getMax(int k, int r, int c) {
+        if (k == 0) {
+            return this.luminosities[r][c];
+        }
+        return this.maxs[k][r * (this.luminosities.length >> k) + c];
+    }
+
+    /**
+     * Gets the number of levels above the pixels, the root block being on
+     * the last one
+     *
+     * @return The number of levels
+     *
+     */
+    public int getLevels() {
+        return this.levels;
+    }
+}
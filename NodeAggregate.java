@@ -0,0 +1,73 @@
+/**
+ * Class that holds the area-weighted sum, the minimum and the maximum of the
+ * values of the region covered by an internal node of a QuadTree
+ * 
+ */
+public class NodeAggregate {
+
+    /**
+     * The sum of the values of the pixels of the region
+     * 
+     */
+    private long sum;
+
+    /**
+     * The smallest and largest values of the region
+     * 
+     */
+    private int min;
+    private int max;
+
+    /**
+     * Constructor of an aggregate
+     * 
+     * @param sum The sum of the values of the pixels of the region
+     * @param min The smallest value of the region
+     * @param max The largest value of the region
+     * 
+     */
+    public NodeAggregate(long sum, int min, int max) {
+        set(sum, min, max);
+    }
+
+    /**
+     * Replaces the content of this aggregate
+     * 
+     * @param sum The sum of the values of the pixels of the region
+     * @param min The smallest value of the region
+     * @param max The largest value of the region
+     * 
+     */
+    public void set(long sum, int min, int max) {
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Gets the sum of the values of the pixels of the region
+     * 
+     * @return The sum
+     */
+    public long getSum() {
+        return this.sum;
+    }
+
+    /**
+     * Gets the smallest value of the region
+     * 
+     * @return The minimum
+     */
+    public int getMin() {
+        return this.min;
+    }
+
+    /**
+     * Gets the largest value of the region
+     * 
+     * @return The maximum
+     */
+    public int getMax() {
+        return this.max;
+    }
+}
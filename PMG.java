@@ -2,6 +2,14 @@ public class PMG {
     private int[][] luminosities; 
     private int maxLuminosity;
 
+    /**
+     * Summed-area tables of the luminosities and of their squares, built on
+     * first use. Cell [i][j] holds the sum over the lines before i and the
+     * columns before j.
+     */
+    private long[][] sums;
+    private long[][] squareSums;
+
     /**
      * Constructor for the QuadtreePrefab class.
      *
@@ -38,6 +46,8 @@ public class PMG {
      */
     public void setLuminosities(int[][] T) {
         this.luminosities = T;
+        this.sums = null;
+        this.squareSums = null;
     }
 
     /**
@@ -57,4 +67,79 @@ public class PMG {
     public void setMaxLuminosity(int maxL) {
         this.maxLuminosity = maxL;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the sum of the luminosities of a square region.
+     *
+     * @param line The first line of the region.
+     * @param col  The first column of the region.
+     * @param size The side of the region.
+     * @return The sum of the luminosities of the region.
+     */
+    public long getRegionSum(int line, int col, int size) {
+        buildSummedAreaTables();
+        return regionSum(this.sums, line, col, size);
+    }
+
+    /**
+     * Gets the sum of the squared luminosities of a square region.
+     *
+     * @param line The first line of the region.
+     * @param col  The first column of the region.
+     * @param size The side of the region.
+     * @return The sum of the squared luminosities of the region.
+     */
+    public long getRegionSquareSum(int line, int col, int size) {
+        buildSummedAreaTables();
+        return regionSum(this.squareSums, line, col, size);
+    }
+
+    /**
+     * Gets the squared error of a square region if all of its pixels were
+     * replaced by a single value.
+     *
+     * @param line  The first line of the region.
+     * @param col   The first column of the region.
+     * @param size  The side of the region.
+     * @param value The value replacing the pixels.
+     * @return The squared error of the region.
+     */
+    public long getRegionSquaredError(int line, int col, int size, int value) {
+        long n = (long) size * size;
+        return getRegionSquareSum(line, col, size) - 2L * value * getRegionSum(line, col, size) + n * value * value;
+    }
+
+    private static long regionSum(long[][] table, int line, int col, int size) {
+        return table[line + size][col + size] - table[line][col + size] - table[line + size][col] + table[line][col];
+    }
+
+    /**
+     * Builds the summed-area tables in one pass over the luminosities if they
+     * do not exist yet.
+     */
+    private void buildSummedAreaTables() {
+        if (this.sums != null) {
+            return;
+        }
+
+        int lines = this.luminosities.length;
+        int cols = lines == 0 ? 0 : this.luminosities[0].length;
+        long[][] s = new long[lines + 1][cols + 1];
+        long[][] sq = new long[lines + 1][cols + 1];
+
+        for (int i = 0; i < lines; i++) {
+            long rowSum = 0;
+            long rowSquareSum = 0;
+            for (int j = 0; j < cols; j++) {
+                long v = this.luminosities[i][j];
+                rowSum += v;
+                rowSquareSum += v * v;
+                s[i + 1][j + 1] = s[i][j + 1] + rowSum;
+                sq[i + 1][j + 1] = sq[i][j + 1] + rowSquareSum;
+            }
+        }
+
+        this.squareSums = sq;
+        this.sums = s;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Class that represents a color image read from a PPM file, each channel
+ * being stored as one byte per pixel
+ *
+ */
+public class PPM {
+
+    /**
+     * The red, green and blue channels, row-major, one unsigned byte per pixel
+     *
+     */
+    private byte[][] channels;
+
+    /**
+     * The length of a side of the image
+     *
+     */
+    private int length;
+
+    /**
+     * The maximum value of a channel
+     *
+     */
+    private int maxValue;
+
+    /**
+     * Constructor of the PPM class.
+     *
+     * @param channels The red, green and blue channels.
+     * @param length   The length of a side of the image.
+     * @param maxValue The maximum value of a channel.
+     */
+    public PPM(byte[][] channels, int length, int maxValue) {
+        this.channels = channels;
+        this.length = length;
+        this.maxValue = maxValue;
+    }
+
+    /**
+     * Gets the length of a side of the image.
+     *
+     * @return The length of the image.
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Gets the maximum value of a channel.
+     *
+     * @return The maximum value.
+     */
+    public int getMaxValue() {
+        return this.maxValue;
+    }
+
+    /**
+     * Gets one channel as a grayscale image.
+     *
+     * @param channel 0 for red, 1 for green, 2 for blue.
+     * @return The channel as a PMG.
+     */
+    public PMG getChannel(int channel) {
+        byte[] values = this.channels[channel];
+        int[][] luminosities = new int[this.length][this.length];
+
+        for (int i = 0; i < this.length; i++) {
+            for (int j = 0; j < this.length; j++) {
+                luminosities[i][j] = values[i * this.length + j] & 0xFF;
+            }
+        }
+        return new PMG(luminosities, this.maxValue);
+    }
+
+    /**
+     * Gets the image with every pixel packed as 0xRRGGBB.
+     *
+     * @return The packed image as a PMG.
+     */
+    public PMG getPacked() {
+        int[][] packed = new int[this.length][this.length];
+
+        for (int i = 0; i < this.length; i++) {
+            for (int j = 0; j < this.length; j++) {
+                int index = i * this.length + j;
+                packed[i][j] = (this.channels[0][index] & 0xFF) << 16
+                        | (this.channels[1][index] & 0xFF) << 8
+                        | (this.channels[2][index] & 0xFF);
+            }
+        }
+        return new PMG(packed, 0xFFFFFF);
+    }
+}
@@ -0,0 +1,529 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel engine for the Rho compression that gives exactly the tree of the
+ * sequential greedy algorithm.
+ *
+ * The tree is cut into partitions, the non-leaf nodes at a fixed depth, each
+ * with its own twig AVL. Merges in different partitions never touch the same
+ * nodes, so the sequence of merges of a partition does not depend on the
+ * others. The partitions advance in parallel up to an epsilon watermark,
+ * logging their merges; the logs are then replayed in the global greedy
+ * order (smallest epsilon first, latest inserted twig first on ties) to
+ * count the nodes, to run the merges above the partitions and to find the
+ * exact merge where the sequential loop stops. Merges logged past that point
+ * are undone.
+ *
+ */
+public class ParallelRhoCompressor {
+
+    /**
+     * A merge done by a partition, with what is needed to replay and undo it
+     *
+     */
+    private static class Merge {
+
+        /**
+         * The epsilon of the merged twig
+         *
+         */
+        private double epsilon;
+
+        /**
+         * The insertion key of the merged twig: its rank in the initial
+         * detection if positive, otherwise -(i + 1) where i is the index of
+         * the merge of the partition that made it a twig
+         *
+         */
+        private long key;
+
+        /**
+         * The nodes collapsed by the merge, the twig first then its
+         * ancestors, and the children they had
+         *
+         */
+        private ArrayList<QuadTreeNode> collapsed = new ArrayList<>();
+        private ArrayList<QuadTreeNode[]> children = new ArrayList<>();
+
+        /**
+         * Whether the root of the partition became a leaf
+         *
+         */
+        private boolean rootCollapsed;
+
+        /**
+         * The rank of the merge in the global sequence, once replayed
+         *
+         */
+        private long globalStep;
+
+        private Merge(double epsilon, long key) {
+            this.epsilon = epsilon;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A subtree compressed independently of the others
+     *
+     */
+    private static class Partition {
+
+        private QuadTreeNode root;
+        private TwigAVLTree twigs = new TwigAVLTree();
+        private IdentityHashMap<QuadTreeNode, Long> keys = new IdentityHashMap<>();
+        private ArrayList<Merge> log = new ArrayList<>();
+
+        /**
+         * The number of logged merges already replayed
+         *
+         */
+        private int replayed;
+
+        /**
+         * Whether the replay reached the merge that collapsed the root
+         *
+         */
+        private boolean replayedLeaf;
+
+        /**
+         * The number of twigs of the partition in the initial detection, and
+         * the rank of its first one in the detection of the whole tree
+         *
+         */
+        private int count;
+        private long offset;
+
+        private Partition(QuadTreeNode root) {
+            this.root = root;
+        }
+    }
+
+    /**
+     * The root of the tree to compress
+     *
+     */
+    private QuadTreeNode root;
+
+    /**
+     * The depth of the roots of the partitions
+     *
+     */
+    private int depth;
+
+    /**
+     * The partitions, in depth-first order
+     *
+     */
+    private ArrayList<Partition> partitions;
+
+    /**
+     * The index of each partition by its root
+     *
+     */
+    private IdentityHashMap<QuadTreeNode, Partition> partitionsByRoot;
+
+    /**
+     * The twigs above the partitions, handled during the replay, and their
+     * insertion time
+     *
+     */
+    private TwigAVLTree topTwigs;
+    private IdentityHashMap<QuadTreeNode, Long> topTimes;
+
+    /**
+     * The number of twigs found by the initial detection, every later
+     * insertion coming after them
+     *
+     */
+    private long initialTwigs;
+
+    /**
+     * The number of merges replayed so far
+     *
+     */
+    private long step;
+
+    /**
+     * The number of nodes of the tree after the replayed merges
+     *
+     */
+    private int nbNodes;
+
+    /**
+     * Constructor of the engine
+     *
+     * @param root  The root of the tree to compress
+     * @param depth The depth of the roots of the partitions, at least 1
+     *
+     */
+    public ParallelRhoCompressor(QuadTreeNode root, int depth) {
+        this.root = root;
+        this.depth = Math.max(depth, 1);
+    }
+
+    /**
+     * Compresses the tree like QuadTree.rhoCompressTree_ would
+     *
+     * @param nbNodes The number of nodes of the tree
+     * @param rho     The value of ρ for the Rho compression
+     * @return The number of nodes after the compression
+     *
+     */
+    public int compress(int nbNodes, int rho) {
+        int initialNodes = nbNodes;
+        this.nbNodes = nbNodes;
+        this.step = 0;
+        this.partitions = new ArrayList<>();
+        this.partitionsByRoot = new IdentityHashMap<>();
+        this.topTwigs = new TwigAVLTree();
+        this.topTimes = new IdentityHashMap<>();
+
+        collectPartitions(this.root, 0);
+        IntStream.range(0, this.partitions.size()).parallel()
+                .forEach(p -> this.partitions.get(p).count = countTwigs(this.partitions.get(p).root));
+        this.initialTwigs = 0;
+        detectTopTwigs(this.root);
+        IntStream.range(0, this.partitions.size()).parallel()
+                .forEach(p -> detectTwigs(this.partitions.get(p).root, this.partitions.get(p)));
+
+        double width = 1.0;
+        boolean done = false;
+        while (!done) {
+            double minEpsilon = minHeadEpsilon();
+            if (Double.isNaN(minEpsilon)) {
+                break;
+            }
+            double watermark = minEpsilon + width;
+            width *= 2;
+
+            IntStream.range(0, this.partitions.size()).parallel()
+                    .forEach(p -> advance(this.partitions.get(p), watermark));
+            done = replay(watermark, initialNodes, rho);
+        }
+
+        for (Partition partition : this.partitions) {
+            undo(partition);
+        }
+        return this.nbNodes;
+    }
+
+    /**
+     * Collects the non-leaf nodes at the partition depth
+     *
+     * @param node  The current node of the traversal
+     * @param level The depth of the node
+     *
+     */
+    private void collectPartitions(QuadTreeNode node, int level) {
+        if (node.isLeaf()) {
+            return;
+        }
+        if (level == this.depth) {
+            Partition partition = new Partition(node);
+            this.partitions.add(partition);
+            this.partitionsByRoot.put(node, partition);
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            collectPartitions(node.getChild(i), level + 1);
+        }
+    }
+
+    /**
+     * Counts the twigs of a subtree
+     *
+     * @param node The current node of the traversal
+     * @return The number of twigs under the node
+     *
+     */
+    private static int countTwigs(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return 0;
+        }
+        if (node.isTwigRoot()) {
+            return 1;
+        }
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            count += countTwigs(node.getChild(i));
+        }
+        return count;
+    }
+
+    /**
+     * Detects the twigs above the partitions and gives each partition the
+     * rank its first twig has in the depth-first detection of the whole tree
+     *
+     * @param node The current node of the traversal
+     *
+     */
+    private void detectTopTwigs(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return;
+        }
+
+        Partition partition = this.partitionsByRoot.get(node);
+        if (partition != null) {
+            partition.offset = this.initialTwigs;
+            this.initialTwigs += partition.count;
+        } else if (node.isTwigRoot()) {
+            this.topTwigs.insert(Util.calculateEpsilon(node), node);
+            this.topTimes.put(node, this.initialTwigs);
+            this.initialTwigs++;
+        } else {
+            for (int i = 0; i < 4; i++) {
+                detectTopTwigs(node.getChild(i));
+            }
+        }
+    }
+
+    /**
+     * Inserts the twigs of a partition in its AVL in depth-first order
+     *
+     * @param node      The current node of the traversal
+     * @param partition The partition being detected
+     *
+     */
+    private static void detectTwigs(QuadTreeNode node, Partition partition) {
+        if (!node.isLeaf()) {
+            if (node.isTwigRoot()) {
+                partition.twigs.insert(Util.calculateEpsilon(node), node);
+                partition.keys.put(node, partition.offset + partition.keys.size());
+            } else {
+                for (int i = 0; i < 4; i++) {
+                    detectTwigs(node.getChild(i), partition);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the smallest epsilon among the twigs still to merge, once every
+     * logged merge has been replayed
+     *
+     * @return The smallest epsilon, or NaN if there is no twig left
+     *
+     */
+    private double minHeadEpsilon() {
+        double min = Double.NaN;
+        TwigAVLNode top = this.topTwigs.findMin(this.topTwigs.getRoot());
+
+        if (top != null) {
+            min = top.getEpsilon();
+        }
+        for (Partition partition : this.partitions) {
+            TwigAVLNode head = partition.twigs.findMin(partition.twigs.getRoot());
+            if (head != null && (Double.isNaN(min) || head.getEpsilon() < min)) {
+                min = head.getEpsilon();
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Runs the greedy merges of a partition up to a watermark, logging them
+     *
+     * @param partition The partition to advance
+     * @param watermark The largest epsilon that may be merged
+     *
+     */
+    private static void advance(Partition partition, double watermark) {
+        TwigAVLTree twigs = partition.twigs;
+        TwigAVLNode minTwig = twigs.findMin(twigs.getRoot());
+
+        while (minTwig != null && minTwig.getEpsilon() <= watermark) {
+            QuadTreeNode twigRoot = minTwig.getLastQuadNode();
+            Merge merge = new Merge(minTwig.getEpsilon(), partition.keys.remove(twigRoot));
+            twigs.delete(minTwig.getEpsilon());
+
+            merge.collapsed.add(twigRoot);
+            merge.children.add(twigRoot.getChildren());
+            QuadTree.lambdaCompressTwig(twigRoot);
+
+            QuadTreeNode node = twigRoot;
+            merge.rootCollapsed = node == partition.root;
+            while (!merge.rootCollapsed && node.getParent().areChildrenEqual()) {
+                node = node.getParent();
+                merge.collapsed.add(node);
+                merge.children.add(node.getChildren());
+                node.setValue(node.getChildValue(0));
+                node.destroyChildren();
+                merge.rootCollapsed = node == partition.root;
+            }
+
+            if (!merge.rootCollapsed && node.getParent().isTwigRoot()) {
+                QuadTreeNode parentNode = node.getParent();
+                twigs.insert(Util.calculateEpsilon(parentNode), parentNode);
+                partition.keys.put(parentNode, -(long) (partition.log.size() + 1));
+            }
+
+            partition.log.add(merge);
+            minTwig = twigs.findMin(twigs.getRoot());
+        }
+    }
+
+    /**
+     * Replays the logged merges and the merges above the partitions in the
+     * global greedy order, up to the watermark or the end of the compression
+     *
+     * @param watermark    The largest epsilon merged by the partitions
+     * @param initialNodes The number of nodes before the compression
+     * @param rho          The value of ρ for the Rho compression
+     * @return true if the compression is over, false if the partitions
+     *         must advance further
+     *
+     */
+    private boolean replay(double watermark, int initialNodes, int rho) {
+        PriorityQueue<Partition> heads = new PriorityQueue<>((a, b) -> {
+            Merge first = a.log.get(a.replayed);
+            Merge second = b.log.get(b.replayed);
+            if (first.epsilon != second.epsilon) {
+                return Double.compare(first.epsilon, second.epsilon);
+            }
+            return Long.compare(insertionTime(b, second), insertionTime(a, first));
+        });
+        for (Partition partition : this.partitions) {
+            if (partition.replayed < partition.log.size()) {
+                heads.add(partition);
+            }
+        }
+
+        while ((double) this.nbNodes / (double) initialNodes * 100 > rho) {
+            Partition best = heads.peek();
+            double bestEpsilon = 0;
+            long bestTime = 0;
+
+            if (best != null) {
+                Merge merge = best.log.get(best.replayed);
+                bestEpsilon = merge.epsilon;
+                bestTime = insertionTime(best, merge);
+            }
+
+            TwigAVLNode top = this.topTwigs.findMin(this.topTwigs.getRoot());
+            if (top != null && top.getEpsilon() <= watermark && (best == null || top.getEpsilon() < bestEpsilon
+                    || (top.getEpsilon() == bestEpsilon && this.topTimes.get(top.getLastQuadNode()) > bestTime))) {
+                QuadTreeNode twigRoot = top.getLastQuadNode();
+                this.topTwigs.delete(top.getEpsilon());
+                this.topTimes.remove(twigRoot);
+                QuadTree.lambdaCompressTwig(twigRoot);
+                this.nbNodes -= 4;
+                collapseAbove(twigRoot.getParent());
+            } else if (best != null) {
+                heads.poll();
+                Merge merge = best.log.get(best.replayed);
+                merge.globalStep = this.step;
+                best.replayed++;
+                if (best.replayed < best.log.size()) {
+                    heads.add(best);
+                }
+                this.nbNodes -= 4 * merge.collapsed.size();
+                if (merge.rootCollapsed) {
+                    best.replayedLeaf = true;
+                    collapseAbove(best.root.getParent());
+                }
+            } else {
+                return Double.isNaN(minHeadEpsilon());
+            }
+            this.step++;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the time a twig was inserted in the global AVL of the sequential
+     * algorithm
+     *
+     * @param partition The partition of the twig
+     * @param merge     The merge of the twig
+     * @return The insertion time, later insertions having larger times
+     *
+     */
+    private long insertionTime(Partition partition, Merge merge) {
+        if (merge.key >= 0) {
+            return merge.key;
+        }
+        return this.initialTwigs + partition.log.get((int) (-merge.key - 1)).globalStep;
+    }
+
+    /**
+     * Collapses the nodes above the partitions whose children became equal
+     * leaves, as seen at the current point of the replay, and registers the
+     * first remaining one if it became a twig
+     *
+     * @param node The first node above the merge
+     *
+     */
+    private void collapseAbove(QuadTreeNode node) {
+        while (node != null && areReplayedChildrenEqual(node)) {
+            node.setValue(node.getChildValue(0));
+            node.destroyChildren();
+            this.nbNodes -= 4;
+            node = node.getParent();
+        }
+
+        if (node != null && isReplayedTwigRoot(node)) {
+            this.topTwigs.insert(Util.calculateEpsilon(node), node);
+            this.topTimes.put(node, this.initialTwigs + this.step);
+        }
+    }
+
+    /**
+     * Checks if a child is a leaf at the current point of the replay: the root
+     * of a partition may already be a leaf because of merges not replayed yet
+     *
+     * @param child The child to check
+     * @return true if the child is a leaf at this point
+     *
+     */
+    private boolean isReplayedLeaf(QuadTreeNode child) {
+        Partition partition = this.partitionsByRoot.get(child);
+        return partition == null ? child.isLeaf() : partition.replayedLeaf;
+    }
+
+    private boolean isReplayedTwigRoot(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (!isReplayedLeaf(node.getChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean areReplayedChildrenEqual(QuadTreeNode node) {
+        if (!isReplayedTwigRoot(node)) {
+            return false;
+        }
+        int value = node.getChildValue(0);
+        for (int i = 1; i < 4; i++) {
+            if (node.getChildValue(i) != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Undoes the merges a partition made past the end of the replay, the
+     * latest first
+     *
+     * @param partition The partition to restore
+     *
+     */
+    private static void undo(Partition partition) {
+        for (int m = partition.log.size() - 1; m >= partition.replayed; m--) {
+            Merge merge = partition.log.get(m);
+            for (int c = merge.collapsed.size() - 1; c >= 0; c--) {
+                QuadTreeNode node = merge.collapsed.get(c);
+                node.setValue(-1);
+                node.setChildren(merge.children.get(c));
+            }
+        }
+    }
+}
@@ -1,3 +1,9 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
+
 /**
  * Class that represents a quadtree of a PMG file
  * 
@@ -5,13 +11,14 @@
 public class QuadTree {
 
     /**
-     * The twigs avl, it's gonna stay empty except when doing the dynamic
-     * compression
+     * The twigs avl, it's gonna stay empty until the first dynamic compression
      * It's gonna be used by the dynamic compression to store the twigs with their
      * epsilon
      * to be able to determine in a efficient way with a logarithmic complexity
      * which twig
      * has the less luminosity difference to give it priority for future compressions
+     * The dynamic compression keeps it consistent with the tree, so it is kept
+     * for the next ones and only dropped when the tree changes in another way
      * 
      */
     private TwigAVLTree twigs;
@@ -34,6 +41,13 @@ public class QuadTree {
      */
     private int nbNodes;
 
+    /**
+     * The maximum luminosity of a tree read or assembled without a source
+     * image, the one its PGM file is written with
+     * 
+     */
+    public static final int DEFAULT_MAX_LUMINOSITY = 255;
+
     /**
      * The maximum luminosity of the image represented by this tree
      * 
@@ -46,6 +60,58 @@ public class QuadTree {
      */
     private String imageName;
 
+    /**
+     * The source image this tree was built from, kept to measure the quality
+     * of the compressed tree against it
+     * 
+     */
+    private PMG source;
+
+    /**
+     * The latest published snapshot of this tree, null until snapshots are
+     * enabled. Readers only ever go through it, so they never see a merge in
+     * progress; a version nobody references anymore is reclaimed by the
+     * garbage collector.
+     * 
+     */
+    private final AtomicReference<QuadTreeSnapshot> snapshot = new AtomicReference<>();
+
+    /**
+     * The nodes that became leaves since the last published snapshot
+     * 
+     */
+    private ArrayList<QuadTreeNode> dirtyNodes;
+
+    /**
+     * The number of merges between two published snapshots, and the number
+     * of merges since the last one
+     * 
+     */
+    private int publishInterval;
+    private int mergesSincePublish;
+
+    /**
+     * Whether the values of the leaves are colors packed as 0xRRGGBB, merged
+     * channel by channel
+     * 
+     */
+    private boolean packedColor;
+
+    /**
+     * true if the nodes of this tree may be shared with other trees, as the
+     * frames of a sequence and the snapshots, which must then not be changed
+     * in place
+     * 
+     */
+    private boolean shared;
+
+    /**
+     * true if the internal nodes hold the sum, minimum and maximum of their
+     * region, kept up to date by the compressions
+     * 
+     */
+    private boolean aggregates;
+
     /**
      * Construct quadtree from 2d array representation of the image
      * 
@@ -53,13 +119,80 @@ public class QuadTree {
      * 
      */
     public QuadTree(String path) {
-        PMG image = FileManager.loadImage(path);
+        this(path, BuildMode.RECURSIVE);
+    }
+
+    /**
+     * Construct quadtree from an image with the given build strategy
+     * 
+     * @param path The local path of the image
+     * @param mode The strategy used to build the tree
+     * 
+     */
+    public QuadTree(String path, BuildMode mode) {
+        this(FileManager.loadImage(path), path, mode);
+    }
+
+    /**
+     * Construct quadtree from an image already loaded in memory
+     * 
+     * @param image The image to represent
+     * @param name  The name of the image, used to name the compressed files
+     * @param mode  The strategy used to build the tree
+     * 
+     */
+    public QuadTree(PMG image, String name, BuildMode mode) {
+        this(image, name, mode, false);
+    }
+
+    /**
+     * Construct quadtree from an image already loaded in memory, whose values
+     * may be packed RGB colors
+     * 
+     * @param image       The image to represent
+     * @param name        The name of the image, used to name the compressed files
+     * @param mode        The strategy used to build the tree
+     * @param packedColor true if each value is a color packed as 0xRRGGBB
+     * 
+     */
+    public QuadTree(PMG image, String name, BuildMode mode, boolean packedColor) {
+        this.packedColor = packedColor;
         this.root = new QuadTreeNode();
         this.length = image.getLuminosities().length;
         nbNodes = 1;
-        this.imageName =  "compressed-"+ path;
+        this.imageName =  "compressed-"+ name;
+        this.source = image;
+        this.maxLuminosity = image.getMaxLuminosity();
 
-        constructQuadtree(root, image.getLuminosities(), 0, 0, image.getLuminosities().length - 1, image.getLuminosities().length - 1);
+        if (mode == BuildMode.PYRAMID) {
+            MinMaxPyramid pyramid = new MinMaxPyramid(image);
+            constructQuadtree(root, pyramid, pyramid.getLevels(), 0, 0);
+        } else if (mode == BuildMode.BITMAP) {
+            UniformityBitmap bitmap = new UniformityBitmap(image);
+            constructQuadtree(root, bitmap, image.getLuminosities(), Integer.numberOfTrailingZeros(this.length), 0, 0);
+        } else {
+            constructQuadtree(root, image.getLuminosities(), 0, 0, image.getLuminosities().length - 1, image.getLuminosities().length - 1);
+        }
+    }
+
+    /**
+     * Construct a read-only view over an existing structure, used by the
+     * snapshots
+     * 
+     * @param root      The root of the structure
+     * @param length    The length of the image
+     * @param nbNodes   The number of nodes of the structure
+     * @param imageName The name of the compressed image
+     * @param source    The source image
+     * 
+     */
+    QuadTree(QuadTreeNode root, int length, int nbNodes, String imageName, PMG source) {
+        this.root = root;
+        this.length = length;
+        this.nbNodes = nbNodes;
+        this.imageName = imageName;
+        this.source = source;
+        this.maxLuminosity = source == null ? DEFAULT_MAX_LUMINOSITY : source.getMaxLuminosity();
     }
 
     /**
@@ -120,6 +253,64 @@ public class QuadTree {
         }
     }
 
+    /**
+     * Construct quadtree from the min/max pyramid of the image. A block whose
+     * minimum equals its maximum becomes a leaf directly, so no node is ever
+     * created below a uniform region.
+     * 
+     * @param node    The node covering the block
+     * @param pyramid The min/max pyramid of the image
+     * @param k       The level of the block in the pyramid
+     * @param r       The line of the block in its level
+     * @param c       The column of the block in its level
+     * 
+     */
+    public void constructQuadtree(QuadTreeNode node, MinMaxPyramid pyramid, int k, int r, int c) {
+        if (pyramid.isUniform(k, r, c)) {
+            node.setValue(pyramid.getMin(k, r, c));
+        } else {
+            node.createChildren();
+            this.nbNodes += 4;
+
+            constructQuadtree(node.getChild(0), pyramid, k - 1, 2 * r, 2 * c);
+            constructQuadtree(node.getChild(1), pyramid, k - 1, 2 * r, 2 * c + 1);
+            constructQuadtree(node.getChild(2), pyramid, k - 1, 2 * r + 1, 2 * c + 1);
+            constructQuadtree(node.getChild(3), pyramid, k - 1, 2 * r + 1, 2 * c);
+        }
+    }
+
+    /**
+     * Construct quadtree using the uniformity bitmap of the image for the
+     * blocks up to 8x8, and collapsing equal children above them.
+     * 
+     * @param node   The node covering the block
+     * @param bitmap The uniformity bitmap of the image
+     * @param arr    The 2D array that represents the image file body
+     * @param k      The level of the block, its side being 2^k
+     * @param r      The line of the block in its level
+     * @param c      The column of the block in its level
+     * 
+     */
+    public void constructQuadtree(QuadTreeNode node, UniformityBitmap bitmap, int[][] arr, int k, int r, int c) {
+        if (k == 0 || (k <= UniformityBitmap.MAX_LEVEL && bitmap.isUniform(k, r, c))) {
+            node.setValue(arr[r << k][c << k]);
+            return;
+        }
+
+        node.createChildren();
+        constructQuadtree(node.getChild(0), bitmap, arr, k - 1, 2 * r, 2 * c);
+        constructQuadtree(node.getChild(1), bitmap, arr, k - 1, 2 * r, 2 * c + 1);
+        constructQuadtree(node.getChild(2), bitmap, arr, k - 1, 2 * r + 1, 2 * c + 1);
+        constructQuadtree(node.getChild(3), bitmap, arr, k - 1, 2 * r + 1, 2 * c);
+
+        if (k > UniformityBitmap.MAX_LEVEL && node.areChildrenEqual()) {
+            node.setValue(node.getChildValue(0));
+            node.destroyChildren();
+        } else {
+            this.nbNodes += 4;
+        }
+    }
+
     /**
      * Convert the quadtree to its parenthesized string representation.
      * 
@@ -146,25 +337,76 @@ public class QuadTree {
      * @return The parenthesized string representation.
      */
     private String toString(QuadTreeNode node) {
+        StringBuilder result = new StringBuilder();
+        toString(node, result);
+        return result.toString();
+    }
+
+    /**
+     * Appends the parenthesized string representation of a subtree.
+     * 
+     * @param node   The current node in the traversal.
+     * @param result The builder receiving the representation.
+     */
+    private void toString(QuadTreeNode node, StringBuilder result) {
         if (node != null) {
             if (node.isLeaf()) {
-                return node.getValue() + " ";
-            } else if(node.isTwigRoot()){
-                String result = "(";
+                result.append(node.getValue()).append(' ');
+            } else {
+                result.append('(');
                 for (int i = 0; i < 4; i++) {
-                    result += toString(node.getChild(i));
+                    toString(node.getChild(i), result);
                     if (i < 3) {
-                        result += " ";
+                        result.append(' ');
                     }
                 }
-                result += ")";
-                return result;
+                result.append(')');
             }
         }
-        return "";
     }
 
+    /**
+     * Gets the length in bytes of the parenthesized representation of this
+     * tree without building it.
+     * 
+     * @return The serialized size of the tree.
+     */
+    public long getSerializedSize() {
+        return getSerializedSize(this.root);
+    }
+
+    /**
+     * Helper method for recursively measuring the serialized size of a subtree.
+     * 
+     * @param node The current node in the traversal.
+     * @return The serialized size of the subtree.
+     */
+    private long getSerializedSize(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return Util.serializedLeafSize(node.getValue());
+        }
+
+        long size = Util.SERIALIZED_NODE_OVERHEAD;
+        for (int i = 0; i < 4; i++) {
+            size += getSerializedSize(node.getChild(i));
+        }
+        return size;
+    }
+
+
+
+    /**
+     * The depth of the subtrees compressed in parallel by the parallel Rho
+     * compression, 3 giving up to 64 of them
+     * 
+     */
+    public static final int PARALLEL_PARTITION_DEPTH = 3;
 
+    /**
+     * The permutation leaving the children in place
+     * 
+     */
+    private static final int[] IDENTITY = { 0, 1, 2, 3 };
 
     /**
      * Compress the quadtree with lambda method
@@ -173,7 +415,11 @@ public class QuadTree {
      * 
      */
     public void lambdaCompressTree() {
+        checkNotShared();
         lambdaCompressTree(this.root);
+        this.twigs = null;
+        recomputeAggregates();
+        publishSnapshot(true);
     }
 
     /**
@@ -186,7 +432,7 @@ public class QuadTree {
     private void lambdaCompressTree(QuadTreeNode node) {
         if (!node.isLeaf()) {
             if (node.isTwigRoot()) {
-                lambdaCompressTwig(node);
+                compressTwig(node);
                 this.nbNodes -= 4;
             } else {
                 lambdaCompressTree(node.getChild(0));
@@ -208,6 +454,34 @@ public class QuadTree {
         twigRoot.destroyChildren();
     }
 
+    /**
+     * Compress a twig by using the lambda compression algorithm on each
+     * channel if the values are packed colors
+     * 
+     * @param twigRoot the twig that we want to compress
+     * 
+     */
+    private void compressTwig(QuadTreeNode twigRoot) {
+        if (this.packedColor) {
+            twigRoot.setValue(Util.calculateAvgLogColor(twigRoot));
+            twigRoot.destroyChildren();
+        } else {
+            lambdaCompressTwig(twigRoot);
+        }
+    }
+
+    /**
+     * Calculates the epsilon of a twig, the largest one among the channels if
+     * the values are packed colors
+     * 
+     * @param twigRoot the twig
+     * @return the epsilon of the twig
+     * 
+     */
+    private double twigEpsilon(QuadTreeNode twigRoot) {
+        return this.packedColor ? Util.calculateColorEpsilon(twigRoot) : Util.calculateEpsilon(twigRoot);
+    }
+
     /**
      * Méthode pour compresser le quadtree avec l'algorithme Rho.
      * 
@@ -215,9 +489,29 @@ public class QuadTree {
      * 
      */
     public void rhoCompressTree(int rho) {
-        detectCompressableTwigs();
+        checkNotShared();
+        ensureTwigs();
         rhoCompressTree_(rho);
+    }
+
+    /**
+     * Compresses the quadtree with the Rho compression algorithm, merging the
+     * twigs of disjoint subtrees in parallel. The result is the same tree as
+     * rhoCompressTree.
+     *
+     * @param rho The value of ρ for the Rho compression.
+     * 
+     */
+    public void parallelRhoCompressTree(int rho) {
+        checkNotShared();
+        if (this.packedColor) {
+            rhoCompressTree(rho);
+            return;
+        }
+        this.nbNodes = new ParallelRhoCompressor(this.root, PARALLEL_PARTITION_DEPTH).compress(this.nbNodes, rho);
         this.twigs = null;
+        recomputeAggregates();
+        publishSnapshot(true);
     }
 
     /**
@@ -227,11 +521,14 @@ public class QuadTree {
      * 
      */
     public void rhoCompressTree_(int rho) {
+        checkNotShared();
         int initial_nodes_number = this.nbNodes;
         TwigAVLNode minTwig = this.twigs.findMin(twigs.getRoot());
         double ratio = 1.0;
         while (minTwig != null && ratio*100 > rho) {
-            lambdaCompressTwig(minTwig.getLastQuadNode());
+            compressTwig(minTwig.getLastQuadNode());
+            markDirty(minTwig.getLastQuadNode());
+            refreshAggregates(minTwig.getLastQuadNode());
 
             QuadTreeNode parentNode = minTwig.getLastQuadNode().getParent();
 
@@ -241,90 +538,1444 @@ public class QuadTree {
             while (parentNode != null && parentNode.areChildrenEqual()) {
                 parentNode.setValue(parentNode.getChildValue(0));
                 parentNode.destroyChildren();
+                markDirty(parentNode);
                 this.nbNodes -= 4;
                 parentNode = parentNode.getParent();
             }
             
             if (parentNode != null && parentNode.isTwigRoot()) {
-                double epsilon = Util.calculateEpsilon(parentNode);
+                double epsilon = twigEpsilon(parentNode);
                 twigs.insert(epsilon, parentNode);
             }
 
             minTwig = this.twigs.findMin(this.twigs.getRoot());
             ratio = (double)this.nbNodes / (double)initial_nodes_number;
+            afterMerge();
         }
+        publishSnapshot(false);
 
     }
 
     /**
-     * Detects compressible twigs and add them to twigs AVL for future compressions.
+     * Compresses the quadtree greedily in the same order as the Rho
+     * compression until a quality or size target is reached. The squared
+     * error and the serialized size are tracked incrementally, so the merge
+     * loop runs once and stops on the last state that meets the target.
      *
+     * @param minPsnr  The minimum PSNR in decibels the tree must keep, or
+     *                 negative infinity for no quality bound
+     * @param maxBytes The serialized size in bytes to reach, or 0 to merge as
+     *                 long as the quality bound allows
+     * @return true if the tree meets both targets, false otherwise
+     * @throws IllegalStateException If the tree has no source image to
+     *                               measure the error against, as the trees
+     *                               derived by a transform or a combination,
+     *                               or holds packed colors, whose error is
+     *                               not a luminosity error
+     * 
      */
-    private void detectCompressableTwigs() {
-        this.twigs = new TwigAVLTree();
-        detectCompressableTwigs(this.root);
+    public boolean targetCompressTree(double minPsnr, long maxBytes) {
+        if (this.source == null) {
+            throw new IllegalStateException("the targeted compression needs the source image of the tree");
+        }
+        if (this.packedColor) {
+            throw new IllegalStateException("the targeted compression does not support packed colors");
+        }
+        checkNotShared();
+        ensureTwigs();
+        return targetCompressTree_(minPsnr, maxBytes);
     }
 
     /**
-     *  Insert all twigs in the AVL twigs tree 
+     * Compresses the quadtree until its PSNR would drop below a minimum.
+     *
+     * @param minPsnr The minimum PSNR in decibels
+     * @return true if the tree meets the target, false otherwise
+     * @throws IllegalStateException If the tree has no source image or
+     *                               holds packed colors
      * 
-     * @param node the current node of the recursive traversal
+     */
+    public boolean psnrCompressTree(double minPsnr) {
+        return targetCompressTree(minPsnr, 0);
+    }
+
+    /**
+     * Compresses the quadtree until its serialized size fits in a budget.
+     *
+     * @param maxBytes The maximum serialized size in bytes
+     * @return true if the tree meets the target, false otherwise
+     * @throws IllegalStateException If the tree has no source image or
+     *                               holds packed colors
      * 
      */
-    private void detectCompressableTwigs(QuadTreeNode node) {
-        if (node != null && !node.isLeaf()) {
+    public boolean sizeCompressTree(long maxBytes) {
+        return targetCompressTree(Double.NEGATIVE_INFINITY, maxBytes);
+    }
 
-            if (node.isTwigRoot()) {
-                double epsilon = Util.calculateEpsilon(node);
-                this.twigs.insert(epsilon, node);
-            } else {
-                for (int i = 0; i < 4; i++) {
-                    detectCompressableTwigs(node.getChild(i));
-                }
+    /**
+     * Runs the greedy merge loop of the targeted compression.
+     *
+     * @param minPsnr  The minimum PSNR in decibels
+     * @param maxBytes The serialized size in bytes to reach
+     * @return true if the tree meets both targets, false otherwise
+     * 
+     */
+    private boolean targetCompressTree_(double minPsnr, long maxBytes) {
+        int maxLuminosity = this.source.getMaxLuminosity();
+        double maxError = (double) this.length * this.length * maxLuminosity * maxLuminosity
+                / Math.pow(10, minPsnr / 10);
+        long error = computeSquaredError(this.source);
+        long size = getSerializedSize();
+        TwigAVLNode minTwig = this.twigs.findMin(this.twigs.getRoot());
+
+        while (minTwig != null && size > maxBytes) {
+            QuadTreeNode twigRoot = minTwig.getLastQuadNode();
+            int value = (int) Math.round(Util.calculateAvgLogLuminosity(twigRoot));
+            int[] region = getRegion(twigRoot);
+            int half = region[2] / 2;
+            long mergedError = this.source.getRegionSquaredError(region[0], region[1], region[2], value);
+
+            mergedError -= this.source.getRegionSquaredError(region[0], region[1], half, twigRoot.getChildValue(0));
+            mergedError -= this.source.getRegionSquaredError(region[0], region[1] + half, half, twigRoot.getChildValue(1));
+            mergedError -= this.source.getRegionSquaredError(region[0] + half, region[1] + half, half, twigRoot.getChildValue(2));
+            mergedError -= this.source.getRegionSquaredError(region[0] + half, region[1], half, twigRoot.getChildValue(3));
+
+            if (error + mergedError > maxError) {
+                break;
+            }
+
+            size -= getSerializedSize(twigRoot);
+            twigRoot.setValue(value);
+            twigRoot.destroyChildren();
+            markDirty(twigRoot);
+            refreshAggregates(twigRoot);
+            size += Util.serializedLeafSize(value);
+            error += mergedError;
+
+            QuadTreeNode parentNode = twigRoot.getParent();
+
+            this.twigs.delete(minTwig.getEpsilon());
+            this.nbNodes -= 4;
+
+            while (parentNode != null && parentNode.areChildrenEqual()) {
+                size -= getSerializedSize(parentNode);
+                parentNode.setValue(parentNode.getChildValue(0));
+                parentNode.destroyChildren();
+                markDirty(parentNode);
+                size += Util.serializedLeafSize(parentNode.getValue());
+                this.nbNodes -= 4;
+                parentNode = parentNode.getParent();
+            }
+
+            if (parentNode != null && parentNode.isTwigRoot()) {
+                double epsilon = twigEpsilon(parentNode);
+                twigs.insert(epsilon, parentNode);
             }
 
+            minTwig = this.twigs.findMin(this.twigs.getRoot());
+            afterMerge();
         }
+
+        publishSnapshot(false);
+        return (maxBytes == 0 || size <= maxBytes) && error <= maxError;
     }
 
     /**
-     * Get the root of this quadtree
+     * Starts publishing snapshots of this tree for concurrent readers. The
+     * first one is a full copy, the next ones copy only the paths to the
+     * nodes merged since the previous one and share everything else.
+     *
+     * @param interval The number of merges between two snapshots
      * 
-     * @return the root node of this quadtree
+     */
+    public void enableSnapshots(int interval) {
+        this.publishInterval = Math.max(interval, 1);
+        this.mergesSincePublish = 0;
+        this.dirtyNodes = new ArrayList<>();
+        publishSnapshot(true);
+    }
+
+    /**
+     * Gets the latest published snapshot without blocking the compression
+     *
+     * @return The latest snapshot, or null if snapshots are not enabled
      * 
      */
-    public QuadTreeNode getRoot() {
-        return this.root;
+    public QuadTreeSnapshot getSnapshot() {
+        return this.snapshot.get();
     }
 
     /**
-     * Get the length of the original image
+     * Records a node that became a leaf for the next snapshot
+     *
+     * @param node The collapsed node
      * 
-     * @return the length of the original image
+     */
+    private void markDirty(QuadTreeNode node) {
+        if (this.dirtyNodes != null) {
+            this.dirtyNodes.add(node);
+        }
+    }
+
+    /**
+     * Publishes a snapshot if enough merges happened since the last one
      * 
      */
-    public int getLength() {
-        return this.length;
+    private void afterMerge() {
+        if (this.dirtyNodes != null && ++this.mergesSincePublish >= this.publishInterval) {
+            publishSnapshot(false);
+        }
     }
 
     /**
-     * Gets the number of nodes in the tree.
+     * Publishes a new snapshot of this tree if snapshots are enabled
      *
-     * @return The number of nodes in the tree.
+     * @param full true to copy the whole tree, false to copy only the paths
+     *             to the nodes that became leaves since the last snapshot
      * 
      */
-    public int getNbNodes()
-    {
-        return this.nbNodes;
+    private void publishSnapshot(boolean full) {
+        if (this.dirtyNodes == null) {
+            return;
+        }
+
+        QuadTreeSnapshot previous = this.snapshot.get();
+        QuadTreeNode copy;
+        if (full || previous == null) {
+            copy = copySubtree(this.root);
+        } else if (this.dirtyNodes.isEmpty()) {
+            return;
+        } else {
+            IdentityHashMap<QuadTreeNode, Boolean> onPath = new IdentityHashMap<>();
+            for (QuadTreeNode node : this.dirtyNodes) {
+                while (node != null && onPath.put(node, Boolean.TRUE) == null) {
+                    node = node.getParent();
+                }
+            }
+            copy = copyPaths(this.root, previous.getRoot(), onPath);
+        }
+
+        long version = previous == null ? 0 : previous.getVersion() + 1;
+        this.dirtyNodes.clear();
+        this.mergesSincePublish = 0;
+        QuadTree view = new QuadTree(copy, this.length, this.nbNodes, this.imageName, this.source);
+        view.packedColor = this.packedColor;
+        view.markShared();
+        this.snapshot.set(new QuadTreeSnapshot(view, version));
     }
 
     /**
-     * Gets the name of thr image.
+     * Copies a whole subtree
      *
-     * @return The name of the image.
+     * @param node The root of the subtree
+     * @return The copy
      * 
      */
-    public String getImageName()
-    {
-        return this.imageName;
+    private static QuadTreeNode copySubtree(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return new QuadTreeNode(node.getValue());
+        }
+
+        QuadTreeNode[] children = new QuadTreeNode[4];
+        for (int i = 0; i < 4; i++) {
+            children[i] = copySubtree(node.getChild(i));
+        }
+        QuadTreeNode copy = new QuadTreeNode();
+        copy.setChildren(children);
+        return copy;
+    }
+
+    /**
+     * Copies the nodes on the paths to changed nodes and reuses the previous
+     * snapshot everywhere else. Merges only turn nodes into leaves, so the
+     * previous snapshot always has at least the structure of this tree.
+     *
+     * @param node     The current node of this tree
+     * @param previous The matching node of the previous snapshot
+     * @param onPath   The changed nodes and their ancestors
+     * @return The node of the new snapshot
+     * 
+     */
+    private static QuadTreeNode copyPaths(QuadTreeNode node, QuadTreeNode previous,
+            IdentityHashMap<QuadTreeNode, Boolean> onPath) {
+        if (!onPath.containsKey(node)) {
+            return previous;
+        }
+        if (node.isLeaf()) {
+            return new QuadTreeNode(node.getValue());
+        }
+
+        QuadTreeNode[] children = new QuadTreeNode[4];
+        for (int i = 0; i < 4; i++) {
+            children[i] = copyPaths(node.getChild(i), previous.getChild(i), onPath);
+        }
+        QuadTreeNode copy = new QuadTreeNode();
+        copy.setChildren(children);
+        return copy;
+    }
+
+    /**
+     * Replaces a rectangle of the image and rebuilds only the subtrees it
+     * touches. Leaves partly covered by the rectangle are split, ancestors
+     * whose children become equal are collapsed again, and the twigs AVL is
+     * updated for the twigs that changed. The tree gets an edited copy of its
+     * source image, the image it was built from is left as it is.
+     *
+     * @param x      The first column of the rectangle
+     * @param y      The first line of the rectangle
+     * @param w      The width of the rectangle
+     * @param h      The height of the rectangle
+     * @param pixels The new values, h lines of w columns
+     * @throws IllegalArgumentException If the rectangle is outside the image,
+     *                                  or a value is negative or above the
+     *                                  maximum luminosity of the source
+     * @throws IllegalStateException If the tree has no source image to
+     *                               rebuild the subtrees from, as the trees
+     *                               derived by a transform or a combination
+     * 
+     */
+    public void updateRegion(int x, int y, int w, int h, int[][] pixels) {
+        if (this.source == null) {
+            throw new IllegalStateException("the region update needs the source image of the tree");
+        }
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > this.length || y + h > this.length
+                || pixels.length < h) {
+            throw new IllegalArgumentException("invalid region " + x + "," + y + " " + w + "x" + h);
+        }
+        for (int i = 0; i < h; i++) {
+            if (pixels[i] == null || pixels[i].length < w) {
+                throw new IllegalArgumentException("line " + i + " of the pixels is shorter than " + w);
+            }
+            for (int j = 0; j < w; j++) {
+                if (pixels[i][j] < 0 || pixels[i][j] > this.source.getMaxLuminosity()) {
+                    throw new IllegalArgumentException("pixel " + i + "," + j + " of value " + pixels[i][j]
+                            + " is outside [0, " + this.source.getMaxLuminosity() + "]");
+                }
+            }
+        }
+        checkNotShared();
+
+        // The source may be shared with copies of this tree or with a frame
+        // sequence, so the edited lines are written into copies of their own
+        int[][] arr = this.source.getLuminosities().clone();
+        for (int i = 0; i < h; i++) {
+            arr[y + i] = arr[y + i].clone();
+            System.arraycopy(pixels[i], 0, arr[y + i], x, w);
+        }
+        this.source = new PMG(arr, this.source.getMaxLuminosity());
+
+        updateRegion(this.root, 0, 0, this.length, y, x, y + h, x + w);
+        publishSnapshot(true);
+    }
+
+    /**
+     * Updates the part of a subtree that intersects the edited rectangle
+     *
+     * @param node     The root of the subtree
+     * @param line     The first line covered by the node
+     * @param col      The first column covered by the node
+     * @param size     The side of the region covered by the node
+     * @param fromLine The first line of the rectangle
+     * @param fromCol  The first column of the rectangle
+     * @param toLine   The line after the rectangle
+     * @param toCol    The column after the rectangle
+     * 
+     */
+    private void updateRegion(QuadTreeNode node, int line, int col, int size, int fromLine, int fromCol,
+            int toLine, int toCol) {
+        if (line >= toLine || line + size <= fromLine || col >= toCol || col + size <= fromCol) {
+            return;
+        }
+
+        if (fromLine <= line && line + size <= toLine && fromCol <= col && col + size <= toCol) {
+            // The node is covered by the rectangle, its subtree is built again
+            int[][] arr = this.source.getLuminosities();
+            this.nbNodes -= discardSubtree(node);
+            node.destroyChildren();
+            if (size == 1) {
+                node.setValue(arr[line][col]);
+            } else {
+                node.setValue(-1);
+                constructQuadtree(node, arr, line, col, line + size - 1, col + size - 1);
+            }
+            if (this.twigs != null) {
+                detectCompressableTwigs(node);
+            }
+            if (this.aggregates) {
+                computeAggregates(node, size);
+            }
+            return;
+        }
+
+        if (node.isLeaf()) {
+            int value = node.getValue();
+            node.createChildren();
+            for (int i = 0; i < 4; i++) {
+                node.setChildValue(i, value);
+            }
+            node.setValue(-1);
+            this.nbNodes += 4;
+        } else if (this.twigs != null && node.isTwigRoot()) {
+            this.twigs.delete(twigEpsilon(node), node);
+        }
+
+        int half = size / 2;
+        updateRegion(node.getChild(0), line, col, half, fromLine, fromCol, toLine, toCol);
+        updateRegion(node.getChild(1), line, col + half, half, fromLine, fromCol, toLine, toCol);
+        updateRegion(node.getChild(2), line + half, col + half, half, fromLine, fromCol, toLine, toCol);
+        updateRegion(node.getChild(3), line + half, col, half, fromLine, fromCol, toLine, toCol);
+
+        if (node.areChildrenEqual()) {
+            node.setValue(node.getChildValue(0));
+            node.destroyChildren();
+            this.nbNodes -= 4;
+        } else if (this.twigs != null && node.isTwigRoot()) {
+            this.twigs.insert(twigEpsilon(node), node);
+        }
+        if (this.aggregates) {
+            updateAggregate(node, size);
+        }
+    }
+
+    /**
+     * Removes the twigs of a subtree from the twigs AVL and counts its nodes
+     *
+     * @param node The root of the subtree
+     * @return The number of nodes below the root
+     * 
+     */
+    private int discardSubtree(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return 0;
+        }
+        if (this.twigs != null && node.isTwigRoot()) {
+            this.twigs.delete(twigEpsilon(node), node);
+        }
+
+        int count = 4;
+        for (int i = 0; i < 4; i++) {
+            count += discardSubtree(node.getChild(i));
+        }
+        return count;
+    }
+
+    /**
+     * Applies a lookup table to the values of the leaves, such as a
+     * brightness, gamma, threshold or inversion table, and collapses the
+     * nodes whose children became equal. The subtrees below the partition
+     * depth are processed in parallel. The tree gets a mapped copy of its
+     * source image, so the region updates and the quality measures see the
+     * same values as the leaves; the image it was built from is left as it
+     * is.
+     *
+     * @param lut The new value of every value of the tree
+     * @throws IllegalArgumentException If the tree holds packed colors, or if
+     *                                  the table does not cover every value
+     *                                  of the tree and of its source image or
+     *                                  holds a value outside [0, the maximum
+     *                                  luminosity]
+     * 
+     */
+    public void applyLut(int[] lut) {
+        if (this.packedColor) {
+            throw new IllegalArgumentException("a lookup table cannot be applied to packed colors");
+        }
+        checkNotShared();
+        int max = getMaxLeafValue(this.root);
+        if (this.source != null) {
+            for (int[] line : this.source.getLuminosities()) {
+                for (int value : line) {
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        if (lut.length <= max) {
+            throw new IllegalArgumentException("the table must cover the values up to " + max);
+        }
+        for (int value : lut) {
+            if (value < 0 || value > this.maxLuminosity) {
+                throw new IllegalArgumentException("the table holds a value outside [0, " + this.maxLuminosity
+                        + "]: " + value);
+            }
+        }
+
+        if (this.source != null) {
+            int[][] arr = this.source.getLuminosities();
+            int[][] mapped = new int[arr.length][];
+            IntStream.range(0, arr.length).parallel().forEach(i -> {
+                mapped[i] = new int[arr[i].length];
+                for (int j = 0; j < arr[i].length; j++) {
+                    mapped[i][j] = lut[arr[i][j]];
+                }
+            });
+            this.source = new PMG(mapped, this.source.getMaxLuminosity());
+        }
+
+        ArrayList<QuadTreeNode> partitions = new ArrayList<>();
+        collectPartitions(this.root, PARALLEL_PARTITION_DEPTH, partitions);
+        int[] removed = new int[partitions.size()];
+        IntStream.range(0, partitions.size()).parallel()
+                .forEach(p -> removed[p] = applyLut(partitions.get(p), lut, -1));
+
+        int total = applyLut(this.root, lut, PARALLEL_PARTITION_DEPTH);
+        for (int count : removed) {
+            total += count;
+        }
+        this.nbNodes -= total;
+        this.twigs = null;
+        recomputeAggregates();
+        publishSnapshot(true);
+    }
+
+    /**
+     * Gets the largest value of the leaves of a subtree
+     *
+     * @param node The root of the subtree
+     * @return The largest value
+     * 
+     */
+    private static int getMaxLeafValue(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return node.getValue();
+        }
+        int max = 0;
+        for (int i = 0; i < 4; i++) {
+            max = Math.max(max, getMaxLeafValue(node.getChild(i)));
+        }
+        return max;
+    }
+
+    /**
+     * Collects the nodes at a given depth, leaves included since the top
+     * pass does not go down to them
+     *
+     * @param node       The current node
+     * @param depth      The depth left to go down
+     * @param partitions The list receiving the nodes
+     * 
+     */
+    private static void collectPartitions(QuadTreeNode node, int depth, ArrayList<QuadTreeNode> partitions) {
+        if (depth == 0) {
+            partitions.add(node);
+        } else if (!node.isLeaf()) {
+            for (int i = 0; i < 4; i++) {
+                collectPartitions(node.getChild(i), depth - 1, partitions);
+            }
+        }
+    }
+
+    /**
+     * Applies a lookup table to the leaves of a subtree and collapses the
+     * nodes whose children became equal, on the way back up
+     *
+     * @param node  The root of the subtree
+     * @param lut   The lookup table
+     * @param depth The depth below which the internal nodes were already
+     *              processed, or -1 to process the whole subtree
+     * @return The number of nodes removed
+     * 
+     */
+    private static int applyLut(QuadTreeNode node, int[] lut, int depth) {
+        // A partition root was already processed, even if it became a leaf
+        if (depth == 0) {
+            return 0;
+        }
+        if (node.isLeaf()) {
+            node.setValue(lut[node.getValue()]);
+            return 0;
+        }
+
+        int removed = 0;
+        for (int i = 0; i < 4; i++) {
+            removed += applyLut(node.getChild(i), lut, depth - 1);
+        }
+        if (node.areChildrenEqual()) {
+            node.setValue(node.getChildValue(0));
+            node.destroyChildren();
+            removed += 4;
+        }
+        return removed;
+    }
+
+    /**
+     * Annotates every internal node with the area-weighted sum, the minimum
+     * and the maximum of its region, so region statistics can use them. The
+     * compressions keep them up to date afterwards.
+     * 
+     */
+    public void enableAggregates() {
+        this.aggregates = true;
+        computeAggregates(this.root, this.length);
+    }
+
+    /**
+     * Computes the statistics of a rectangle of the image. The nodes inside
+     * the rectangle are counted from their aggregates, so only the nodes on
+     * its border are visited.
+     *
+     * @param line   The first line of the rectangle
+     * @param col    The first column of the rectangle
+     * @param height The number of lines of the rectangle
+     * @param width  The number of columns of the rectangle
+     * @return The statistics of the rectangle
+     * 
+     */
+    public RegionStatistics getRegionStatistics(int line, int col, int height, int width) {
+        RegionStatistics statistics = new RegionStatistics();
+        addRegionStatistics(this.root, 0, 0, this.length, line, col, line + height, col + width, statistics);
+        return statistics;
+    }
+
+    /**
+     * Adds the part of a subtree inside a rectangle to statistics
+     *
+     * @param node       The root of the subtree
+     * @param nodeLine   The first line covered by the node
+     * @param nodeCol    The first column covered by the node
+     * @param size       The side of the region covered by the node
+     * @param fromLine   The first line of the rectangle
+     * @param fromCol    The first column of the rectangle
+     * @param toLine     The line after the rectangle
+     * @param toCol      The column after the rectangle
+     * @param statistics The statistics to add to
+     * 
+     */
+    private void addRegionStatistics(QuadTreeNode node, int nodeLine, int nodeCol, int size, int fromLine,
+            int fromCol, int toLine, int toCol, RegionStatistics statistics) {
+        int lines = Math.min(nodeLine + size, toLine) - Math.max(nodeLine, fromLine);
+        int cols = Math.min(nodeCol + size, toCol) - Math.max(nodeCol, fromCol);
+        if (lines <= 0 || cols <= 0) {
+            return;
+        }
+
+        if (node.isLeaf()) {
+            statistics.add((long) lines * cols, (long) lines * cols * node.getValue(), node.getValue(), node.getValue());
+        } else if (lines == size && cols == size && node.getAggregate() != null) {
+            NodeAggregate aggregate = node.getAggregate();
+            statistics.add((long) size * size, aggregate.getSum(), aggregate.getMin(), aggregate.getMax());
+        } else {
+            int half = size / 2;
+            addRegionStatistics(node.getChild(0), nodeLine, nodeCol, half, fromLine, fromCol, toLine, toCol, statistics);
+            addRegionStatistics(node.getChild(1), nodeLine, nodeCol + half, half, fromLine, fromCol, toLine, toCol,
+                    statistics);
+            addRegionStatistics(node.getChild(2), nodeLine + half, nodeCol + half, half, fromLine, fromCol, toLine,
+                    toCol, statistics);
+            addRegionStatistics(node.getChild(3), nodeLine + half, nodeCol, half, fromLine, fromCol, toLine, toCol,
+                    statistics);
+        }
+    }
+
+    /**
+     * Computes the histogram of a rectangle of the image. A node inside the
+     * rectangle whose minimum and maximum fall in the same bin is counted
+     * whole without visiting its subtree.
+     *
+     * @param line     The first line of the rectangle
+     * @param col      The first column of the rectangle
+     * @param height   The number of lines of the rectangle
+     * @param width    The number of columns of the rectangle
+     * @param bins     The number of bins
+     * @param maxValue The largest value of the image
+     * @return The number of pixels in each bin
+     * 
+     */
+    public long[] getRegionHistogram(int line, int col, int height, int width, int bins, int maxValue) {
+        long[] histogram = new long[bins];
+        int binWidth = (maxValue + bins) / bins;
+        addRegionHistogram(this.root, 0, 0, this.length, line, col, line + height, col + width, histogram, binWidth);
+        return histogram;
+    }
+
+    /**
+     * Adds the part of a subtree inside a rectangle to a histogram
+     *
+     * @param node      The root of the subtree
+     * @param nodeLine  The first line covered by the node
+     * @param nodeCol   The first column covered by the node
+     * @param size      The side of the region covered by the node
+     * @param fromLine  The first line of the rectangle
+     * @param fromCol   The first column of the rectangle
+     * @param toLine    The line after the rectangle
+     * @param toCol     The column after the rectangle
+     * @param histogram The histogram to add to
+     * @param binWidth  The number of values of a bin
+     * 
+     */
+    private void addRegionHistogram(QuadTreeNode node, int nodeLine, int nodeCol, int size, int fromLine,
+            int fromCol, int toLine, int toCol, long[] histogram, int binWidth) {
+        int lines = Math.min(nodeLine + size, toLine) - Math.max(nodeLine, fromLine);
+        int cols = Math.min(nodeCol + size, toCol) - Math.max(nodeCol, fromCol);
+        if (lines <= 0 || cols <= 0) {
+            return;
+        }
+
+        NodeAggregate aggregate = node.getAggregate();
+        if (node.isLeaf()) {
+            histogram[node.getValue() / binWidth] += (long) lines * cols;
+        } else if (lines == size && cols == size && aggregate != null
+                && aggregate.getMin() / binWidth == aggregate.getMax() / binWidth) {
+            histogram[aggregate.getMin() / binWidth] += (long) size * size;
+        } else {
+            int half = size / 2;
+            addRegionHistogram(node.getChild(0), nodeLine, nodeCol, half, fromLine, fromCol, toLine, toCol,
+                    histogram, binWidth);
+            addRegionHistogram(node.getChild(1), nodeLine, nodeCol + half, half, fromLine, fromCol, toLine, toCol,
+                    histogram, binWidth);
+            addRegionHistogram(node.getChild(2), nodeLine + half, nodeCol + half, half, fromLine, fromCol, toLine,
+                    toCol, histogram, binWidth);
+            addRegionHistogram(node.getChild(3), nodeLine + half, nodeCol, half, fromLine, fromCol, toLine, toCol,
+                    histogram, binWidth);
+        }
+    }
+
+    /**
+     * Computes the aggregates of the internal nodes of a subtree
+     *
+     * @param node The root of the subtree
+     * @param size The side of the region covered by the node
+     * 
+     */
+    private static void computeAggregates(QuadTreeNode node, int size) {
+        if (!node.isLeaf()) {
+            for (int i = 0; i < 4; i++) {
+                computeAggregates(node.getChild(i), size / 2);
+            }
+        }
+        updateAggregate(node, size);
+    }
+
+    /**
+     * Computes the aggregates of the whole tree again if they are enabled,
+     * after an operation changing many nodes
+     * 
+     */
+    private void recomputeAggregates() {
+        if (this.aggregates) {
+            computeAggregates(this.root, this.length);
+        }
+    }
+
+    /**
+     * Updates the aggregates of a node that changed and of its ancestors if
+     * they are enabled
+     *
+     * @param node The node that changed
+     * 
+     */
+    private void refreshAggregates(QuadTreeNode node) {
+        if (this.aggregates) {
+            int size = getRegion(node)[2];
+            for (; node != null; node = node.getParent()) {
+                updateAggregate(node, size);
+                size *= 2;
+            }
+        }
+    }
+
+    /**
+     * Computes the aggregate of a node from its children, or drops it if the
+     * node is a leaf
+     *
+     * @param node The node
+     * @param size The side of the region covered by the node
+     * 
+     */
+    private static void updateAggregate(QuadTreeNode node, int size) {
+        if (node.isLeaf()) {
+            node.setAggregate(null);
+            return;
+        }
+
+        long childArea = (long) (size / 2) * (size / 2);
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < 4; i++) {
+            QuadTreeNode child = node.getChild(i);
+            if (child.isLeaf()) {
+                sum += childArea * child.getValue();
+                min = Math.min(min, child.getValue());
+                max = Math.max(max, child.getValue());
+            } else {
+                if (child.getAggregate() == null) {
+                    computeAggregates(child, size / 2);
+                }
+                NodeAggregate aggregate = child.getAggregate();
+                sum += aggregate.getSum();
+                min = Math.min(min, aggregate.getMin());
+                max = Math.max(max, aggregate.getMax());
+            }
+        }
+        if (node.getAggregate() == null) {
+            node.setAggregate(new NodeAggregate(sum, min, max));
+        } else {
+            node.getAggregate().set(sum, min, max);
+        }
+    }
+
+    /**
+     * Rotates the image clockwise without rasterizing it: the children of
+     * every node are permuted
+     *
+     * @param degrees 90, 180 or 270
+     * @return The rotated tree, which has no source image
+     * 
+     */
+    public QuadTree rotate(int degrees) {
+        if (degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("invalid rotation " + degrees);
+        }
+        int shift = 4 - degrees / 90;
+        return transformed(new int[] { shift % 4, (shift + 1) % 4, (shift + 2) % 4, (shift + 3) % 4 });
+    }
+
+    /**
+     * Mirrors the image left to right without rasterizing it
+     *
+     * @return The flipped tree, which has no source image
+     * 
+     */
+    public QuadTree flipHorizontal() {
+        return transformed(new int[] { 1, 0, 3, 2 });
+    }
+
+    /**
+     * Mirrors the image top to bottom without rasterizing it
+     *
+     * @return The flipped tree, which has no source image
+     * 
+     */
+    public QuadTree flipVertical() {
+        return transformed(new int[] { 3, 2, 1, 0 });
+    }
+
+    /**
+     * Extracts a quadrant of the image as a tree of half the length
+     *
+     * @param quadrant The index of the quadrant, 0 to 3 clockwise from the
+     *                 top-left one
+     * @return The tree of the quadrant, which has no source image
+     * 
+     */
+    public QuadTree crop(int quadrant) {
+        if (quadrant < 0 || quadrant > 3 || this.length < 2) {
+            throw new IllegalArgumentException("invalid quadrant " + quadrant);
+        }
+        QuadTreeNode node = this.root.isLeaf() ? this.root : this.root.getChild(quadrant);
+        QuadTreeNode copy = new QuadTreeNode();
+        int nodes = copyTransformed(node, copy, IDENTITY);
+        return derived(copy, this.length / 2, nodes, this);
+    }
+
+    /**
+     * Assembles four trees of the same length and the same kind of values
+     * into a tree of twice their length
+     *
+     * @param topLeft     The tree of the top-left quadrant
+     * @param topRight    The tree of the top-right quadrant
+     * @param bottomRight The tree of the bottom-right quadrant
+     * @param bottomLeft  The tree of the bottom-left quadrant
+     * @return The assembled tree, which has no source image
+     * 
+     */
+    public static QuadTree mosaic(QuadTree topLeft, QuadTree topRight, QuadTree bottomRight, QuadTree bottomLeft) {
+        QuadTree[] quadrants = { topLeft, topRight, bottomRight, bottomLeft };
+        for (QuadTree quadrant : quadrants) {
+            if (quadrant.length != topLeft.length) {
+                throw new IllegalArgumentException("the four trees must have the same length");
+            }
+            if (quadrant.packedColor != topLeft.packedColor) {
+                throw new IllegalArgumentException("the four trees must all hold packed colors or none");
+            }
+        }
+
+        QuadTreeNode root = new QuadTreeNode();
+        root.createChildren();
+        int nodes = 1;
+        for (int i = 0; i < 4; i++) {
+            nodes += copyTransformed(quadrants[i].root, root.getChild(i), IDENTITY);
+        }
+        if (root.areChildrenEqual()) {
+            root.setValue(root.getChildValue(0));
+            root.destroyChildren();
+            nodes = 1;
+        }
+        return derived(root, 2 * topLeft.length, nodes, topLeft);
+    }
+
+    /**
+     * Combines this tree with another one of the same length pixel by pixel,
+     * with a synchronized traversal of both. A region that is a leaf in both
+     * trees gives a single leaf, and the traversal only goes down where one
+     * of the trees is subdivided. Nodes whose children become equal are
+     * collapsed. The values are luminosities, so trees of packed colors are
+     * rejected.
+     *
+     * @param other    The other tree
+     * @param operator The value of a pixel from the values of both trees
+     * @return The combined tree, which has no source image
+     * @throws IllegalArgumentException If the trees have different lengths or
+     *                                  hold packed colors, or if a value is
+     *                                  negative or above the larger maximum
+     *                                  luminosity of the two trees
+     * 
+     */
+    public QuadTree combine(QuadTree other, IntBinaryOperator operator) {
+        if (other.length != this.length) {
+            throw new IllegalArgumentException("the two trees must have the same length");
+        }
+        if (this.packedColor || other.packedColor) {
+            throw new IllegalArgumentException("trees of packed colors cannot be combined");
+        }
+        int maxValue = Math.max(this.maxLuminosity, other.maxLuminosity);
+        QuadTreeNode root = new QuadTreeNode();
+        int nodes = combine(this.root, other.root, root, operator, maxValue);
+        QuadTree tree = derived(root, this.length, nodes, this);
+        tree.maxLuminosity = maxValue;
+        return tree;
+    }
+
+    /**
+     * Computes the absolute difference of this tree and another one
+     *
+     * @param other The other tree
+     * @return The tree of the differences
+     * 
+     */
+    public QuadTree difference(QuadTree other) {
+        return combine(other, (a, b) -> Math.abs(a - b));
+    }
+
+    /**
+     * Computes the average of this tree and another one
+     *
+     * @param other The other tree
+     * @return The tree of the averages
+     * 
+     */
+    public QuadTree average(QuadTree other) {
+        return combine(other, (a, b) -> (a + b) / 2);
+    }
+
+    /**
+     * Computes the minimum of this tree and another one
+     *
+     * @param other The other tree
+     * @return The tree of the minimums
+     * 
+     */
+    public QuadTree min(QuadTree other) {
+        return combine(other, Math::min);
+    }
+
+    /**
+     * Computes the maximum of this tree and another one
+     *
+     * @param other The other tree
+     * @return The tree of the maximums
+     * 
+     */
+    public QuadTree max(QuadTree other) {
+        return combine(other, Math::max);
+    }
+
+    /**
+     * Blends this tree over another one
+     *
+     * @param other The other tree
+     * @param alpha The weight of this tree, between 0 and 1
+     * @return The blended tree
+     * @throws IllegalArgumentException If alpha is not between 0 and 1
+     * 
+     */
+    public QuadTree blend(QuadTree other, double alpha) {
+        if (!(alpha >= 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("alpha must be between 0 and 1");
+        }
+        return combine(other, (a, b) -> (int) Math.round(alpha * a + (1 - alpha) * b));
+    }
+
+    /**
+     * Combines two subtrees covering the same region into an empty node. A
+     * leaf facing a subdivided node stands for each of its children.
+     *
+     * @param a        The node of the first tree
+     * @param b        The node of the second tree
+     * @param copy     The empty node receiving the result
+     * @param operator The value of a pixel from the values of both trees
+     * @param maxValue The largest value a pixel may take
+     * @return The number of nodes of the result
+     * 
+     */
+    private static int combine(QuadTreeNode a, QuadTreeNode b, QuadTreeNode copy, IntBinaryOperator operator,
+            int maxValue) {
+        if (a.isLeaf() && b.isLeaf()) {
+            int value = operator.applyAsInt(a.getValue(), b.getValue());
+            if (value < 0 || value > maxValue) {
+                throw new IllegalArgumentException("combined value " + value + " is outside [0, " + maxValue + "]");
+            }
+            copy.setValue(value);
+            return 1;
+        }
+
+        int nodes = 1;
+        copy.createChildren();
+        for (int i = 0; i < 4; i++) {
+            nodes += combine(a.isLeaf() ? a : a.getChild(i), b.isLeaf() ? b : b.getChild(i), copy.getChild(i),
+                    operator, maxValue);
+        }
+        if (copy.areChildrenEqual()) {
+            copy.setValue(copy.getChildValue(0));
+            copy.destroyChildren();
+            nodes = 1;
+        }
+        return nodes;
+    }
+
+    /**
+     * Copies this tree into nodes of its own, keeping its source image, so
+     * that a shared tree can be compressed or changed
+     *
+     * @return The copy
+     * 
+     */
+    public QuadTree copy() {
+        QuadTree tree = transformed(IDENTITY);
+        tree.source = this.source;
+        return tree;
+    }
+
+    /**
+     * Copies this tree with the children of every node permuted
+     *
+     * @param permutation The old index of the child at each new index
+     * @return The transformed tree
+     * 
+     */
+    private QuadTree transformed(int[] permutation) {
+        QuadTreeNode copy = new QuadTreeNode();
+        int nodes = copyTransformed(this.root, copy, permutation);
+        return derived(copy, this.length, nodes, this);
+    }
+
+    /**
+     * Copies a subtree into an empty node, permuting the children of every
+     * node
+     *
+     * @param node        The root of the subtree
+     * @param copy        The empty node receiving the copy
+     * @param permutation The old index of the child at each new index
+     * @return The number of nodes copied
+     * 
+     */
+    private static int copyTransformed(QuadTreeNode node, QuadTreeNode copy, int[] permutation) {
+        if (node.isLeaf()) {
+            copy.setValue(node.getValue());
+            return 1;
+        }
+
+        int nodes = 1;
+        copy.createChildren();
+        for (int i = 0; i < 4; i++) {
+            nodes += copyTransformed(node.getChild(permutation[i]), copy.getChild(i), permutation);
+        }
+        return nodes;
+    }
+
+    /**
+     * Wraps a structure built from other trees into a tree that can be
+     * compressed again
+     *
+     * @param root    The root of the structure
+     * @param length  The length of the image
+     * @param nbNodes The number of nodes of the structure
+     * @param origin  The tree whose name, kind of values and maximum
+     *                luminosity the structure keeps
+     * @return The tree
+     * 
+     */
+    private static QuadTree derived(QuadTreeNode root, int length, int nbNodes, QuadTree origin) {
+        QuadTree tree = new QuadTree(root, length, nbNodes, origin.imageName, null);
+        tree.packedColor = origin.packedColor;
+        tree.maxLuminosity = origin.maxLuminosity;
+        return tree;
+    }
+
+    /**
+     * Finds the region of the image covered by a node by climbing to the root.
+     *
+     * @param node A node of this tree
+     * @return The first line, first column and side of the region
+     * 
+     */
+    public int[] getRegion(QuadTreeNode node) {
+        int depth = 0;
+        int line = 0;
+        int col = 0;
+        int unit = 1;
+
+        for (QuadTreeNode child = node; child.getParent() != null; child = child.getParent()) {
+            QuadTreeNode parent = child.getParent();
+            if (parent.getChild(1) == child || parent.getChild(2) == child) {
+                col += unit;
+            }
+            if (parent.getChild(2) == child || parent.getChild(3) == child) {
+                line += unit;
+            }
+            unit *= 2;
+            depth++;
+        }
+
+        int size = this.length >> depth;
+        return new int[] { line * size, col * size, size };
+    }
+
+    /**
+     * Detects the compressible twigs only if the twigs AVL was dropped or
+     * never built.
+     *
+     */
+    private void ensureTwigs() {
+        if (this.twigs == null) {
+            detectCompressableTwigs();
+        }
+    }
+
+    /**
+     * Detects compressible twigs and add them to twigs AVL for future compressions.
+     *
+     */
+    private void detectCompressableTwigs() {
+        this.twigs = new TwigAVLTree();
+        detectCompressableTwigs(this.root);
+    }
+
+    /**
+     *  Insert all twigs in the AVL twigs tree 
+     * 
+     * @param node the current node of the recursive traversal
+     * 
+     */
+    private void detectCompressableTwigs(QuadTreeNode node) {
+        if (node != null && !node.isLeaf()) {
+
+            if (node.isTwigRoot()) {
+                double epsilon = twigEpsilon(node);
+                this.twigs.insert(epsilon, node);
+            } else {
+                for (int i = 0; i < 4; i++) {
+                    detectCompressableTwigs(node.getChild(i));
+                }
+            }
+
+        }
+    }
+
+    /**
+     * Computes the sum of the squared differences between the leaves of this
+     * tree and the pixels of the region they cover in the source image.
+     * 
+     * @param image The source image to compare against
+     * @return The total squared error
+     * 
+     */
+    public long computeSquaredError(PMG image) {
+        return computeSquaredError(this.root, image.getLuminosities(), 0, 0, this.length);
+    }
+
+    /**
+     * Helper method for recursively summing the squared error of a subtree
+     * 
+     * @param node The current node in the traversal
+     * @param arr  The luminosities of the source image
+     * @param line The first line of the region covered by the node
+     * @param col  The first column of the region covered by the node
+     * @param size The side of the region covered by the node
+     * @return The squared error of the subtree
+     * 
+     */
+    private long computeSquaredError(QuadTreeNode node, int[][] arr, int line, int col, int size) {
+        if (node.isLeaf()) {
+            long error = 0;
+            int value = node.getValue();
+
+            for (int i = line; i < line + size; i++) {
+                for (int j = col; j < col + size; j++) {
+                    long diff = arr[i][j] - value;
+                    error += diff * diff;
+                }
+            }
+            return error;
+        }
+
+        int half = size / 2;
+        return computeSquaredError(node.getChild(0), arr, line, col, half)
+                + computeSquaredError(node.getChild(1), arr, line, col + half, half)
+                + computeSquaredError(node.getChild(2), arr, line + half, col + half, half)
+                + computeSquaredError(node.getChild(3), arr, line + half, col, half);
+    }
+
+    /**
+     * Computes the mean squared error of this tree against the source image
+     * 
+     * @param image The source image to compare against
+     * @return The mean squared error
+     * 
+     */
+    public double computeMSE(PMG image) {
+        return (double) computeSquaredError(image) / ((double) this.length * this.length);
+    }
+
+    /**
+     * Computes the peak signal to noise ratio of this tree against the source
+     * image, in decibels
+     * 
+     * @param image The source image to compare against
+     * @return The PSNR, or positive infinity if the tree is lossless
+     * 
+     */
+    public double computePSNR(PMG image) {
+        return Util.calculatePSNR(computeMSE(image), image.getMaxLuminosity());
+    }
+
+    /**
+     * Computes the maximum absolute difference between a leaf of this tree and
+     * a pixel of the source image
+     * 
+     * @param image The source image to compare against
+     * @return The maximum absolute error
+     * 
+     */
+    public int computeMaxAbsoluteError(PMG image) {
+        return computeMaxAbsoluteError(this.root, image.getLuminosities(), 0, 0, this.length);
+    }
+
+    /**
+     * Helper method for recursively finding the maximum absolute error of a
+     * subtree
+     * 
+     * @param node The current node in the traversal
+     * @param arr  The luminosities of the source image
+     * @param line The first line of the region covered by the node
+     * @param col  The first column of the region covered by the node
+     * @param size The side of the region covered by the node
+     * @return The maximum absolute error of the subtree
+     * 
+     */
+    private int computeMaxAbsoluteError(QuadTreeNode node, int[][] arr, int line, int col, int size) {
+        if (node.isLeaf()) {
+            int max = 0;
+            int value = node.getValue();
+
+            for (int i = line; i < line + size; i++) {
+                for (int j = col; j < col + size; j++) {
+                    max = Math.max(max, Math.abs(arr[i][j] - value));
+                }
+            }
+            return max;
+        }
+
+        int half = size / 2;
+        int max = computeMaxAbsoluteError(node.getChild(0), arr, line, col, half);
+        max = Math.max(max, computeMaxAbsoluteError(node.getChild(1), arr, line, col + half, half));
+        max = Math.max(max, computeMaxAbsoluteError(node.getChild(2), arr, line + half, col + half, half));
+        return Math.max(max, computeMaxAbsoluteError(node.getChild(3), arr, line + half, col, half));
+    }
+
+    /**
+     * Computes the mean structural similarity of this tree against the source
+     * image over non-overlapping square windows. The windows are independent,
+     * so they are evaluated in parallel, each one only reading the leaves that
+     * cover it.
+     * 
+     * @param image  The source image to compare against
+     * @param window The side of a window, clamped to the image length
+     * @return The mean SSIM, between -1 and 1
+     * 
+     */
+    public double computeSSIM(PMG image, int window) {
+        int side = Math.min(window, this.length);
+        int perLine = this.length / side;
+        int[][] arr = image.getLuminosities();
+        double c1 = Math.pow(0.01 * image.getMaxLuminosity(), 2);
+        double c2 = Math.pow(0.03 * image.getMaxLuminosity(), 2);
+
+        return IntStream.range(0, perLine * perLine).parallel().mapToDouble(block -> {
+            int line = (block / perLine) * side;
+            int col = (block % perLine) * side;
+            double n = (double) side * side;
+            double sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+
+            for (int i = line; i < line + side; i++) {
+                for (int j = col; j < col + side; j++) {
+                    int x = arr[i][j];
+                    int y = getValueAt(i, j);
+                    sumX += x;
+                    sumY += y;
+                    sumXX += (double) x * x;
+                    sumYY += (double) y * y;
+                    sumXY += (double) x * y;
+                }
+            }
+
+            double meanX = sumX / n;
+            double meanY = sumY / n;
+            double varX = sumXX / n - meanX * meanX;
+            double varY = sumYY / n - meanY * meanY;
+            double cov = sumXY / n - meanX * meanY;
+
+            return ((2 * meanX * meanY + c1) * (2 * cov + c2))
+                    / ((meanX * meanX + meanY * meanY + c1) * (varX + varY + c2));
+        }).average().orElse(1.0);
+    }
+
+    /**
+     * Gets the luminosity of a pixel by descending the tree to the leaf that
+     * covers it
+     * 
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The luminosity of the pixel in the compressed image
+     * 
+     */
+    public int getValueAt(int line, int col) {
+        QuadTreeNode node = this.root;
+        int size = this.length;
+        int startLine = 0;
+        int startCol = 0;
+
+        while (!node.isLeaf()) {
+            size /= 2;
+            boolean bottom = line >= startLine + size;
+            boolean right = col >= startCol + size;
+
+            if (bottom) {
+                startLine += size;
+            }
+            if (right) {
+                startCol += size;
+            }
+            node = node.getChild(bottom ? (right ? 2 : 3) : (right ? 1 : 0));
+        }
+
+        return node.getValue();
+    }
+
+    /**
+     * Get the root of this quadtree
+     * 
+     * @return the root node of this quadtree
+     * 
+     */
+    public QuadTreeNode getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Get the length of the original image
+     * 
+     * @return the length of the original image
+     * 
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Gets the number of nodes in the tree.
+     *
+     * @return The number of nodes in the tree.
+     * 
+     */
+    public int getNbNodes()
+    {
+        return this.nbNodes;
+    }
+
+    /**
+     * Gets the name of thr image.
+     *
+     * @return The name of the image.
+     * 
+     */
+    public String getImageName()
+    {
+        return this.imageName;
+    }
+
+    /**
+     * Gets the maximum luminosity of the image represented by this tree.
+     *
+     * @return The maximum luminosity.
+     *
+     */
+    public int getMaxLuminosity()
+    {
+        return this.maxLuminosity;
+    }
+
+    /**
+     * Checks if the values of the leaves are packed colors.
+     *
+     * @return true if each value is a color packed as 0xRRGGBB.
+     * 
+     */
+    public boolean isPackedColor()
+    {
+        return this.packedColor;
+    }
+
+    /**
+     * Marks the nodes of this tree as shared with other trees, so the
+     * compressions and the other changes in place reject it
+     * 
+     */
+    void markShared()
+    {
+        this.shared = true;
+    }
+
+    /**
+     * Checks if the nodes of this tree may be shared with other trees.
+     *
+     * @return true if the tree must be copied before being changed.
+     * 
+     */
+    public boolean isShared()
+    {
+        return this.shared;
+    }
+
+    /**
+     * Throws if the nodes of this tree may be shared with other trees
+     * 
+     */
+    private void checkNotShared()
+    {
+        if (this.shared) {
+            throw new IllegalStateException("the tree shares its nodes with other trees, change a copy of it");
+        }
+    }
+
+    /**
+     * Drops the source image, for the callers that keep the image in a more
+     * compact form than the lines of a PMG. The operations measuring the
+     * error against the source then reject the tree.
+     * 
+     */
+    void releaseSource()
+    {
+        this.source = null;
+    }
+
+    /**
+     * Gets the source image this tree was built from.
+     *
+     * @return The source image.
+     * 
+     */
+    public PMG getSource()
+    {
+        return this.source;
     }
 }
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Random-access container of a compressed quadtree, read through a memory
+ * mapping so that only the parts a query touches are decoded.
+ *
+ * The image is cut into the 4^d blocks of an index depth d. Each block holds
+ * the subtree covering it (a single leaf if a larger leaf covers it), and an
+ * index gives the offset of every block. Inside a block a node is either a
+ * leaf, tag 0 followed by its value, or an internal node, tag 1 followed by
+ * the byte sizes of its first three children and then the four children, so
+ * a query can skip the children it does not need.
+ *
+ * <pre>
+ * int magic, int length, int indexDepth, int maxLuminosity
+ * long offsets[4^d + 1]      blocks in row-major order, offsets from the file start
+ * blocks
+ * </pre>
+ *
+ */
+public class QuadTreeContainer {
+
+    /**
+     * The magic number of the format, "QTC1"
+     *
+     */
+    public static final int MAGIC = 0x51544331;
+
+    /**
+     * The size of the header in bytes
+     *
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * The tags of the nodes and the size of a leaf and of an internal node
+     * header
+     *
+     */
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+    private static final int LEAF_SIZE = 5;
+    private static final int INTERNAL_SIZE = 13;
+
+    /**
+     * The mapped content of the file
+     *
+     */
+    private MappedByteBuffer data;
+
+    /**
+     * The length of the image
+     *
+     */
+    private int length;
+
+    /**
+     * The depth of the indexed blocks
+     *
+     */
+    private int indexDepth;
+
+    /**
+     * The maximum luminosity of the image
+     *
+     */
+    private int maxLuminosity;
+
+    /**
+     * Opens a container by mapping it, without reading anything past the
+     * header
+     *
+     * @param path The path of the container
+     * @throws IOException If the file cannot be mapped or is not a container
+     *
+     */
+    public QuadTreeContainer(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (this.data.capacity() < HEADER_SIZE || this.data.getInt(0) != MAGIC) {
+            throw new IOException("Incorrect file format!");
+        }
+        this.length = this.data.getInt(4);
+        this.indexDepth = this.data.getInt(8);
+        this.maxLuminosity = this.data.getInt(12);
+    }
+
+    /**
+     * Writes a quadtree as a container
+     *
+     * @param tree       The quadtree to write
+     * @param path       The path of the container
+     * @param indexDepth The depth of the indexed blocks, clamped to the depth
+     *                   of the pixels
+     * @throws IOException If the file cannot be written
+     *
+     */
+    public static void write(QuadTree tree, String path, int indexDepth) throws IOException {
+        int depth = Math.max(0, Math.min(indexDepth, Integer.numberOfTrailingZeros(tree.getLength())));
+        int side = 1 << depth;
+        int nbBlocks = side * side;
+        long[] offsets = new long[nbBlocks + 1];
+        long blocksStart = HEADER_SIZE + 8L * (nbBlocks + 1);
+        long total = blocksStart;
+
+        for (int b = 0; b < nbBlocks; b++) {
+            offsets[b] = total;
+            total += encodedSize(findBlock(tree.getRoot(), depth, b / side, b % side));
+        }
+        offsets[nbBlocks] = total;
+
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Container too large to be mapped");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) total);
+        out.putInt(MAGIC);
+        out.putInt(tree.getLength());
+        out.putInt(depth);
+        out.putInt(tree.getSource() == null ? 255 : tree.getSource().getMaxLuminosity());
+        for (long offset : offsets) {
+            out.putLong(offset);
+        }
+        for (int b = 0; b < nbBlocks; b++) {
+            encode(findBlock(tree.getRoot(), depth, b / side, b % side), out);
+        }
+
+        Files.write(Paths.get(path), out.array());
+    }
+
+    /**
+     * Finds the node covering a block, which is a leaf above the block if
+     * the tree stops before the index depth
+     *
+     * @param root  The root of the tree
+     * @param depth The depth of the blocks
+     * @param r     The line of the block
+     * @param c     The column of the block
+     * @return The node covering the block
+     *
+     */
+    private static QuadTreeNode findBlock(QuadTreeNode root, int depth, int r, int c) {
+        QuadTreeNode node = root;
+
+        for (int level = depth - 1; level >= 0 && !node.isLeaf(); level--) {
+            boolean bottom = ((r >> level) & 1) == 1;
+            boolean right = ((c >> level) & 1) == 1;
+            node = node.getChild(bottom ? (right ? 2 : 3) : (right ? 1 : 0));
+        }
+        return node;
+    }
+
+    /**
+     * Computes the encoded size of a subtree
+     *
+     * @param node The root of the subtree
+     * @return The size in bytes
+     *
+     */
+    private static long encodedSize(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return LEAF_SIZE;
+        }
+        long size = INTERNAL_SIZE;
+        for (int i = 0; i < 4; i++) {
+            size += encodedSize(node.getChild(i));
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a subtree, back-patching the sizes of the children once they
+     * are written
+     *
+     * @param node The root of the subtree
+     * @param out  The buffer receiving the encoding
+     *
+     */
+    private static void encode(QuadTreeNode node, ByteBuffer out) {
+        if (node.isLeaf()) {
+            out.put(LEAF);
+            out.putInt(node.getValue());
+            return;
+        }
+
+        out.put(INTERNAL);
+        int sizes = out.position();
+        out.position(sizes + 12);
+        for (int i = 0; i < 4; i++) {
+            int start = out.position();
+            encode(node.getChild(i), out);
+            if (i < 3) {
+                out.putInt(sizes + 4 * i, out.position() - start);
+            }
+        }
+    }
+
+    /**
+     * Gets the luminosity of a pixel, decoding only the path to its leaf
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The luminosity of the pixel
+     * @throws IllegalArgumentException If the pixel is outside the image
+     *
+     */
+    public int getValueAt(int line, int col) {
+        if (line < 0 || col < 0 || line >= this.length || col >= this.length) {
+            throw new IllegalArgumentException("invalid pixel " + line + "," + col);
+        }
+        int blockSize = this.length >> this.indexDepth;
+        int position = blockOffset(line / blockSize, col / blockSize);
+        int startLine = (line / blockSize) * blockSize;
+        int startCol = (col / blockSize) * blockSize;
+        int size = blockSize;
+
+        while (this.data.get(position) == INTERNAL) {
+            size /= 2;
+            boolean bottom = line >= startLine + size;
+            boolean right = col >= startCol + size;
+            if (bottom) {
+                startLine += size;
+            }
+            if (right) {
+                startCol += size;
+            }
+            position = childOffset(position, bottom ? (right ? 2 : 3) : (right ? 1 : 0));
+        }
+        return this.data.getInt(position + 1);
+    }
+
+    /**
+     * Decodes a rectangular viewport, reading only the blocks and the
+     * children that intersect it
+     *
+     * @param line   The first line of the viewport
+     * @param col    The first column of the viewport
+     * @param height The number of lines of the viewport
+     * @param width  The number of columns of the viewport
+     * @return The luminosities of the viewport, empty if it has no line or no
+     *         column
+     * @throws IllegalArgumentException If the viewport is not inside the image
+     *
+     */
+    public int[][] decodeRegion(int line, int col, int height, int width) {
+        if (line < 0 || col < 0 || height < 0 || width < 0 || (long) line + height > this.length
+                || (long) col + width > this.length) {
+            throw new IllegalArgumentException("invalid region " + line + "," + col + " " + height + "x" + width);
+        }
+        int[][] region = new int[height][width];
+        if (height == 0 || width == 0) {
+            return region;
+        }
+        int blockSize = this.length >> this.indexDepth;
+
+        for (int r = line / blockSize; r <= (line + height - 1) / blockSize; r++) {
+            for (int c = col / blockSize; c <= (col + width - 1) / blockSize; c++) {
+                decode(blockOffset(r, c), r * blockSize, c * blockSize, blockSize, region, line, col);
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Decodes the part of a subtree that intersects a viewport
+     *
+     * @param position  The offset of the node in the file
+     * @param nodeLine  The first line covered by the node
+     * @param nodeCol   The first column covered by the node
+     * @param size      The side of the region covered by the node
+     * @param region    The viewport being filled
+     * @param line      The first line of the viewport
+     * @param col       The first column of the viewport
+     *
+     */
+    private void decode(int position, int nodeLine, int nodeCol, int size, int[][] region, int line, int col) {
+        int fromLine = Math.max(nodeLine, line);
+        int toLine = Math.min(nodeLine + size, line + region.length);
+        int fromCol = Math.max(nodeCol, col);
+        int toCol = Math.min(nodeCol + size, col + region[0].length);
+        if (fromLine >= toLine || fromCol >= toCol) {
+            return;
+        }
+
+        if (this.data.get(position) == LEAF) {
+            int value = this.data.getInt(position + 1);
+            for (int i = fromLine; i < toLine; i++) {
+                for (int j = fromCol; j < toCol; j++) {
+                    region[i - line][j - col] = value;
+                }
+            }
+            return;
+        }
+
+        int half = size / 2;
+        decode(childOffset(position, 0), nodeLine, nodeCol, half, region, line, col);
+        decode(childOffset(position, 1), nodeLine, nodeCol + half, half, region, line, col);
+        decode(childOffset(position, 2), nodeLine + half, nodeCol + half, half, region, line, col);
+        decode(childOffset(position, 3), nodeLine + half, nodeCol, half, region, line, col);
+    }
+
+    /**
+     * Gets the offset of a block from the index
+     *
+     * @param r The line of the block
+     * @param c The column of the block
+     * @return The offset of the root of the block
+     *
+     */
+    private int blockOffset(int r, int c) {
+        return (int) this.data.getLong(HEADER_SIZE + 8 * (r * (1 << this.indexDepth) + c));
+    }
+
+    /**
+     * Gets the offset of a child of an internal node by skipping its
+     * previous siblings
+     *
+     * @param position The offset of the internal node
+     * @param i        The index of the child
+     * @return The offset of the child
+     *
+     */
+    private int childOffset(int position, int i) {
+        int offset = position + INTERNAL_SIZE;
+        for (int k = 0; k < i; k++) {
+            offset += this.data.getInt(position + 1 + 4 * k);
+        }
+        return offset;
+    }
+
+    /**
+     * Get the length of the original image
+     *
+     * @return the length of the original image
+     *
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Gets the maximum luminosity of the image
+     *
+     * @return The maximum luminosity
+     *
+     */
+    public int getMaxLuminosity() {
+        return this.maxLuminosity;
+    }
+}
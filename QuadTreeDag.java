@@ -0,0 +1,554 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Quadtree in which identical subtrees are stored once. Every node is
+ * interned in a table keyed by its value and the identity of its children,
+ * which are already interned, so two subtrees with the same structure and
+ * values end up as the same node and the tree becomes a directed acyclic
+ * graph.
+ *
+ * The nodes are shared, so they are never modified: the Lambda compression
+ * works on the graph directly, and the other compressions go through a
+ * regular QuadTree built with toQuadTree and interned again afterwards.
+ *
+ */
+public class QuadTreeDag {
+
+    /**
+     * The token of a back-reference in the serialized representation
+     *
+     */
+    public static final char BACK_REFERENCE = '#';
+
+    /**
+     * The depth down to which the build is split into parallel tasks
+     *
+     */
+    private static final int PARALLEL_DEPTH = 2;
+
+    /**
+     * The key of a node in the table: its value and its interned children
+     *
+     */
+    private static class Key {
+
+        private int value;
+        private QuadTreeNode[] children;
+        private int hash;
+
+        private Key(int value, QuadTreeNode[] children) {
+            this.value = value;
+            this.children = children;
+            this.hash = value;
+            if (children != null) {
+                for (QuadTreeNode child : children) {
+                    this.hash = 31 * this.hash + System.identityHashCode(child);
+                }
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (this.value != other.value || (this.children == null) != (other.children == null)) {
+                return false;
+            }
+            if (this.children != null) {
+                for (int i = 0; i < 4; i++) {
+                    if (this.children[i] != other.children[i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The table of the interned nodes, shared by the building threads
+     *
+     */
+    private ConcurrentHashMap<Key, QuadTreeNode> table = new ConcurrentHashMap<>();
+
+    /**
+     * The root of the graph
+     *
+     */
+    private QuadTreeNode root;
+
+    /**
+     * The length of the image
+     *
+     */
+    private int length;
+
+    /**
+     * The name of the compressed image
+     *
+     */
+    private String imageName;
+
+    /**
+     * Builds the graph of an image, the blocks below the first levels being
+     * built in parallel
+     *
+     * @param image The image to represent
+     * @param name  The name of the image, used to name the compressed files
+     *
+     */
+    public QuadTreeDag(PMG image, String name) {
+        int[][] arr = image.getLuminosities();
+        this.length = arr.length;
+        this.imageName = "compressed-" + name;
+
+        int levels = Integer.numberOfTrailingZeros(this.length);
+        int depth = Math.min(PARALLEL_DEPTH, levels);
+        int side = 1 << depth;
+        QuadTreeNode[] blocks = new QuadTreeNode[side * side];
+        IntStream.range(0, blocks.length).parallel()
+                .forEach(b -> blocks[b] = build(arr, levels - depth, b / side, b % side));
+        this.root = assemble(blocks, side, depth, 0, 0);
+    }
+
+    /**
+     * Interns the nodes of an existing quadtree
+     *
+     * @param tree The tree to intern
+     *
+     */
+    public QuadTreeDag(QuadTree tree) {
+        this.length = tree.getLength();
+        this.imageName = tree.getImageName();
+        this.root = intern(tree.getRoot(), new IdentityHashMap<>());
+    }
+
+    /**
+     * Builds the interned node of a block of the image
+     *
+     * @param arr The pixels of the image
+     * @param k   The level of the block, its side being 2^k
+     * @param r   The line of the block in its level
+     * @param c   The column of the block in its level
+     * @return The interned node
+     *
+     */
+    private QuadTreeNode build(int[][] arr, int k, int r, int c) {
+        if (k == 0) {
+            return intern(arr[r][c], null);
+        }
+        return combine(build(arr, k - 1, 2 * r, 2 * c), build(arr, k - 1, 2 * r, 2 * c + 1),
+                build(arr, k - 1, 2 * r + 1, 2 * c + 1), build(arr, k - 1, 2 * r + 1, 2 * c));
+    }
+
+    /**
+     * Builds the levels above the blocks built in parallel
+     *
+     * @param blocks The interned blocks in row-major order
+     * @param side   The number of blocks on a side
+     * @param k      The number of levels left down to the blocks
+     * @param r      The line of the node in its level
+     * @param c      The column of the node in its level
+     * @return The interned node
+     *
+     */
+    private QuadTreeNode assemble(QuadTreeNode[] blocks, int side, int k, int r, int c) {
+        if (k == 0) {
+            return blocks[r * side + c];
+        }
+        return combine(assemble(blocks, side, k - 1, 2 * r, 2 * c), assemble(blocks, side, k - 1, 2 * r, 2 * c + 1),
+                assemble(blocks, side, k - 1, 2 * r + 1, 2 * c + 1), assemble(blocks, side, k - 1, 2 * r + 1, 2 * c));
+    }
+
+    /**
+     * Gets the interned node with the given children, or the leaf they all
+     * are if they are the same leaf
+     *
+     * @param c0 The top-left child
+     * @param c1 The top-right child
+     * @param c2 The bottom-right child
+     * @param c3 The bottom-left child
+     * @return The interned node
+     *
+     */
+    private QuadTreeNode combine(QuadTreeNode c0, QuadTreeNode c1, QuadTreeNode c2, QuadTreeNode c3) {
+        if (c0.isLeaf() && c0 == c1 && c0 == c2 && c0 == c3) {
+            return c0;
+        }
+        return intern(-1, new QuadTreeNode[] { c0, c1, c2, c3 });
+    }
+
+    /**
+     * Gets the interned node with a value and children, creating it if it is
+     * the first one. Concurrent callers agree on a single node.
+     *
+     * @param value    The value of the node, -1 for an internal node
+     * @param children The interned children, or null for a leaf
+     * @return The interned node
+     *
+     */
+    private QuadTreeNode intern(int value, QuadTreeNode[] children) {
+        Key key = new Key(value, children);
+        QuadTreeNode node = this.table.get(key);
+        if (node != null) {
+            return node;
+        }
+
+        node = new QuadTreeNode(value);
+        node.setChildren(children);
+        QuadTreeNode existing = this.table.putIfAbsent(key, node);
+        return existing != null ? existing : node;
+    }
+
+    /**
+     * Interns the nodes of a subtree of a regular quadtree, keeping its
+     * structure as it is
+     *
+     * @param node The root of the subtree
+     * @param done The nodes already interned
+     * @return The interned node
+     *
+     */
+    private QuadTreeNode intern(QuadTreeNode node, IdentityHashMap<QuadTreeNode, QuadTreeNode> done) {
+        QuadTreeNode interned = done.get(node);
+        if (interned != null) {
+            return interned;
+        }
+
+        if (node.isLeaf()) {
+            interned = intern(node.getValue(), null);
+        } else {
+            QuadTreeNode[] children = new QuadTreeNode[4];
+            for (int i = 0; i < 4; i++) {
+                children[i] = intern(node.getChild(i), done);
+            }
+            interned = intern(-1, children);
+        }
+        done.put(node, interned);
+        return interned;
+    }
+
+    /**
+     * Compresses the graph with the Lambda method. Each distinct twig is
+     * compressed once, which compresses all its occurrences.
+     *
+     */
+    public void lambdaCompressTree() {
+        ConcurrentHashMap<Key, QuadTreeNode> previous = this.table;
+        this.table = new ConcurrentHashMap<>();
+        this.root = lambdaCompress(this.root, new IdentityHashMap<>());
+        previous.clear();
+    }
+
+    /**
+     * Compresses a subtree of the graph with the Lambda method
+     *
+     * @param node The root of the subtree
+     * @param done The nodes already compressed
+     * @return The interned compressed node
+     *
+     */
+    private QuadTreeNode lambdaCompress(QuadTreeNode node, IdentityHashMap<QuadTreeNode, QuadTreeNode> done) {
+        QuadTreeNode compressed = done.get(node);
+        if (compressed != null) {
+            return compressed;
+        }
+
+        if (node.isLeaf()) {
+            compressed = intern(node.getValue(), null);
+        } else if (node.isTwigRoot()) {
+            compressed = intern((int) Math.round(Util.calculateAvgLogLuminosity(node)), null);
+        } else {
+            QuadTreeNode[] children = new QuadTreeNode[4];
+            for (int i = 0; i < 4; i++) {
+                children[i] = lambdaCompress(node.getChild(i), done);
+            }
+            compressed = intern(-1, children);
+        }
+        done.put(node, compressed);
+        return compressed;
+    }
+
+    /**
+     * Expands the graph into a regular quadtree that can be modified, for
+     * the compressions that need one
+     *
+     * @return The expanded quadtree
+     *
+     */
+    public QuadTree toQuadTree() {
+        QuadTreeNode copy = new QuadTreeNode();
+        int nbNodes = expand(this.root, copy);
+        return new QuadTree(copy, this.length, nbNodes, this.imageName, null);
+    }
+
+    /**
+     * Copies a subtree of the graph into a node of a regular quadtree
+     *
+     * @param node The node of the graph
+     * @param copy The node receiving the copy
+     * @return The number of nodes of the copy
+     *
+     */
+    private static int expand(QuadTreeNode node, QuadTreeNode copy) {
+        if (node.isLeaf()) {
+            copy.setValue(node.getValue());
+            return 1;
+        }
+
+        int nbNodes = 1;
+        copy.createChildren();
+        for (int i = 0; i < 4; i++) {
+            nbNodes += expand(node.getChild(i), copy.getChild(i));
+        }
+        return nbNodes;
+    }
+
+    /**
+     * Gets the luminosity of a pixel
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The luminosity of the pixel
+     *
+     */
+    public int getValueAt(int line, int col) {
+        QuadTreeNode node = this.root;
+        int size = this.length;
+
+        while (!node.isLeaf()) {
+            size /= 2;
+            boolean bottom = line >= size;
+            boolean right = col >= size;
+            line -= bottom ? size : 0;
+            col -= right ? size : 0;
+            node = node.getChild(bottom ? (right ? 2 : 3) : (right ? 1 : 0));
+        }
+        return node.getValue();
+    }
+
+    /**
+     * Gets the number of nodes of the tree the graph stands for
+     *
+     * @return The number of nodes, counting every occurrence of a shared node
+     *
+     */
+    public long getNbNodes() {
+        return countNodes(this.root, new IdentityHashMap<>());
+    }
+
+    /**
+     * Counts the nodes of the tree a subtree of the graph stands for
+     *
+     * @param node   The root of the subtree
+     * @param counts The counts of the nodes already visited
+     * @return The number of nodes
+     *
+     */
+    private static long countNodes(QuadTreeNode node, IdentityHashMap<QuadTreeNode, Long> counts) {
+        if (node.isLeaf()) {
+            return 1;
+        }
+        Long count = counts.get(node);
+        if (count == null) {
+            long total = 1;
+            for (int i = 0; i < 4; i++) {
+                total += countNodes(node.getChild(i), counts);
+            }
+            count = total;
+            counts.put(node, count);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of distinct nodes actually stored
+     *
+     * @return The number of distinct nodes
+     *
+     */
+    public int getNbUniqueNodes() {
+        IdentityHashMap<QuadTreeNode, Boolean> seen = new IdentityHashMap<>();
+        collect(this.root, seen);
+        return seen.size();
+    }
+
+    /**
+     * Collects the distinct nodes of a subtree of the graph
+     *
+     * @param node The root of the subtree
+     * @param seen The nodes already collected
+     *
+     */
+    private static void collect(QuadTreeNode node, IdentityHashMap<QuadTreeNode, Boolean> seen) {
+        if (seen.put(node, Boolean.TRUE) == null && !node.isLeaf()) {
+            for (int i = 0; i < 4; i++) {
+                collect(node.getChild(i), seen);
+            }
+        }
+    }
+
+    /**
+     * Converts the graph to the parenthesized representation with
+     * back-references. Internal nodes are numbered in the order they first
+     * appear, and a later occurrence of one is written "#n".
+     *
+     * @return The parenthesized representation with back-references
+     *
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        toString(this.root, new IdentityHashMap<>(), result);
+        return result.toString();
+    }
+
+    /**
+     * Appends the representation of a subtree of the graph
+     *
+     * @param node    The root of the subtree
+     * @param numbers The numbers of the internal nodes already written
+     * @param result  The builder receiving the representation
+     *
+     */
+    private static void toString(QuadTreeNode node, IdentityHashMap<QuadTreeNode, Integer> numbers,
+            StringBuilder result) {
+        if (node.isLeaf()) {
+            result.append(node.getValue()).append(' ');
+            return;
+        }
+
+        Integer number = numbers.get(node);
+        if (number != null) {
+            result.append(BACK_REFERENCE).append(number).append(' ');
+            return;
+        }
+
+        numbers.put(node, numbers.size());
+        result.append('(');
+        for (int i = 0; i < 4; i++) {
+            toString(node.getChild(i), numbers, result);
+            if (i < 3) {
+                result.append(' ');
+            }
+        }
+        result.append(')');
+    }
+
+    /**
+     * Reads the parenthesized representation with back-references
+     *
+     * @param representation The representation written by toString
+     * @param length         The length of the image
+     * @param name           The name of the image
+     * @return The graph, or null if the representation is malformed
+     *
+     */
+    public static QuadTreeDag fromString(String representation, int length, String name) {
+        String[] tokens = representation.replace("(", " ( ").replace(")", " ) ").trim().split("\\s+");
+        QuadTreeDag dag = new QuadTreeDag(length, "compressed-" + name);
+        int[] position = { 0 };
+
+        try {
+            if (!Util.isPowerOfTwo(length)) {
+                throw new IllegalArgumentException("the length is not a power of two");
+            }
+            dag.root = dag.parse(tokens, position, new ArrayList<>(), new IdentityHashMap<>(), 0,
+                    Integer.numberOfTrailingZeros(length));
+            if (position[0] != tokens.length) {
+                throw new IllegalArgumentException("trailing tokens");
+            }
+            return dag;
+        } catch (RuntimeException e) {
+            System.err.println("Incorrect file format! " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Constructor of an empty graph, filled by fromString
+     *
+     * @param length    The length of the image
+     * @param imageName The name of the compressed image
+     *
+     */
+    private QuadTreeDag(int length, String imageName) {
+        this.length = length;
+        this.imageName = imageName;
+    }
+
+    /**
+     * Parses a subtree of the representation. A back-reference must name an
+     * internal node already read, and no subtree may go below the pixels.
+     *
+     * @param tokens   The tokens of the representation
+     * @param position The index of the next token
+     * @param numbered The internal nodes in the order they were numbered
+     * @param heights  The height of the internal nodes read so far
+     * @param depth    The depth of the subtree
+     * @param maxDepth The depth of the pixels
+     * @return The interned node
+     *
+     */
+    private QuadTreeNode parse(String[] tokens, int[] position, ArrayList<QuadTreeNode> numbered,
+            IdentityHashMap<QuadTreeNode, Integer> heights, int depth, int maxDepth) {
+        String token = tokens[position[0]++];
+
+        if (token.charAt(0) == BACK_REFERENCE) {
+            QuadTreeNode node = numbered.get(Integer.parseInt(token.substring(1)));
+            if (node == null) {
+                throw new IllegalArgumentException("back-reference to a node being read: " + token);
+            }
+            if (depth + heights.get(node) > maxDepth) {
+                throw new IllegalArgumentException("back-reference below the pixels: " + token);
+            }
+            return node;
+        }
+        if (!token.equals("(")) {
+            int value = Integer.parseInt(token);
+            if (value < 0) {
+                throw new IllegalArgumentException("negative value: " + token);
+            }
+            return intern(value, null);
+        }
+        if (depth >= maxDepth) {
+            throw new IllegalArgumentException("subtree below the pixels");
+        }
+
+        int number = numbered.size();
+        numbered.add(null);
+        QuadTreeNode[] children = new QuadTreeNode[4];
+        int height = 1;
+        for (int i = 0; i < 4; i++) {
+            children[i] = parse(tokens, position, numbered, heights, depth + 1, maxDepth);
+            height = Math.max(height, 1 + heights.getOrDefault(children[i], 0));
+        }
+        if (!tokens[position[0]++].equals(")")) {
+            throw new IllegalArgumentException("missing )");
+        }
+
+        QuadTreeNode node = intern(-1, children);
+        numbered.set(number, node);
+        heights.put(node, height);
+        return node;
+    }
+
+    /**
+     * Get the length of the original image
+     *
+     * @return the length of the original image
+     *
+     */
+    public int getLength() {
+        return this.length;
+    }
+}
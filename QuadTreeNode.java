@@ -27,6 +27,14 @@ public class QuadTreeNode {
      */
     private QuadTreeNode[] children;
 
+    /**
+     * The sum, minimum and maximum of the region of this Node
+     * 
+     * Only set on internal nodes when the tree keeps aggregates, null otherwise
+     * 
+     */
+    private NodeAggregate aggregate;
+
     /**
      * The constructor of this node 
      *
@@ -61,6 +69,16 @@ public class QuadTreeNode {
         return this.parent;
     }
 
+    /**
+     * The setter of the parent of this node
+     * 
+     * @param parent the new parent of this node
+     */
+    public void setParent(QuadTreeNode parent)
+    {
+        this.parent = parent;
+    }
+
     /**
      * The getter of the value attribute
      * 
@@ -166,6 +184,50 @@ public class QuadTreeNode {
         }
     }
 
+    /**
+     * Get the array of the children of this node
+     * 
+     * @return the children of this node, null if it is a leaf
+     * 
+     */
+    public QuadTreeNode[] getChildren()
+    {
+        return this.children;
+    }
+
+    /**
+     * Put back children previously taken with getChildren, to undo a merge
+     * 
+     * @param children the children to restore, their parent must be this node
+     * 
+     */
+    public void setChildren(QuadTreeNode[] children)
+    {
+        this.children = children;
+    }
+
+    /**
+     * Get the aggregate of the region of this node
+     * 
+     * @return the aggregate, null if the tree does not keep them or this node is a leaf
+     * 
+     */
+    public NodeAggregate getAggregate()
+    {
+        return this.aggregate;
+    }
+
+    /**
+     * Set the aggregate of the region of this node
+     * 
+     * @param aggregate the aggregate, null to drop it
+     * 
+     */
+    public void setAggregate(NodeAggregate aggregate)
+    {
+        this.aggregate = aggregate;
+    }
+
     /**
      * Print the values of the children of this node
      * 
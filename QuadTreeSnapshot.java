@@ -0,0 +1,115 @@
+/**
+ * Class that represents an immutable version of a QuadTree, published while
+ * the tree is being compressed so it can be read from other threads without
+ * locking
+ *
+ */
+public class QuadTreeSnapshot {
+
+    /**
+     * The read-only tree of this version, its nodes are never modified
+     *
+     */
+    private QuadTree tree;
+
+    /**
+     * The version number, increasing with every publication
+     *
+     */
+    private long version;
+
+    /**
+     * Constructor of a snapshot
+     *
+     * @param tree    The read-only tree of this version
+     * @param version The version number
+     *
+     */
+    QuadTreeSnapshot(QuadTree tree, long version) {
+        this.tree = tree;
+        this.version = version;
+    }
+
+    /**
+     * Gets the version number
+     *
+     * @return The version number
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Gets the number of nodes of this version
+     *
+     * @return The number of nodes
+     */
+    public int getNbNodes() {
+        return this.tree.getNbNodes();
+    }
+
+    /**
+     * Gets the length of the image
+     *
+     * @return The length of the image
+     */
+    public int getLength() {
+        return this.tree.getLength();
+    }
+
+    /**
+     * Checks if the values of this version are packed colors
+     *
+     * @return true if each value is a color packed as 0xRRGGBB
+     */
+    public boolean isPackedColor() {
+        return this.tree.isPackedColor();
+    }
+
+    /**
+     * Gets the luminosity of a pixel in this version
+     *
+     * @param line The line of the pixel
+     * @param col  The column of the pixel
+     * @return The luminosity of the pixel
+     */
+    public int getValueAt(int line, int col) {
+        return this.tree.getValueAt(line, col);
+    }
+
+    /**
+     * Gets the serialized size of this version
+     *
+     * @return The length of its parenthesized representation
+     */
+    public long getSerializedSize() {
+        return this.tree.getSerializedSize();
+    }
+
+    /**
+     * Saves this version as a PGM file
+     *
+     * @param path Where to save the image
+     */
+    public void toPgm(String path) {
+        this.tree.toPgm(path);
+    }
+
+    /**
+     * Gets the parenthesized representation of this version
+     *
+     * @return The parenthesized representation
+     */
+    public String toString() {
+        return this.tree.toString();
+    }
+
+    /**
+     * Gets the root of this version, which must not be modified
+     *
+     * @return The root node
+     */
+    QuadTreeNode getRoot() {
+        return this.tree.getRoot();
+    }
+}
@@ -1,3 +1,14 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntBinaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Class that implements the test cases for our compression
  * 
@@ -7,6 +18,44 @@ public class QuadTreeTest {
     public static void main(String[] args) {
         testImageCompression();
         //testImageConstruction();
+        testLutOnCollapsedPartition();
+        testLutMatchesPixelwise();
+        testLutValidation();
+        testParallelRhoMatchesSequential();
+        testUpdateRegionMatchesRebuild();
+        testUpdateRegionOnCopy();
+        testUpdateRegionWithoutSource();
+        testCacheReturnsIdenticalBytes();
+        testCacheDeduplicatesMisses();
+        testCacheDiskEviction();
+        testTransformsMatchPixels();
+        testMosaicRejectsMixedColors();
+        testSnapshotIsolation();
+        testQualityMetricsMatchPixels();
+        testTargetCompression();
+        for (BuildMode mode : BuildMode.values()) {
+            if (mode != BuildMode.RECURSIVE) {
+                testBuildModesMatch(mode);
+            }
+        }
+        testUniformityBitmap();
+        testRepeatedRhoKeepsTwigs();
+        testColorImages();
+        testPipelineMatchesDirect();
+        testContainerMatchesTree();
+        testFrameDeltaRoundTrip();
+        testDagMatchesTree();
+        testLinearMatchesTree();
+        testCombineMatchesPixels();
+        testRegionStatisticsMatchPixels();
+        testParallelLoadMatchesScanner();
+        testMemoryEstimateCounts();
+        testReportLines();
+        testLazyMatchesTree();
+        testCombineRejectsInvalidValues();
+        testUpdateRegionRejectsValues();
+        testLutMapsSource();
+        testMenuReportLines();
     }
 
     private static void printQuadTree(QuadTreeNode node, int depth) {
@@ -54,5 +103,1045 @@ public class QuadTreeTest {
         printQuadTree(lowCompressionQuadTree.getRoot(), 0);
         System.out.println("-------------------------------");
     }
-    
+
+    private static void check(String name, boolean passed) {
+        System.out.println(name + ": " + (passed ? "OK" : "FAILED"));
+    }
+
+    private static boolean matchesTree(QuadTree expected, IntBinaryOperator values) {
+        for (int i = 0; i < expected.getLength(); i++) {
+            for (int j = 0; j < expected.getLength(); j++) {
+                if (values.applyAsInt(i, j) != expected.getValueAt(i, j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesRegion(QuadTree expected, int[][] region, int line, int col) {
+        for (int i = 0; i < region.length; i++) {
+            for (int j = 0; j < region[i].length; j++) {
+                if (region[i][j] != expected.getValueAt(line + i, col + j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean rejects(Runnable action) {
+        try {
+            action.run();
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static void testLutOnCollapsedPartition() {
+        // The top-left 2x2 block collapses to a leaf at the partition depth,
+        // which must be mapped once: 1 and 2 become 5, not lut[5] = 9
+        int[][] pixels = new int[16][16];
+        pixels[0][0] = 1;
+        pixels[0][1] = 2;
+        pixels[1][0] = 1;
+        pixels[1][1] = 2;
+        QuadTree tree = new QuadTree(new PMG(pixels, 255), "lut.pgm", BuildMode.PYRAMID);
+        int[] lut = new int[256];
+        for (int i = 0; i < lut.length; i++) {
+            lut[i] = i;
+        }
+        lut[1] = 5;
+        lut[2] = 5;
+        lut[5] = 9;
+        tree.applyLut(lut);
+        check("LUT on a collapsed partition root", tree.getValueAt(0, 0) == 5 && tree.getValueAt(1, 1) == 5
+                && tree.getValueAt(15, 15) == 0);
+    }
+
+    private static void testLutMatchesPixelwise() {
+        // Inverting the image also maps the leaves at the partition depth
+        QuadTree original = new QuadTree("train.pgm");
+        QuadTree tree = original.copy();
+        int[] lut = new int[256];
+        for (int i = 0; i < lut.length; i++) {
+            lut[i] = 255 - i;
+        }
+        tree.applyLut(lut);
+        boolean passed = true;
+        for (int i = 0; i < original.getLength() && passed; i++) {
+            for (int j = 0; j < original.getLength(); j++) {
+                if (tree.getValueAt(i, j) != lut[original.getValueAt(i, j)]) {
+                    passed = false;
+                    break;
+                }
+            }
+        }
+        check("LUT against the pixelwise mapping", passed);
+    }
+
+    private static void testLutValidation() {
+        QuadTree tree = new QuadTree("train.pgm").rotate(90);
+        boolean shortRejected = false;
+        boolean negativeRejected = false;
+        try {
+            tree.applyLut(new int[1]);
+        } catch (IllegalArgumentException e) {
+            shortRejected = true;
+        }
+        int[] lut = new int[256];
+        lut[0] = -1;
+        try {
+            tree.applyLut(lut);
+        } catch (IllegalArgumentException e) {
+            negativeRejected = true;
+        }
+        check("LUT validation on a derived tree", shortRejected && negativeRejected);
+    }
+
+    private static void testParallelRhoMatchesSequential() {
+        String[] images = { "train.pgm", "flower.pgm", "tree.pgm" };
+        int[] rhos = { 1, 10, 37, 50, 80, 99 };
+        for (String image : images) {
+            QuadTree original = new QuadTree(image);
+            for (int rho : rhos) {
+                QuadTree sequential = original.copy();
+                QuadTree parallel = original.copy();
+                sequential.rhoCompressTree(rho);
+                parallel.parallelRhoCompressTree(rho);
+                check("Parallel Rho " + rho + " on " + image, sequential.getNbNodes() == parallel.getNbNodes()
+                        && sequential.toString().equals(parallel.toString()));
+            }
+        }
+    }
+
+    private static int[][] copyPixels(int[][] pixels) {
+        int[][] copy = new int[pixels.length][];
+        for (int i = 0; i < pixels.length; i++) {
+            copy[i] = pixels[i].clone();
+        }
+        return copy;
+    }
+
+    private static int[][] patch(int h, int w, int value) {
+        int[][] pixels = new int[h][w];
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                pixels[i][j] = (value + i * 7 + j * 3) % 256;
+            }
+        }
+        return pixels;
+    }
+
+    private static void testUpdateRegionMatchesRebuild() {
+        PMG image = FileManager.loadImage("train.pgm");
+        int[][] expected = copyPixels(image.getLuminosities());
+        QuadTree tree = new QuadTree(new PMG(copyPixels(expected), image.getMaxLuminosity()), "train.pgm",
+                BuildMode.RECURSIVE);
+        tree.rhoCompressTree(100);
+        int[][][] patches = { patch(37, 53, 10), patch(64, 64, 200), new int[100][90] };
+        int[][] origins = { { 5, 9 }, { 128, 256 }, { 300, 411 } };
+        for (int p = 0; p < patches.length; p++) {
+            int[][] pixels = patches[p];
+            tree.updateRegion(origins[p][1], origins[p][0], pixels[0].length, pixels.length, pixels);
+            for (int i = 0; i < pixels.length; i++) {
+                System.arraycopy(pixels[i], 0, expected[origins[p][0] + i], origins[p][1], pixels[i].length);
+            }
+        }
+        QuadTree rebuilt = new QuadTree(new PMG(expected, image.getMaxLuminosity()), "train.pgm",
+                BuildMode.RECURSIVE);
+        check("Region updates against a full rebuild", tree.getNbNodes() == rebuilt.getNbNodes()
+                && tree.toString().equals(rebuilt.toString()));
+    }
+
+    private static void testUpdateRegionOnCopy() {
+        QuadTree original = new QuadTree("train.pgm");
+        PMG source = original.getSource();
+        int before = source.getLuminosities()[20][20];
+        QuadTree copy = original.copy();
+        copy.updateRegion(16, 16, 32, 32, patch(32, 32, before + 1));
+        check("Region update on a copy leaves the original untouched",
+                source.getLuminosities()[20][20] == before && original.computeMSE(source) == 0.0
+                        && copy.computeMSE(copy.getSource()) == 0.0 && copy.getValueAt(20, 20) != before);
+
+        // A frame sequence keeps the pixels of the previous frame to find the
+        // changed regions of the next one
+        PMG first = FileManager.loadImage("train.pgm");
+        PMG second = new PMG(copyPixels(first.getLuminosities()), first.getMaxLuminosity());
+        FrameSequence sequence = new FrameSequence();
+        sequence.next(first, "first.pgm");
+        sequence.next(second, "second.pgm").copy().updateRegion(0, 0, 16, 16, patch(16, 16, 3));
+        PMG third = new PMG(copyPixels(first.getLuminosities()), first.getMaxLuminosity());
+        int[][] edit = patch(16, 16, 3);
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(edit[i], 0, third.getLuminosities()[i], 0, 16);
+        }
+        QuadTree frame = sequence.next(third, "third.pgm");
+        check("Region update on a copy of a frame", frame.computeMSE(third) == 0.0);
+    }
+
+    private static void testUpdateRegionWithoutSource() {
+        QuadTree rotated = new QuadTree("train.pgm").rotate(90);
+        boolean rejected = false;
+        try {
+            rotated.updateRegion(0, 0, 2, 2, new int[2][2]);
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        check("Region update without a source image", rejected);
+    }
+
+    private static void testCacheReturnsIdenticalBytes() {
+        PMG image = FileManager.loadImage("flower.pgm");
+        CompressionCache cache = new CompressionCache(CompressionCache.DEFAULT_CAPACITY, null);
+        String key = CompressionCache.key(image, "RHO", 50, "PGM");
+        boolean passed;
+        try {
+            byte[] direct = CompressionServer.compress(image, "flower.pgm", false, 50, false);
+            byte[] first = cache.get(key, () -> CompressionServer.compress(image, "flower.pgm", false, 50, false));
+            byte[] second = cache.get(key, () -> new byte[0]);
+            passed = Arrays.equals(direct, first) && Arrays.equals(direct, second);
+        } catch (IOException e) {
+            passed = false;
+        }
+
+        int[][] pixels = copyPixels(image.getLuminosities());
+        pixels[7][7] ^= 1;
+        PMG changed = new PMG(pixels, image.getMaxLuminosity());
+        check("Cache returns identical bytes", passed
+                && !key.equals(CompressionCache.key(changed, "RHO", 50, "PGM"))
+                && key.equals(CompressionCache.key(new PMG(copyPixels(image.getLuminosities()),
+                        image.getMaxLuminosity()), "RHO", 50, "PGM")));
+    }
+
+    private static void testCacheDeduplicatesMisses() {
+        CompressionCache cache = new CompressionCache(CompressionCache.DEFAULT_CAPACITY, null);
+        AtomicInteger computations = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        byte[][] results = new byte[threads.length][];
+        for (int t = 0; t < threads.length; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    results[index] = cache.get("same", () -> {
+                        computations.incrementAndGet();
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new byte[] { 1, 2, 3 };
+                    });
+                } catch (IOException e) {
+                    results[index] = null;
+                }
+            });
+            threads[t].start();
+        }
+        boolean passed = true;
+        for (int t = 0; t < threads.length; t++) {
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                passed = false;
+            }
+            passed &= Arrays.equals(results[t], new byte[] { 1, 2, 3 });
+        }
+        check("Cache computes concurrent misses once", passed && computations.get() == 1);
+    }
+
+    private static void testCacheDiskEviction() {
+        boolean passed;
+        try {
+            File directory = Files.createTempDirectory("cache").toFile();
+            CompressionCache cache = new CompressionCache(0, directory, 250);
+            cache.put("a", new byte[100]);
+            cache.put("b", new byte[100]);
+            cache.get("a");
+            cache.put("c", new byte[100]);
+            passed = new File(directory, "a").exists() && !new File(directory, "b").exists()
+                    && new File(directory, "c").exists();
+
+            // A new cache over the same directory keeps within the bound
+            CompressionCache reopened = new CompressionCache(0, directory, 150);
+            File[] kept = directory.listFiles();
+            passed &= kept.length == 1 && reopened.get(kept[0].getName()) != null;
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        } catch (IOException e) {
+            passed = false;
+        }
+        check("Cache evicts from disk beyond its size", passed);
+    }
+
+    private static void testTransformsMatchPixels() {
+        QuadTree tree = new QuadTree("flower.pgm");
+        tree.rhoCompressTree(40);
+        int n = tree.getLength();
+        int half = n / 2;
+        QuadTree rotated = tree.rotate(90);
+        QuadTree flipped = tree.flipHorizontal();
+        QuadTree upsideDown = tree.flipVertical();
+        QuadTree crop = tree.crop(2);
+        QuadTree mosaic = QuadTree.mosaic(tree.crop(0), tree.crop(1), tree.crop(2), tree.crop(3));
+        boolean passed = crop.getLength() == half && mosaic.getLength() == n;
+        for (int i = 0; i < n && passed; i++) {
+            for (int j = 0; j < n; j++) {
+                int value = tree.getValueAt(i, j);
+                if (rotated.getValueAt(j, n - 1 - i) != value || flipped.getValueAt(i, n - 1 - j) != value
+                        || upsideDown.getValueAt(n - 1 - i, j) != value || mosaic.getValueAt(i, j) != value
+                        || (i >= half && j >= half && crop.getValueAt(i - half, j - half) != value)) {
+                    passed = false;
+                    break;
+                }
+            }
+        }
+        check("Transforms against the pixels", passed && mosaic.toString().equals(tree.toString()));
+    }
+
+    private static void testMosaicRejectsMixedColors() {
+        QuadTree gray = new QuadTree(new PMG(new int[4][4], 255), "gray.pgm", BuildMode.PYRAMID);
+        QuadTree color = new QuadTree(new PMG(new int[4][4], 0xFFFFFF), "color.ppm", BuildMode.PYRAMID, true);
+        boolean rejected = false;
+        try {
+            QuadTree.mosaic(gray, gray, color, gray);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check("Mosaic of packed colors and grayscale", rejected
+                && QuadTree.mosaic(color, color, color, color).isPackedColor());
+    }
+
+    private static void testSnapshotIsolation() {
+        QuadTree tree = new QuadTree("train.pgm");
+        String original = tree.toString();
+        tree.enableSnapshots(1000);
+        QuadTreeSnapshot first = tree.getSnapshot();
+
+        // A reader running during the compression only sees whole versions
+        AtomicInteger inconsistent = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            long version = -1;
+            while (!Thread.currentThread().isInterrupted()) {
+                QuadTreeSnapshot snapshot = tree.getSnapshot();
+                String structure = snapshot.toString();
+                long internal = structure.chars().filter(c -> c == '(').count();
+                if (snapshot.getVersion() < version || 1 + 4 * internal != snapshot.getNbNodes()) {
+                    inconsistent.incrementAndGet();
+                }
+                version = snapshot.getVersion();
+            }
+        });
+        reader.start();
+        tree.rhoCompressTree(50);
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            inconsistent.incrementAndGet();
+        }
+        QuadTreeSnapshot last = tree.getSnapshot();
+        boolean passed = first.toString().equals(original) && first.getVersion() < last.getVersion()
+                && last.toString().equals(tree.toString()) && last.getNbNodes() == tree.getNbNodes()
+                && inconsistent.get() == 0;
+        int[][] colors = new int[8][8];
+        colors[0][0] = 0x123456;
+        QuadTree packed = new QuadTree(new PMG(colors, 0xFFFFFF), "color.ppm", BuildMode.PYRAMID, true);
+        packed.enableSnapshots(1);
+        packed.rhoCompressTree(50);
+        check("Snapshot isolation", passed && packed.getSnapshot().isPackedColor());
+    }
+
+    private static void testQualityMetricsMatchPixels() {
+        QuadTree tree = new QuadTree("tree.pgm");
+        PMG image = tree.getSource();
+        QualityMetrics lossless = new QualityMetrics(tree, image);
+        tree.rhoCompressTree(30);
+        QualityMetrics metrics = new QualityMetrics(tree, image);
+
+        int[][] pixels = image.getLuminosities();
+        long squaredError = 0;
+        int maxError = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            for (int j = 0; j < pixels.length; j++) {
+                int diff = Math.abs(pixels[i][j] - tree.getValueAt(i, j));
+                squaredError += (long) diff * diff;
+                maxError = Math.max(maxError, diff);
+            }
+        }
+        double mse = (double) squaredError / ((double) pixels.length * pixels.length);
+        double psnr = 10 * Math.log10((double) image.getMaxLuminosity() * image.getMaxLuminosity() / mse);
+        check("Quality metrics against the pixels", lossless.getMse() == 0.0
+                && Double.isInfinite(lossless.getPsnr()) && lossless.getMaxError() == 0
+                && Math.abs(lossless.getSsim() - 1.0) < 1e-9
+                && Math.abs(metrics.getMse() - mse) < 1e-9 && Math.abs(metrics.getPsnr() - psnr) < 1e-9
+                && metrics.getMaxError() == maxError && metrics.getSsim() < 1.0 && metrics.getSsim() > 0.0);
+    }
+
+    private static void testTargetCompression() {
+        QuadTree original = new QuadTree("flower.pgm");
+        PMG image = original.getSource();
+
+        QuadTree quality = original.copy();
+        boolean psnrMet = quality.psnrCompressTree(32);
+        double psnr = quality.computePSNR(image);
+
+        QuadTree size = original.copy();
+        long budget = original.getSerializedSize() / 3;
+        boolean sizeMet = size.sizeCompressTree(budget);
+
+        QuadTree both = original.copy();
+        boolean bothMet = both.targetCompressTree(40, budget / 10);
+
+        boolean rejected = false;
+        try {
+            original.rotate(90).psnrCompressTree(30);
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        check("Targeted compression bounds", psnrMet && psnr >= 32 && quality.getNbNodes() < original.getNbNodes()
+                && sizeMet && size.getSerializedSize() <= budget
+                && size.toString().length() == size.getSerializedSize()
+                && !bothMet && both.computePSNR(image) >= 40 && rejected);
+    }
+
+    private static void testBuildModesMatch(BuildMode mode) {
+        String[] images = { "train.pgm", "flower_small.pgm", "lighthouse.pgm" };
+        boolean passed = true;
+        for (String image : images) {
+            PMG pixels = FileManager.loadImage(image);
+            QuadTree recursive = new QuadTree(pixels, image, BuildMode.RECURSIVE);
+            QuadTree built = new QuadTree(pixels, image, mode);
+            passed &= recursive.getNbNodes() == built.getNbNodes() && recursive.toString().equals(built.toString());
+        }
+
+        // Uniform and checkered images, where whole levels collapse or none do
+        int[][] uniform = new int[64][64];
+        int[][] checkered = new int[64][64];
+        for (int i = 0; i < 64; i++) {
+            for (int j = 0; j < 64; j++) {
+                uniform[i][j] = 9;
+                checkered[i][j] = (i + j) % 2 * 255;
+            }
+        }
+        for (int[][] arr : new int[][][] { uniform, checkered }) {
+            QuadTree recursive = new QuadTree(new PMG(arr, 255), "synthetic.pgm", BuildMode.RECURSIVE);
+            QuadTree built = new QuadTree(new PMG(arr, 255), "synthetic.pgm", mode);
+            passed &= recursive.getNbNodes() == built.getNbNodes() && recursive.toString().equals(built.toString());
+        }
+        check(mode + " build against the recursive build", passed);
+    }
+
+    private static void testUniformityBitmap() {
+        PMG image = FileManager.loadImage("flower_small.pgm");
+        int[][] pixels = image.getLuminosities();
+        UniformityBitmap bitmap = new UniformityBitmap(image);
+        boolean passed = true;
+        for (int k = 1; k <= UniformityBitmap.MAX_LEVEL; k++) {
+            int side = 1 << k;
+            for (int r = 0; r < pixels.length / side; r++) {
+                for (int c = 0; c < pixels.length / side; c++) {
+                    boolean uniform = true;
+                    for (int i = r * side; i < (r + 1) * side && uniform; i++) {
+                        for (int j = c * side; j < (c + 1) * side; j++) {
+                            uniform &= pixels[i][j] == pixels[r * side][c * side];
+                        }
+                    }
+                    passed &= bitmap.isUniform(k, r, c) == uniform;
+                }
+            }
+        }
+        check("Uniformity bitmap against the pixels", passed);
+    }
+
+    private static void testRepeatedRhoKeepsTwigs() {
+        // A second compression reusing the twigs AVL must merge the same twigs
+        // as one detecting them again on a copy of the tree
+        String[] images = { "train.pgm", "flower.pgm" };
+        boolean passed = true;
+        for (String image : images) {
+            QuadTree kept = new QuadTree(image);
+            kept.rhoCompressTree(80);
+            QuadTree detected = kept.copy();
+            kept.rhoCompressTree(50);
+            detected.rhoCompressTree(50);
+            kept.rhoCompressTree(20);
+            detected.rhoCompressTree(20);
+            passed &= kept.getNbNodes() == detected.getNbNodes() && kept.toString().equals(detected.toString());
+        }
+        check("Repeated Rho compressions keep the twigs", passed);
+    }
+
+    private static void testColorImages() {
+        int n = 32;
+        int[][] colors = new int[n][n];
+        StringBuilder ascii = new StringBuilder("P3\n" + n + " " + n + "\n255\n");
+        byte[] binary = new byte[3 * n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                int r = i < n / 2 ? 200 : (i * 7) % 256;
+                int g = (j / 4) * 30;
+                int b = (i * j) % 256;
+                colors[i][j] = r << 16 | g << 8 | b;
+                ascii.append(r).append(' ').append(g).append(' ').append(b).append('\n');
+                int index = 3 * (i * n + j);
+                binary[index] = (byte) r;
+                binary[index + 1] = (byte) g;
+                binary[index + 2] = (byte) b;
+            }
+        }
+
+        boolean passed = true;
+        try {
+            File p3 = File.createTempFile("color", ".ppm");
+            File p6 = File.createTempFile("color", ".ppm");
+            File invalid = File.createTempFile("invalid", ".ppm");
+            File saved = File.createTempFile("saved", ".ppm");
+            Files.write(p3.toPath(), ascii.toString().getBytes(StandardCharsets.US_ASCII));
+            byte[] header = ("P6\n" + n + " " + n + "\n255\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] data = Arrays.copyOf(header, header.length + binary.length);
+            System.arraycopy(binary, 0, data, header.length, binary.length);
+            Files.write(p6.toPath(), data);
+            Files.write(invalid.toPath(), "P3\n3 3\n255\n".getBytes(StandardCharsets.US_ASCII));
+
+            for (File file : new File[] { p3, p6 }) {
+                for (boolean packed : new boolean[] { false, true }) {
+                    ColorQuadTree tree = new ColorQuadTree(file.getPath(), packed);
+                    for (int i = 0; i < n; i++) {
+                        for (int j = 0; j < n; j++) {
+                            passed &= tree.getColorAt(i, j) == colors[i][j];
+                        }
+                    }
+                    for (QuadTree channel : tree.getTrees()) {
+                        passed &= channel.getSource() == null;
+                    }
+
+                    // The compressed image read back matches the trees
+                    tree.rhoCompressTree(50);
+                    tree.toPpm(saved.getPath());
+                    ColorQuadTree reloaded = new ColorQuadTree(saved.getPath(), packed);
+                    for (int i = 0; i < n; i++) {
+                        for (int j = 0; j < n; j++) {
+                            passed &= reloaded.getColorAt(i, j) == tree.getColorAt(i, j);
+                        }
+                    }
+                }
+            }
+
+            try {
+                new ColorQuadTree(invalid.getPath(), false);
+                passed = false;
+            } catch (IllegalArgumentException e) {
+                // An image whose size is not a power of two is rejected
+            }
+            for (File file : new File[] { p3, p6, invalid, saved }) {
+                file.delete();
+            }
+        } catch (IOException e) {
+            passed = false;
+        }
+        check("Color images in both strategies", passed);
+    }
+
+    private static void testPipelineMatchesDirect() {
+        // A missing image is dropped without holding up the rest of the batch
+        List<String> images = Arrays.asList("flower_small.pgm", "missing.pgm", "lighthouse.pgm", "tree.pgm");
+        boolean passed = true;
+        try {
+            new CompressionPipeline(2, 2, 2, 2).run(images, false, 40);
+            for (String image : new String[] { "flower_small", "lighthouse", "tree" }) {
+                QuadTree direct = new QuadTree(image + ".pgm", BuildMode.PYRAMID);
+                direct.rhoCompressTree(40);
+                File tree = new File("RHOcompressed-" + image + ".txt");
+                File pgm = new File("RHOcompressed-" + image + ".pgm");
+                passed &= new String(Files.readAllBytes(tree.toPath()), StandardCharsets.UTF_8)
+                        .equals(direct.toString()) && pgm.exists();
+                tree.delete();
+                pgm.delete();
+            }
+        } catch (IOException | InterruptedException e) {
+            passed = false;
+        }
+        check("Pipeline against the direct compression", passed && !new File("RHOcompressed-missing.txt").exists());
+    }
+
+    private static void testContainerMatchesTree() {
+        QuadTree tree = new QuadTree("flower.pgm");
+        tree.rhoCompressTree(30);
+        boolean passed = true;
+        try {
+            File file = File.createTempFile("container", ".qtc");
+            for (int depth : new int[] { 0, 3, 20 }) {
+                QuadTreeContainer.write(tree, file.getPath(), depth);
+                QuadTreeContainer container = new QuadTreeContainer(file.getPath());
+                passed &= container.getLength() == tree.getLength() && matchesTree(tree, container::getValueAt)
+                        && matchesRegion(tree, container.decodeRegion(100, 37, 150, 211), 100, 37)
+                        && container.decodeRegion(5, 5, 0, 3).length == 0
+                        && container.decodeRegion(5, 5, 2, 0)[1].length == 0
+                        && rejects(() -> container.getValueAt(tree.getLength(), 0))
+                        && rejects(() -> container.getValueAt(0, -1))
+                        && rejects(() -> container.decodeRegion(tree.getLength() - 10, 0, 11, 4))
+                        && rejects(() -> container.decodeRegion(0, -1, 3, 3));
+            }
+            Files.write(file.toPath(), "P2\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                new QuadTreeContainer(file.getPath());
+                passed = false;
+            } catch (IOException e) {
+                // A file that is not a container is rejected
+            }
+            file.delete();
+        } catch (IOException e) {
+            passed = false;
+        }
+        check("Container against the tree", passed);
+    }
+
+    private static void testFrameDeltaRoundTrip() {
+        PMG first = FileManager.loadImage("train.pgm");
+        PMG[] frames = new PMG[4];
+        frames[0] = first;
+        for (int f = 1; f < frames.length; f++) {
+            int[][] pixels = copyPixels(frames[f - 1].getLuminosities());
+            int[][] edit = patch(40, 60, 50 * f);
+            for (int i = 0; i < edit.length; i++) {
+                System.arraycopy(edit[i], 0, pixels[100 * f + i], 70 * f, edit[i].length);
+            }
+            frames[f] = new PMG(pixels, first.getMaxLuminosity());
+        }
+
+        FrameSequence sequence = new FrameSequence();
+        QuadTree previous = null;
+        boolean passed = true;
+        for (int f = 0; f < frames.length; f++) {
+            QuadTree tree = sequence.next(frames[f], "frame" + f + ".pgm");
+            QuadTree rebuilt = new QuadTree(frames[f], "frame" + f + ".pgm", BuildMode.RECURSIVE);
+            passed &= tree.toString().equals(rebuilt.toString()) && tree.getNbNodes() == rebuilt.getNbNodes();
+            if (previous != null) {
+                QuadTree decoded = FrameSequence.fromDelta(FrameSequence.toDelta(tree, previous), previous,
+                        "frame" + f + ".pgm");
+                passed &= decoded != null && decoded.toString().equals(tree.toString())
+                        && sequence.getBuiltNodes() < tree.getNbNodes() / 10;
+            }
+            previous = tree;
+        }
+
+        boolean rejected = false;
+        try {
+            previous.rhoCompressTree(50);
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        QuadTree copy = previous.copy();
+        copy.rhoCompressTree(50);
+        check("Frame deltas round trip", passed && rejected && previous.toString().equals(
+                new QuadTree(frames[frames.length - 1], "last.pgm", BuildMode.RECURSIVE).toString())
+                && FrameSequence.fromDelta("(1 2", previous, "broken.pgm") == null
+                && FrameSequence.fromDelta("-1", previous, "broken.pgm") == null
+                && FrameSequence.fromDelta("256", previous, "broken.pgm") == null
+                && FrameSequence.fromDelta("255", previous, "white.pgm").getValueAt(7, 9) == 255);
+
+        // A delta going below the pixels of a 2x2 frame is malformed
+        QuadTree small = new FrameSequence().next(new PMG(new int[][] { { 1, 2 }, { 3, 4 } }, 255), "small.pgm");
+        check("Frame delta below the pixels", FrameSequence.fromDelta("(1 2 3 (4 4 4 5))", small, "broken.pgm") == null
+                && FrameSequence.fromDelta("(1 2 3 5)", small, "small.pgm").getValueAt(1, 0) == 5);
+    }
+
+    private static void testDagMatchesTree() {
+        boolean passed = true;
+        for (String path : new String[] { "flower_small.pgm", "tree.pgm", "train.pgm" }) {
+            PMG image = FileManager.loadImage(path);
+            QuadTree tree = new QuadTree(image, path, BuildMode.RECURSIVE);
+            QuadTreeDag dag = new QuadTreeDag(image, path);
+            passed &= dag.getNbNodes() == tree.getNbNodes() && dag.getNbUniqueNodes() <= tree.getNbNodes()
+                    && matchesTree(tree, dag::getValueAt) && dag.toQuadTree().toString().equals(tree.toString());
+
+            tree.lambdaCompressTree();
+            dag.lambdaCompressTree();
+            QuadTreeDag reread = QuadTreeDag.fromString(dag.toString(), dag.getLength(), path);
+            passed &= dag.getNbNodes() == tree.getNbNodes() && matchesTree(tree, dag::getValueAt)
+                    && new QuadTreeDag(tree).getNbUniqueNodes() == dag.getNbUniqueNodes()
+                    && reread != null && matchesTree(tree, reread::getValueAt);
+        }
+        // Back-references to a node being read or out of range, negative
+        // leaves, and subtrees below the pixels are all malformed
+        String[] malformed = { "(1 2 #9 3)", "(1 2 #0 3)", "(1 -1 2 3)", "(1 2 3 (4 5 6 7))", "((1 2 3 4) #0 2 3)",
+                "(1 2 3 4) 5" };
+        for (String representation : malformed) {
+            passed &= QuadTreeDag.fromString(representation, 2, "broken.pgm") == null;
+        }
+        QuadTreeDag shared = QuadTreeDag.fromString("((1 2 3 4) #1 2 3)", 4, "shared.pgm");
+        check("DAG matches tree", passed && shared != null && shared.getValueAt(0, 3) == 2
+                && shared.getValueAt(3, 3) == 2 && QuadTreeDag.fromString("((1 2 3 4) #0 2 3)", 4, "broken.pgm") == null
+                && QuadTreeDag.fromString("((1 2 3 4) (#1 1 1 1) 2 3)", 4, "broken.pgm") == null);
+    }
+
+    private static void testLinearMatchesTree() {
+        boolean passed = true;
+        File file = new File("linear-test.lqt");
+        try {
+            for (String path : new String[] { "flower_small.pgm", "tree.pgm", "train.pgm" }) {
+                PMG image = FileManager.loadImage(path);
+                QuadTree tree = new QuadTree(image, path, BuildMode.RECURSIVE);
+                LinearQuadTree linear = new LinearQuadTree(image);
+                passed &= linear.getNbNodes() == tree.getNbNodes() && matchesTree(tree, linear::getValueAt)
+                        && linear.toQuadTree(path).toString().equals(tree.toString());
+
+                QuadTree lambda = tree.copy();
+                LinearQuadTree linearLambda = new LinearQuadTree(image);
+                lambda.lambdaCompressTree();
+                linearLambda.lambdaCompressTree();
+                passed &= linearLambda.getNbNodes() == lambda.getNbNodes()
+                        && matchesTree(lambda, linearLambda::getValueAt);
+
+                tree.rhoCompressTree(40);
+                linear.rhoCompressTree(40);
+                QuadTree converted = linear.toQuadTree(path);
+                linear.save(file.getPath());
+                LinearQuadTree loaded = LinearQuadTree.load(file.getPath());
+                passed &= linear.getNbNodes() == tree.getNbNodes() && matchesTree(tree, linear::getValueAt)
+                        && converted.getNbNodes() == tree.getNbNodes() && matchesTree(tree, converted::getValueAt)
+                        && loaded.getNbLeaves() == linear.getNbLeaves() && matchesTree(tree, loaded::getValueAt);
+            }
+        } catch (IOException e) {
+            passed = false;
+        }
+        file.delete();
+        check("Linear tree matches tree", passed);
+    }
+
+    private static void testCombineMatchesPixels() {
+        QuadTree first = new QuadTree("tree.pgm");
+        QuadTree second = first.flipHorizontal();
+        second.rhoCompressTree(30);
+        IntBinaryOperator[] operators = { (a, b) -> Math.abs(a - b), (a, b) -> (a + b) / 2, Math::min, Math::max,
+                (a, b) -> (int) Math.round(0.3 * a + 0.7 * b) };
+        QuadTree[] combined = { first.difference(second), first.average(second), first.min(second),
+                first.max(second), first.blend(second, 0.3) };
+
+        boolean passed = true;
+        for (int k = 0; k < operators.length; k++) {
+            int[][] pixels = new int[first.getLength()][first.getLength()];
+            for (int i = 0; i < pixels.length; i++) {
+                for (int j = 0; j < pixels.length; j++) {
+                    pixels[i][j] = operators[k].applyAsInt(first.getValueAt(i, j), second.getValueAt(i, j));
+                }
+            }
+            QuadTree expected = new QuadTree(new PMG(pixels, 255), "expected.pgm", BuildMode.RECURSIVE);
+            passed &= combined[k].getNbNodes() == expected.getNbNodes()
+                    && combined[k].toString().equals(expected.toString());
+        }
+
+        boolean rejected = false;
+        try {
+            first.combine(new QuadTree("flower_small.pgm"), Math::max);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check("Combinations match pixels", passed && rejected);
+    }
+
+    private static boolean matchesStatistics(QuadTree tree, int line, int col, int height, int width) {
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long[] histogram = new long[16];
+        for (int i = line; i < line + height; i++) {
+            for (int j = col; j < col + width; j++) {
+                int value = tree.getValueAt(i, j);
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                histogram[value / 16]++;
+            }
+        }
+        RegionStatistics statistics = tree.getRegionStatistics(line, col, height, width);
+        return statistics.getCount() == (long) height * width && statistics.getSum() == sum
+                && statistics.getMin() == min && statistics.getMax() == max
+                && Math.abs(statistics.getMean() - (double) sum / ((long) height * width)) < 1e-9
+                && Arrays.equals(tree.getRegionHistogram(line, col, height, width, 16, 255), histogram);
+    }
+
+    private static void testRegionStatisticsMatchPixels() {
+        QuadTree tree = new QuadTree("train.pgm");
+        tree.enableAggregates();
+        int[][] regions = { { 0, 0, tree.getLength(), tree.getLength() }, { 13, 200, 97, 301 },
+                { 256, 256, 128, 128 }, { 511, 3, 1, 400 } };
+
+        boolean passed = true;
+        for (int step = 0; step < 3; step++) {
+            if (step == 1) {
+                tree.lambdaCompressTree();
+            } else if (step == 2) {
+                tree.rhoCompressTree(20);
+            }
+            for (int[] region : regions) {
+                passed &= matchesStatistics(tree, region[0], region[1], region[2], region[3]);
+            }
+        }
+        check("Region statistics match pixels", passed);
+    }
+
+    private static String loadOutcome(String path, boolean parallel) {
+        try {
+            PMG image = parallel ? FileManager.loadImageParallel(path) : FileManager.loadImage(path);
+            return image == null ? "null"
+                    : image.getMaxLuminosity() + " " + Arrays.deepToString(image.getLuminosities());
+        } catch (RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static void testParallelLoadMatchesScanner() {
+        String[] contents = {
+                "P2\n# good\n4 4\n9\n1 2 3 4\n5 6 7 8\n9 0 1 2\n3 4 5 6\n",
+                "P5\n# bad magic number\n4 4\n9\n1 2 3 4\n5 6 7 8\n9 0 1 2\n3 4 5 6\n",
+                "P2\n# not a power of two\n3 3\n9\n1 2 3\n4 5 6\n7 8 9\n",
+                "P2\n# not square\n4 2\n9\n1 2\n3 4\n5 6\n7 8\n",
+                "P2\n# value over the maximum\n4 4\n9\n1 2 3 4\n5 6 12 8\n9 0 1 2\n3 4 5 6\n",
+                "P2\n# negative value\n4 4\n9\n1 2 3 4\n5 6 7 8\n9 -1 1 2\n3 4 5 6\n",
+                "P2\n# missing lines\n4 4\n9\n1 2 3 4\n5 6 7 8\n",
+                "P2\n# ends inside a line\n4 4\n9\n1 2 3 4\n5 6\n",
+                "P2\n# not a number at a line start\n4 4\n9\n1 2 3 4\nx 6 7 8\n9 0 1 2\n3 4 5 6\n",
+                "P2\n# not a number inside a line\n4 4\n9\n1 2 3 4\n5 x 7 8\n9 0 1 2\n3 4 5 6\n",
+                "P2\n# bad width\nx 4\n9\n",
+                "P2\n# bad maximum\n4 4\nx\n1 2 3 4\n" };
+
+        boolean passed = true;
+        File file = new File("parallel-test.pgm");
+        try {
+            for (String content : contents) {
+                Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+                passed &= loadOutcome(file.getPath(), false).equals(loadOutcome(file.getPath(), true));
+            }
+        } catch (IOException e) {
+            passed = false;
+        }
+        file.delete();
+
+        PMG expected = FileManager.loadImage("lighthouse.pgm");
+        PMG parallel = FileManager.loadImageParallel("lighthouse.pgm");
+        check("Parallel load matches Scanner", passed && parallel.getMaxLuminosity() == expected.getMaxLuminosity()
+                && Arrays.deepEquals(parallel.getLuminosities(), expected.getLuminosities())
+                && FileManager.loadImageParallel("missing.pgm") == null);
+    }
+
+    private static long countTwigs(QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return 0;
+        }
+        if (node.isTwigRoot()) {
+            return 1;
+        }
+        long twigs = 0;
+        for (int i = 0; i < 4; i++) {
+            twigs += countTwigs(node.getChild(i));
+        }
+        return twigs;
+    }
+
+    private static void testMemoryEstimateCounts() {
+        boolean passed = true;
+        for (String path : new String[] { "flower_small.pgm", "tree.pgm", "train.pgm" }) {
+            PMG image = FileManager.loadImage(path);
+            MemoryEstimate estimate = new MemoryEstimate(image);
+            QuadTree tree = new QuadTree(image, path, BuildMode.RECURSIVE);
+            LinearQuadTree linear = new LinearQuadTree(image);
+            passed &= estimate.getNbNodes() == tree.getNbNodes() && estimate.getNbTwigs() == countTwigs(tree.getRoot())
+                    && estimate.getNbLeaves() == linear.getNbLeaves()
+                    && estimate.getLinearBytes(true, 0) >= estimate.getBuiltBytes(true)
+                    && estimate.getLinearBytes(false, 50) > estimate.getLinearBytes(true, 0);
+
+            tree.lambdaCompressTree();
+            passed &= tree.getNbNodes() == estimate.getNbNodes() - 4 * estimate.getNbTwigs();
+        }
+        check("Memory estimate counts the built tree", passed);
+    }
+
+    private static String jsonField(String json, String field) {
+        Matcher matcher = Pattern.compile("\"" + field + "\":([^,}]*)").matcher(json);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static void testReportLines() {
+        File file = new File("report-test.jsonl");
+        file.delete();
+        boolean passed = true;
+        try {
+            CompressionPipeline pipeline = new CompressionPipeline(1, 2, 1, 2);
+            pipeline.enableReport(file.getPath(), true);
+            pipeline.run(Arrays.asList("flower_small.pgm", "tree.pgm"), true, 0);
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            passed &= lines.size() == 3 && "2".equals(jsonField(lines.get(2), "images"))
+                    && "true".equals(jsonField(lines.get(2), "batch"))
+                    && Long.parseLong(jsonField(lines.get(2), "peakHeapBytes")) > 0;
+
+            for (String image : new String[] { "flower_small", "tree" }) {
+                String line = null;
+                for (String candidate : lines.subList(0, Math.min(2, lines.size()))) {
+                    if (candidate.startsWith("{\"image\":\"" + image + ".pgm\"")) {
+                        line = candidate;
+                    }
+                }
+                PMG source = FileManager.loadImage(image + ".pgm");
+                QuadTree direct = new QuadTree(source, image + ".pgm", BuildMode.PYRAMID);
+                long initialNodes = direct.getNbNodes();
+                direct.lambdaCompressTree();
+                File tree = new File("Lambdacompressed-" + image + ".txt");
+                passed &= line != null && "\"LAMBDA\"".equals(jsonField(line, "mode"))
+                        && Long.parseLong(jsonField(line, "initialNodes")) == initialNodes
+                        && Long.parseLong(jsonField(line, "finalNodes")) == direct.getNbNodes()
+                        && Long.parseLong(jsonField(line, "outputBytes")) == tree.length()
+                        && Math.abs(Double.parseDouble(jsonField(line, "mse")) - direct.computeMSE(source)) < 1e-9
+                        && !"null".equals(jsonField(line, "ssim"));
+                tree.delete();
+                new File("Lambdacompressed-" + image + ".pgm").delete();
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            passed = false;
+        }
+        file.delete();
+
+        String json = new CompressionReport("a\"b\\c\n", "RHO", 5).toJson();
+        check("Report lines match the compression", passed && json.startsWith("{\"image\":\"a\\\"b\\\\c\\u000a\"")
+                && "null".equals(jsonField(json, "mse")) && "null".equals(jsonField(json, "maxError")));
+    }
+
+    private static void testLazyMatchesTree() {
+        boolean passed = true;
+        File file = new File("lazy-test.pgm");
+        try {
+            for (String path : new String[] { "flower_small.pgm", "train.pgm" }) {
+                PMG image = FileManager.loadImage(path);
+                QuadTree tree = new QuadTree(image, path, BuildMode.RECURSIVE);
+                FileManager.saveRawImage(image, file.getPath());
+                // A capacity far below the size of the tree forces evictions
+                for (long capacity : new long[] { 64, LazyQuadTree.DEFAULT_CAPACITY }) {
+                    LazyQuadTree lazy = new LazyQuadTree(file.getPath(), capacity);
+                    passed &= lazy.getLength() == tree.getLength()
+                            && lazy.getMaxLuminosity() == image.getMaxLuminosity()
+                            && matchesRegion(tree, lazy.decodeRegion(7, 30, 61, 90), 7, 30)
+                            && matchesTree(tree, lazy::getValueAt)
+                            && lazy.getNbMaterializedNodes() <= capacity;
+                }
+            }
+
+            LazyQuadTree lazy = new LazyQuadTree(file.getPath(), 64);
+            try {
+                lazy.getValueAt(lazy.getLength(), 0);
+                passed = false;
+            } catch (IllegalArgumentException e) {
+                // A pixel outside the image is rejected
+            }
+            Files.write(file.toPath(), "P2\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                new LazyQuadTree(file.getPath());
+                passed = false;
+            } catch (IOException e) {
+                // A file that is not a raw square image is rejected
+            }
+        } catch (IOException e) {
+            passed = false;
+        }
+        file.delete();
+        check("Lazy tree matches tree", passed);
+    }
+
+    private static void testCombineRejectsInvalidValues() {
+        int[][] dark = new int[8][8];
+        int[][] bright = new int[8][8];
+        int[][] packed = new int[8][8];
+        for (int i = 0; i < 8; i++) {
+            Arrays.fill(bright[i], 255);
+            Arrays.fill(packed[i], 0x123456);
+        }
+        dark[3][5] = 7;
+        QuadTree first = new QuadTree(new PMG(dark, 255), "dark.pgm", BuildMode.RECURSIVE);
+        QuadTree second = new QuadTree(new PMG(bright, 255), "bright.pgm", BuildMode.RECURSIVE);
+        QuadTree colors = new QuadTree(new PMG(packed, 0xFFFFFF), "colors.ppm", BuildMode.RECURSIVE, true);
+
+        check("Combinations reject invalid values", rejects(() -> first.combine(second, (a, b) -> a - 1))
+                && rejects(() -> first.combine(second, (a, b) -> a + b + 1))
+                && rejects(() -> first.blend(second, 2.0)) && rejects(() -> first.blend(second, -0.5))
+                && rejects(() -> first.blend(second, Double.NaN)) && rejects(() -> first.max(colors))
+                && rejects(() -> colors.difference(colors))
+                && first.combine(second, (a, b) -> b - a).getValueAt(3, 5) == 248
+                && first.blend(second, 1.0).toString().equals(first.toString()));
+    }
+
+    private static void testUpdateRegionRejectsValues() {
+        QuadTree tree = new QuadTree("train.pgm");
+        String before = tree.toString();
+        PMG source = tree.getSource();
+        boolean passed = rejects(() -> tree.updateRegion(0, 0, 1, 1, new int[][] { { -1 } }))
+                && rejects(() -> tree.updateRegion(3, 5, 2, 1, new int[][] { { 10, 9999 } }));
+        check("Region update rejects out-of-range values", passed && tree.toString().equals(before)
+                && tree.getSource() == source && tree.getValueAt(0, 0) >= 0);
+    }
+
+    private static void testLutMapsSource() {
+        PMG image = FileManager.loadImage("train.pgm");
+        int[][] original = copyPixels(image.getLuminosities());
+        QuadTree tree = new QuadTree(image, "train.pgm", BuildMode.RECURSIVE);
+        int[] lut = new int[256];
+        for (int i = 0; i < lut.length; i++) {
+            lut[i] = 255 - i;
+        }
+        tree.applyLut(lut);
+        int[][] edit = patch(20, 30, 11);
+        tree.updateRegion(100, 60, 30, 20, edit);
+
+        // Outside the edit the rebuilt subtrees keep the mapped values
+        boolean passed = Arrays.deepEquals(image.getLuminosities(), original)
+                && tree.computeSquaredError(tree.getSource()) == 0;
+        for (int i = 0; i < tree.getLength(); i++) {
+            for (int j = 0; j < tree.getLength(); j++) {
+                boolean edited = i >= 60 && i < 80 && j >= 100 && j < 130;
+                int expected = edited ? edit[i - 60][j - 100] : lut[original[i][j]];
+                passed &= tree.getValueAt(i, j) == expected;
+            }
+        }
+
+        int[] tooBright = new int[256];
+        tooBright[3] = 256;
+        int[][] packed = new int[4][4];
+        QuadTree colors = new QuadTree(new PMG(packed, 0xFFFFFF), "colors.ppm", BuildMode.RECURSIVE, true);
+        check("LUT maps the source image", passed && rejects(() -> tree.applyLut(tooBright))
+                && rejects(() -> colors.applyLut(new int[1 << 24])));
+    }
+
+    private static void testMenuReportLines() {
+        File file = new File("menu-report-test.jsonl");
+        file.delete();
+        DefaultMenu menu = new DefaultMenu("flower_small.pgm", 40);
+        menu.enableReport(file.getPath());
+        menu.start();
+
+        QuadTree lambda = new QuadTree("flower_small.pgm");
+        lambda.lambdaCompressTree();
+        QuadTree rho = new QuadTree("flower_small.pgm");
+        rho.rhoCompressTree(40);
+        boolean passed;
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            passed = lines.size() == 2 && "\"LAMBDA\"".equals(jsonField(lines.get(0), "mode"))
+                    && Long.parseLong(jsonField(lines.get(0), "finalNodes")) == lambda.getNbNodes()
+                    && Long.parseLong(jsonField(lines.get(0), "outputBytes"))
+                            == new File("Lambdacompressed-flower_small.txt").length()
+                    && "\"RHO\"".equals(jsonField(lines.get(1), "mode")) && "40".equals(jsonField(lines.get(1), "rho"))
+                    && Long.parseLong(jsonField(lines.get(1), "finalNodes")) == rho.getNbNodes()
+                    && !"null".equals(jsonField(lines.get(1), "psnr"));
+        } catch (IOException | RuntimeException e) {
+            passed = false;
+        }
+        for (String output : new String[] { "Lambdacompressed-flower_small", "RHOcompressed-flower_small" }) {
+            new File(output + ".txt").delete();
+            new File(output + ".pgm").delete();
+        }
+        file.delete();
+        check("Menu report lines match the compression", passed);
+    }
 }
@@ -0,0 +1,113 @@
+/**
+ * Class that holds the quality metrics of a compressed quadtree measured
+ * against its source image
+ *
+ */
+public class QualityMetrics {
+
+    /**
+     * The side of the windows used to compute the SSIM
+     *
+     */
+    public static final int SSIM_WINDOW = 8;
+
+    /**
+     * The mean squared error
+     *
+     */
+    private double mse;
+
+    /**
+     * The peak signal to noise ratio in decibels
+     *
+     */
+    private double psnr;
+
+    /**
+     * The maximum absolute error of a pixel
+     *
+     */
+    private int maxError;
+
+    /**
+     * The mean structural similarity
+     *
+     */
+    private double ssim;
+
+    /**
+     * Measures the quality of a quadtree against its source image
+     *
+     * @param tree  The compressed quadtree
+     * @param image The source image of the quadtree
+     *
+     */
+    public QualityMetrics(QuadTree tree, PMG image) {
+        this(tree, image, true);
+    }
+
+    /**
+     * Measures the quality of a quadtree against its source image, leaving
+     * out the SSIM, the costliest metric, if not needed
+     *
+     * @param tree  The compressed quadtree
+     * @param image The source image of the quadtree
+     * @param ssim  true to measure the SSIM, false to leave it to NaN
+     *
+     */
+    public QualityMetrics(QuadTree tree, PMG image, boolean ssim) {
+        this.mse = tree.computeMSE(image);
+        this.psnr = Util.calculatePSNR(this.mse, image.getMaxLuminosity());
+        this.maxError = tree.computeMaxAbsoluteError(image);
+        this.ssim = ssim ? tree.computeSSIM(image, SSIM_WINDOW) : Double.NaN;
+    }
+
+    /**
+     * Gets the mean squared error
+     *
+     * @return The mean squared error
+     */
+    public double getMse() {
+        return this.mse;
+    }
+
+    /**
+     * Gets the peak signal to noise ratio
+     *
+     * @return The PSNR in decibels
+     */
+    public double getPsnr() {
+        return this.psnr;
+    }
+
+    /**
+     * Gets the maximum absolute error
+     *
+     * @return The maximum absolute error
+     */
+    public int getMaxError() {
+        return this.maxError;
+    }
+
+    /**
+     * Gets the mean structural similarity
+     *
+     * @return The SSIM, or NaN if it was not measured
+     */
+    public double getSsim() {
+        return this.ssim;
+    }
+
+    /**
+     * Prints the metrics as part of a compression summary
+     *
+     */
+    public void print() {
+        System.out.println("MSE: " + String.format("%.4f", this.mse));
+        System.out.println("PSNR: " + String.format("%.2f", this.psnr) + " dB");
+        System.out.println("Max Absolute Error: " + this.maxError);
+        if (!Double.isNaN(this.ssim)) {
+            System.out.println("SSIM: " + String.format("%.4f", this.ssim));
+        }
+    }
+}
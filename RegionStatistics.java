@@ -0,0 +1,82 @@
+/**
+ * Class that holds the statistics of a rectangle of an image, computed from
+ * a QuadTree
+ * 
+ */
+public class RegionStatistics {
+
+    /**
+     * The number of pixels and the sum of their values
+     * 
+     */
+    private long count;
+    private long sum;
+
+    /**
+     * The smallest and largest values
+     * 
+     */
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * Adds a part of the rectangle
+     * 
+     * @param count The number of pixels of the part
+     * @param sum   The sum of their values
+     * @param min   Their smallest value
+     * @param max   Their largest value
+     * 
+     */
+    void add(long count, long sum, int min, int max) {
+        this.count += count;
+        this.sum += sum;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+    }
+
+    /**
+     * Gets the number of pixels of the rectangle
+     * 
+     * @return The number of pixels
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the sum of the values of the rectangle
+     * 
+     * @return The sum
+     */
+    public long getSum() {
+        return this.sum;
+    }
+
+    /**
+     * Gets the mean value of the rectangle
+     * 
+     * @return The mean, 0 for an empty rectangle
+     */
+    public double getMean() {
+        return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * Gets the smallest value of the rectangle
+     * 
+     * @return The minimum
+     */
+    public int getMin() {
+        return this.min;
+    }
+
+    /**
+     * Gets the largest value of the rectangle
+     * 
+     * @return The maximum
+     */
+    public int getMax() {
+        return this.max;
+    }
+}
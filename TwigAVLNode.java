@@ -199,6 +199,17 @@ class TwigAVLNode {
         }
     }  
 
+    /**
+     * Deletes a given QuadTreeNode from the list of quadNodes.
+     * If it is not in the list, nothing happens.
+     *
+     * @param quadNode The QuadTreeNode to delete.
+     * 
+     */
+    public void deleteQuadNode(QuadTreeNode quadNode) {
+        quadNodes.remove(quadNode);
+    }
+
     /**
      * Check if the list of quadNodes is empty.
      *
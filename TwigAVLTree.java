@@ -62,22 +62,42 @@ public class TwigAVLTree {
      * 
      */
     public void delete(double epsilon) {
-        root = delete(root, epsilon);
+        root = delete(root, epsilon, null);
     }
 
-    private TwigAVLNode delete(TwigAVLNode node, double epsilon) {
+    /**
+     * Deletes a given QuadTreeNode stored under the given epsilon, removing
+     * the TwigAVLNode if it was the only one. Nothing is removed if the
+     * QuadTreeNode is not stored under that epsilon.
+     *
+     * @param epsilon   The epsilon value the QuadTreeNode was inserted with.
+     * @param quadNode  The QuadTreeNode to remove.
+     * 
+     */
+    public void delete(double epsilon, QuadTreeNode quadNode) {
+        root = delete(root, epsilon, quadNode);
+    }
+
+    private TwigAVLNode delete(TwigAVLNode node, double epsilon, QuadTreeNode quadNode) {
         if (node == null) {
             return null;
         }
 
         if (epsilon < node.getEpsilon()) {
-            node.setLeft(delete(node.getLeft(), epsilon));
+            node.setLeft(delete(node.getLeft(), epsilon, quadNode));
         } else if (epsilon > node.getEpsilon()) {
-            node.setRight(delete(node.getRight(), epsilon));
+            node.setRight(delete(node.getRight(), epsilon, quadNode));
+        } else if (quadNode != null && !containsQuadNode(node, quadNode)) {
+            // Another twig with the same epsilon, the one asked for is not here
+            return node;
         } else {
             if (node.getQuadNodes().size() > 1) {
                 // If there are multiple QuadTreeNode references, just remove one
-                node.deleteLastQuadNode();;
+                if (quadNode == null) {
+                    node.deleteLastQuadNode();
+                } else {
+                    node.deleteQuadNode(quadNode);
+                }
             } else {
                 // If there is only one QuadTreeNode reference or none, perform deletion logic
                 if (node.getLeft() == null || node.getRight() == null) {
@@ -89,9 +109,11 @@ public class TwigAVLTree {
                         node = temp;
                     }
                 } else {
+                    // The successor takes this place with all its twigs
                     TwigAVLNode temp = findMin(node.getRight());
                     node.setEpsilon(temp.getEpsilon());
-                    node.setRight(delete(node.getRight(), temp.getEpsilon()));
+                    node.setQuadNodes(temp.getQuadNodes());
+                    node.setRight(deleteMin(node.getRight()));
                 }
             }
         }
@@ -105,6 +127,42 @@ public class TwigAVLTree {
         return balance(node);
     }
 
+    /**
+     * Checks whether a TwigAVLNode holds a given QuadTreeNode, by identity.
+     *
+     * @param node     The TwigAVLNode.
+     * @param quadNode The QuadTreeNode.
+     * @return true if the QuadTreeNode is one of the twigs of the node.
+     * 
+     */
+    private static boolean containsQuadNode(TwigAVLNode node, QuadTreeNode quadNode) {
+        for (QuadTreeNode twig : node.getQuadNodes()) {
+            if (twig == quadNode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the node with the minimum epsilon of a subtree, whatever the
+     * number of QuadTreeNodes it holds.
+     *
+     * @param node The root of the subtree.
+     * @return The new root of the subtree.
+     * 
+     */
+    private TwigAVLNode deleteMin(TwigAVLNode node) {
+        if (node.getLeft() == null) {
+            return node.getRight();
+        }
+
+        node.setLeft(deleteMin(node.getLeft()));
+        updateHeight(node);
+
+        return balance(node);
+    }
+
     /**
      * Retrieves a QuadTreeNode associated with the given epsilon value.
      * Returns null if no QuadTreeNode is associated.
@@ -31,6 +31,13 @@ public class TwigAVLTreeTest {
 
         System.out.println("AVL Tree after deletion:");
         avlTree.print();
+
+        // Deleting a twig not stored under its epsilon must leave the other one
+        avlTree.delete(0.5, quadTreeNode1);
+        System.out.println("Delete of a twig stored elsewhere: "
+                + (avlTree.search(0.5) ? "OK" : "FAILED"));
+        avlTree.delete(0.5, quadTreeNode2);
+        System.out.println("Delete of the twig itself: " + (!avlTree.search(0.5) ? "OK" : "FAILED"));
     }
 
     private static QuadTreeNode createQuadTreeNode(int value1, int value2, int value3, int value4) {
@@ -0,0 +1,176 @@
+/**
+ * Class that detects the uniform 2x2, 4x4 and 8x8 blocks of an image and
+ * keeps the result as one bitmap per block size
+ *
+ * For 8-bit images each row is packed eight pixels per long, and a whole
+ * word of blocks is checked with a few xor/or operations (SIMD within a
+ * register). Other images go through a scalar per-pixel scan.
+ *
+ */
+public class UniformityBitmap {
+
+    /**
+     * The highest level covered by the bitmaps, 8x8 blocks
+     *
+     */
+    public static final int MAX_LEVEL = 3;
+
+    /**
+     * The bitmaps indexed by level, level k holding one bit per block of side
+     * 2^k in row-major order, set if the block is uniform
+     *
+     */
+    private long[][] bitmaps;
+
+    /**
+     * The side of the image
+     *
+     */
+    private int length;
+
+    /**
+     * Detects the uniform blocks of an image
+     *
+     * @param image The image, whose side must be a power of two
+     *
+     */
+    public UniformityBitmap(PMG image) {
+        int[][] arr = image.getLuminosities();
+        this.length = arr.length;
+        this.bitmaps = new long[MAX_LEVEL + 1][];
+
+        for (int k = 1; k <= MAX_LEVEL && (1 << k) <= this.length; k++) {
+            int side = this.length >> k;
+            this.bitmaps[k] = new long[(side * side + 63) / 64];
+        }
+
+        if (image.getMaxLuminosity() <= 255 && this.length >= 8) {
+            long[][] packed = pack(arr);
+            for (int k = 1; k <= MAX_LEVEL; k++) {
+                scanPacked(packed, k);
+            }
+        } else {
+            for (int k = 1; k <= MAX_LEVEL && (1 << k) <= this.length; k++) {
+                scanScalar(arr, k);
+            }
+        }
+    }
+
+    /**
+     * Packs every row of an 8-bit image eight pixels per long, the first
+     * pixel in the lowest byte
+     *
+     * @param arr The luminosities of the image
+     * @return The packed rows
+     *
+     */
+    private static long[][] pack(int[][] arr) {
+        int words = arr.length / 8;
+        long[][] packed = new long[arr.length][words];
+
+        for (int i = 0; i < arr.length; i++) {
+            int[] row = arr[i];
+            long[] out = packed[i];
+            for (int w = 0; w < words; w++) {
+                int j = w * 8;
+                out[w] = (row[j] & 0xFFL)
+                        | (row[j + 1] & 0xFFL) << 8
+                        | (row[j + 2] & 0xFFL) << 16
+                        | (row[j + 3] & 0xFFL) << 24
+                        | (row[j + 4] & 0xFFL) << 32
+                        | (row[j + 5] & 0xFFL) << 40
+                        | (row[j + 6] & 0xFFL) << 48
+                        | (row[j + 7] & 0xFFL) << 56;
+            }
+        }
+
+        return packed;
+    }
+
+    /**
+     * Fills the bitmap of a level from the packed rows. A word holds 8 / 2^k
+     * lanes of 2^k bytes, one per block; a block is uniform when all its rows
+     * equal its first row on the lane and the first row is constant on it.
+     *
+     * @param packed The packed rows
+     * @param k      The level to fill
+     *
+     */
+    private void scanPacked(long[][] packed, int k) {
+        int width = 1 << k;
+        int lanes = 8 / width;
+        int laneBits = 8 * width;
+        long laneMask = laneBits == 64 ? -1L : (1L << laneBits) - 1;
+        long horizontalMask = 0;
+
+        for (int l = 0; l < lanes; l++) {
+            horizontalMask |= (laneMask >>> 8) << (l * laneBits);
+        }
+
+        int side = this.length >> k;
+        long[] bitmap = this.bitmaps[k];
+
+        for (int r = 0; r < side; r++) {
+            long[] first = packed[r * width];
+            for (int w = 0; w < first.length; w++) {
+                long word = first[w];
+                long diff = (word ^ (word >>> 8)) & horizontalMask;
+                for (int t = 1; t < width; t++) {
+                    diff |= word ^ packed[r * width + t][w];
+                }
+
+                int bit = r * side + w * lanes;
+                for (int l = 0; l < lanes; l++, bit++) {
+                    if (((diff >>> (l * laneBits)) & laneMask) == 0) {
+                        bitmap[bit >>> 6] |= 1L << (bit & 63);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the bitmap of a level by comparing every pixel of each block with
+     * its first pixel
+     *
+     * @param arr The luminosities of the image
+     * @param k   The level to fill
+     *
+     */
+    private void scanScalar(int[][] arr, int k) {
+        int width = 1 << k;
+        int side = this.length >> k;
+        long[] bitmap = this.bitmaps[k];
+
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                int value = arr[r * width][c * width];
+                boolean uniform = true;
+                for (int i = r * width; i < (r + 1) * width && uniform; i++) {
+                    for (int j = c * width; j < (c + 1) * width && uniform; j++) {
+                        uniform = arr[i][j] == value;
+                    }
+                }
+
+                if (uniform) {
+                    int bit = r * side + c;
+                    bitmap[bit >>> 6] |= 1L << (bit & 63);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a block is uniform
+     *
+     * @param k The level of the block, between 1 and MAX_LEVEL
+     * @param r The line of the block in its level
+     * @param c The column of the block in its level
+     * @return true if every pixel of the block has the same luminosity
+     *
+     */
+    public boolean isUniform(int k, int r, int c) {
+        int bit = r * (this.length >> k) + c;
+        return (this.bitmaps[k][bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+}
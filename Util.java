@@ -10,6 +10,13 @@ public class Util {
      */
     public static final double UNDEFINED_LOG_LUMINOSITY = Double.MIN_VALUE;
 
+    /**
+     * Number of characters an internal node adds to the parenthesized
+     * representation: its two parentheses and the three separators.
+     * 
+     */
+    public static final int SERIALIZED_NODE_OVERHEAD = 5;
+
     /**
      * Calculates and returns the average log luminosity for a QuadTreeNode.
      * If the node is a Twig root, it computes the average log luminosity of its four children.
@@ -59,6 +66,84 @@ public class Util {
         return maxEpsilon;
     }
 
+    /**
+     * Calculates the average log luminosity of each channel of a twig whose
+     * values are colors packed as 0xRRGGBB.
+     *
+     * @param node The twig root.
+     * @return The packed color of the rounded averages of the channels.
+     * 
+     */
+    public static int calculateAvgLogColor(QuadTreeNode node) {
+        int color = 0;
+
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            double res = 0;
+            for (int i = 0; i < 4; i++) {
+                res += Math.log(0.1 + ((node.getChildValue(i) >> shift) & 0xFF));
+            }
+            int channel = (int) Math.round(Math.exp(0.25 * res));
+            color |= Math.min(channel, 255) << shift;
+        }
+
+        return color;
+    }
+
+    /**
+     * Calculates the epsilon of a twig whose values are packed colors: the
+     * largest difference, over the three channels, between a child and the
+     * average log luminosity of its channel.
+     *
+     * @param node The twig root.
+     * @return The maximum epsilon over the channels.
+     * 
+     */
+    public static double calculateColorEpsilon(QuadTreeNode node) {
+        double maxEpsilon = Double.MIN_VALUE;
+
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            double res = 0;
+            for (int i = 0; i < 4; i++) {
+                res += Math.log(0.1 + ((node.getChildValue(i) >> shift) & 0xFF));
+            }
+            double avgLogLuminosity = Math.exp(0.25 * res);
+            for (int i = 0; i < 4; i++) {
+                double epsilon = Math.abs(avgLogLuminosity - ((node.getChildValue(i) >> shift) & 0xFF));
+                maxEpsilon = Math.max(maxEpsilon, epsilon);
+            }
+        }
+
+        return maxEpsilon;
+    }
+
+    /**
+     * Calculates the peak signal to noise ratio matching a mean squared error.
+     *
+     * @param mse           The mean squared error.
+     * @param maxLuminosity The maximum luminosity of the image.
+     * @return The PSNR in decibels, or positive infinity if the error is zero.
+     * 
+     */
+    public static double calculatePSNR(double mse, int maxLuminosity) {
+        if (mse == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return 10 * Math.log10((double) maxLuminosity * maxLuminosity / mse);
+    }
+
+    /**
+     * Calculates the length of a leaf in the parenthesized representation of
+     * a quadtree: its digits followed by a space.
+     *
+     * @param value The value of the leaf.
+     * @return The serialized size of the leaf.
+     * 
+     */
+    public static int serializedLeafSize(int value) {
+        return String.valueOf(value).length() + 1;
+    }
+
     /**
      * Checks if a given number is a power of two.
      *